@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j;
+
+import ru.iris.noolite4j.codec.FrameCodec;
+import ru.iris.noolite4j.receiver.RX2164;
+import ru.iris.noolite4j.sender.PC1132;
+import ru.iris.noolite4j.transport.LoopbackTransport;
+import ru.iris.noolite4j.watchers.CommandType;
+import ru.iris.noolite4j.watchers.FrameWatcher;
+import ru.iris.noolite4j.watchers.NotificationFrame;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Проверка передатчика и приемника без устройств: посылки идут через LoopbackTransport.
+ * Передатчик отправляет команды через очередь, каждая записанная посылка сверяется с отправленной.
+ * В приемник подаются посылки, каждая должна дойти до обработчика с тем же каналом и командой.
+ * Каналы в посылках начинаются с 0, в API - с 1.
+ * Аргументы: количество посылок (по умолчанию 1000) и задержка обмена в мс (по умолчанию 0)
+ */
+public class LoopbackBenchmark {
+
+   private static final int CHANNELS = 30;
+
+   public static void main(String[] args) throws InterruptedException
+   {
+       int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+       long latencyMs = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+       boolean ok = sender(count, latencyMs);
+       ok &= receiver(count, latencyMs);
+
+       System.exit(ok ? 0 : 1);
+   }
+
+   private static boolean sender(int count, long latencyMs) throws InterruptedException
+   {
+       LoopbackTransport transport = new LoopbackTransport();
+       transport.setLatency(latencyMs, TimeUnit.MILLISECONDS);
+
+       PC1132 pc = new PC1132(transport);
+       pc.open();
+       pc.startQueue(64);
+
+       long start = System.nanoTime();
+
+       for (int i = 0; i < count; i++)
+       {
+           byte channel = (byte) (i % CHANNELS + 1);
+
+           if (i % 2 == 0)
+           {
+               pc.turnOn(channel);
+           }
+           else
+           {
+               pc.turnOff(channel);
+           }
+       }
+
+       pc.stopQueue();
+
+       long elapsed = System.nanoTime() - start;
+       int errors = 0;
+
+       for (int i = 0; i < count; i++)
+       {
+           byte[] frame = transport.takeWritten(1, TimeUnit.SECONDS);
+           CommandType expected = i % 2 == 0 ? CommandType.TURN_ON : CommandType.TURN_OFF;
+
+           if (frame == null
+                   || frame[FrameCodec.TX_CHANNEL] != i % CHANNELS
+                   || frame[FrameCodec.TX_COMMAND] != expected.getCode())
+           {
+               errors++;
+           }
+       }
+
+       pc.close();
+
+       report("PC11xx", count, errors, elapsed);
+       System.out.println("Попыток передачи: " + pc.getAttempts() + ", ошибок: " + pc.getFailures());
+
+       return errors == 0 && pc.getFailures() == 0;
+   }
+
+   private static boolean receiver(int count, long latencyMs) throws InterruptedException
+   {
+       LoopbackTransport transport = new LoopbackTransport();
+       transport.setLatency(latencyMs, TimeUnit.MILLISECONDS);
+
+       final AtomicInteger received = new AtomicInteger();
+       final AtomicInteger errors = new AtomicInteger();
+       final CountDownLatch done = new CountDownLatch(count);
+
+       RX2164 rx = new RX2164(transport);
+       rx.open();
+       rx.getPollingScheduler().setMinInterval(1L);
+       rx.addFrameWatcher(new FrameWatcher() {
+           @Override
+           public void onFrame(NotificationFrame frame) {
+               int i = received.getAndIncrement();
+
+               if (frame.getChannel() != i % CHANNELS + 1 || frame.getType() != CommandType.SWITCH)
+               {
+                   errors.incrementAndGet();
+               }
+
+               done.countDown();
+           }
+       });
+
+       /**
+        * Посылки подаются до запуска приема, чтобы первое чтение не вернуло пустой отчет.
+        * TOGL меняется с каждой посылкой, иначе приемник примет ее за повтор
+        */
+       for (int i = 0; i < count; i++)
+       {
+           transport.inject(new byte[]{(byte) (i & 63), (byte) (i % CHANNELS), (byte) CommandType.SWITCH.getCode(), 0, 0, 0, 0, 0});
+       }
+
+       long start = System.nanoTime();
+       rx.start();
+
+       boolean completed = done.await(count * (latencyMs + 10) + 5000, TimeUnit.MILLISECONDS);
+       long elapsed = System.nanoTime() - start;
+
+       rx.close();
+
+       int lost = count - received.get();
+       report("RX2164", count, errors.get() + lost, elapsed);
+
+       return completed && errors.get() == 0;
+   }
+
+   private static void report(String device, int count, int errors, long elapsedNanos)
+   {
+       double seconds = elapsedNanos / 1e9;
+
+       System.out.println("----------------------------------");
+       System.out.println(device + ": посылок " + count + ", расхождений " + errors);
+       System.out.println(String.format("Время: %.3f с, %.0f посылок/с", seconds, count / seconds));
+   }
+}
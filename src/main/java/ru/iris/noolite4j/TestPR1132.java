@@ -23,15 +23,13 @@ public class TestPR1132 {
 
    public static void main(String[] args)
    {
-       PR1132 pc = new PR1132();
-
        if(args[0].isEmpty() || args[1].isEmpty() || args[2].isEmpty())
        {
            System.out.println("Нет адреса, команды или канала!");
            System.exit(-1);
        }
 
-       PR1132.setHost(args[0]);
+       PR1132 pc = new PR1132(args[0]);
 
        byte channel = Byte.valueOf(args[2]);
 
@@ -77,6 +75,7 @@ public class TestPR1132 {
                break;
        }
 
+       pc.close();
    }
 
 }
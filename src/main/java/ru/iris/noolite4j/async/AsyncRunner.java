@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Выполняет команды на заданном исполнителе и собирает {@link CommandResult}
+ */
+public class AsyncRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncRunner.class.getName());
+    private static volatile ExecutorService defaultExecutor;
+
+    private final Executor executor;
+
+    /**
+     * Использует общий исполнитель по умолчанию
+     * @see #defaultExecutor()
+     */
+    public AsyncRunner()
+    {
+        this(defaultExecutor());
+    }
+
+    public AsyncRunner(Executor executor)
+    {
+        if (executor == null)
+        {
+            throw new IllegalArgumentException("Не задан исполнитель");
+        }
+
+        this.executor = executor;
+    }
+
+    /**
+     * Общий исполнитель по умолчанию: виртуальные потоки, если их поддерживает JVM,
+     * иначе пул потоков-демонов
+     * @return исполнитель
+     */
+    public static ExecutorService defaultExecutor()
+    {
+        ExecutorService executor = defaultExecutor;
+
+        if (executor == null)
+        {
+            synchronized (AsyncRunner.class)
+            {
+                executor = defaultExecutor;
+
+                if (executor == null)
+                {
+                    executor = createDefaultExecutor();
+                    defaultExecutor = executor;
+                }
+            }
+        }
+
+        return executor;
+    }
+
+    private static ExecutorService createDefaultExecutor()
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            LOGGER.debug("Для асинхронных команд используются виртуальные потоки");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            LOGGER.debug("Виртуальные потоки недоступны, используется пул потоков");
+        }
+
+        final AtomicInteger counter = new AtomicInteger();
+
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Noolite4J async " + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Выполняет команду на исполнителе
+     * @param name название команды для результата
+     * @param call команда
+     * @return результат, future никогда не завершается исключением
+     */
+    public CompletableFuture<CommandResult> submit(final String name, final CommandCall call)
+    {
+        final CompletableFuture<CommandResult> future = new CompletableFuture<>();
+
+        try
+        {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    future.complete(execute(name, call));
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.error("Не удалось запустить команду " + name + ": " + e.getMessage());
+            future.complete(new CommandResult(name, false, e, 0, System.currentTimeMillis(), 0));
+        }
+
+        return future;
+    }
+
+    /**
+     * Выполняет команду в текущем потоке.
+     * Если команда отмечает попытки через {@link CallTrace}, в результат попадают их количество
+     * и ошибка последней попытки, иначе вызов считается одной попыткой
+     * @param name название команды
+     * @param call команда
+     * @return результат
+     */
+    public static CommandResult execute(String name, CommandCall call)
+    {
+        long startTime = System.currentTimeMillis();
+        long start = System.nanoTime();
+        CallTrace trace = CallTrace.begin();
+
+        try
+        {
+            boolean success = call.call();
+            return new CommandResult(name, success, success ? null : trace.getError(), attempts(trace), startTime, System.nanoTime() - start);
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("Ошибка выполнения команды " + name + ": " + e.getMessage());
+            return new CommandResult(name, false, e, attempts(trace), startTime, System.nanoTime() - start);
+        }
+        finally
+        {
+            trace.end();
+        }
+    }
+
+    private static int attempts(CallTrace trace)
+    {
+        return Math.max(trace.getAttempts(), 1);
+    }
+}
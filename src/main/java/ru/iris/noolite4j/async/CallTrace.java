@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.iris.noolite4j.async;
+
+/**
+ * Сведения об одном вызове команды: сколько было попыток передачи и чем закончилась последняя неудачная.
+ * Запись привязана к потоку, в котором выполняется команда: {@link AsyncRunner} начинает ее перед вызовом,
+ * а устройство отмечает в ней свои попытки. Вне {@link AsyncRunner} отметки ничего не делают
+ */
+public final class CallTrace {
+
+    private static final ThreadLocal<CallTrace> CURRENT = new ThreadLocal<>();
+
+    private int attempts = 0;
+    private Throwable error;
+
+    private CallTrace()
+    {
+    }
+
+    /**
+     * Начинает запись вызова в текущем потоке
+     * @return запись, которую нужно закрыть через {@link #end()}
+     */
+    static CallTrace begin()
+    {
+        CallTrace trace = new CallTrace();
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    void end()
+    {
+        CURRENT.remove();
+    }
+
+    /**
+     * Отмечает попытку передачи в записи текущего вызова
+     */
+    public static void attempt()
+    {
+        CallTrace trace = CURRENT.get();
+
+        if (trace != null)
+        {
+            trace.attempts++;
+        }
+    }
+
+    /**
+     * Отмечает ошибку последней попытки в записи текущего вызова
+     * @param error ошибка
+     */
+    public static void failed(Throwable error)
+    {
+        CallTrace trace = CURRENT.get();
+
+        if (trace != null)
+        {
+            trace.error = error;
+        }
+    }
+
+    /**
+     * @return количество отмеченных попыток, 0 - если команда о попытках не сообщала
+     */
+    int getAttempts()
+    {
+        return attempts;
+    }
+
+    /**
+     * @return ошибка последней неудачной попытки или null
+     */
+    Throwable getError()
+    {
+        return error;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.async;
+
+/**
+ * Результат асинхронно выполненной команды.
+ * Объект неизменяемый
+ */
+public final class CommandResult {
+
+    private final String command;
+    private final boolean success;
+    private final Throwable cause;
+    private final int attempts;
+    private final long startTime;
+    private final long durationNanos;
+
+    public CommandResult(String command, boolean success, Throwable cause, int attempts, long startTime, long durationNanos)
+    {
+        this.command = command;
+        this.success = success;
+        this.cause = cause;
+        this.attempts = attempts;
+        this.startTime = startTime;
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * @return название команды
+     */
+    public String getCommand()
+    {
+        return command;
+    }
+
+    /**
+     * @return успешно или нет
+     */
+    public boolean isSuccess()
+    {
+        return success;
+    }
+
+    /**
+     * @return ошибка, из-за которой команда не выполнена (для передатчика - ошибка LibUSB последней попытки,
+     * для шлюза - ошибка HTTP-запроса), или null, если команда выполнена или причина неизвестна
+     */
+    public Throwable getCause()
+    {
+        return cause;
+    }
+
+    /**
+     * @return количество попыток передачи в устройство с учетом повторов;
+     * 0 - команда не была запущена, 1 - для команд, поставленных в очередь передатчика
+     */
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    /**
+     * @return время начала выполнения, мс с начала эпохи
+     */
+    public long getStartTime()
+    {
+        return startTime;
+    }
+
+    public long getDurationNanos()
+    {
+        return durationNanos;
+    }
+
+    public long getDurationMillis()
+    {
+        return durationNanos / 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return "CommandResult{" +
+                "command=" + command +
+                ", success=" + success +
+                ", attempts=" + attempts +
+                ", durationMs=" + getDurationMillis() +
+                (cause != null ? ", cause=" + cause : "") +
+                '}';
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.codec;
+
+import ru.iris.noolite4j.watchers.BatteryState;
+import ru.iris.noolite4j.watchers.CommandType;
+import ru.iris.noolite4j.watchers.DataFormat;
+import ru.iris.noolite4j.watchers.SensorType;
+
+/**
+ * Кодирование и разбор 8-байтовых посылок nooLite.
+ * Класс не хранит состояния, все преобразования кодов в перечисления идут через
+ * заранее построенные таблицы
+ *
+ * Посылка приемника RX2164:
+ * 0 - TOGL, 1 - канал, 2 - команда, 3 - формат данных, 4-7 - данные
+ *
+ * Посылка передатчика PC11xx:
+ * 0 - режим (количество повторов), 1 - команда, 2 - формат данных, 4 - канал, 5-7 - данные
+ */
+public final class FrameCodec {
+
+    /**
+     * Размер посылки в байтах
+     */
+    public static final int FRAME_SIZE = 8;
+
+    public static final int RX_TOGL = 0;
+    public static final int RX_CHANNEL = 1;
+    public static final int RX_COMMAND = 2;
+    public static final int RX_FORMAT = 3;
+    public static final int RX_DATA = 4;
+
+    public static final int TX_MODE = 0;
+    public static final int TX_COMMAND = 1;
+    public static final int TX_FORMAT = 2;
+    public static final int TX_CHANNEL = 4;
+    public static final int TX_DATA = 5;
+
+    /**
+     * Команды управления приемником RX2164
+     */
+    public static final byte RX2164_BIND = 1;
+    public static final byte RX2164_UNBIND = 3;
+    public static final byte RX2164_UNBIND_ALL = 4;
+
+    private static final CommandType[] COMMANDS = new CommandType[256];
+    private static final DataFormat[] FORMATS = new DataFormat[256];
+    private static final SensorType[] SENSORS = new SensorType[256];
+    private static final BatteryState[] BATTERY = BatteryState.values();
+
+    static
+    {
+        for (CommandType type : CommandType.values())
+        {
+            COMMANDS[type.getCode()] = type;
+        }
+
+        /**
+         * Неизвестный формат считаем посылкой без данных
+         */
+        for (int i = 0; i < FORMATS.length; i++)
+        {
+            FORMATS[i] = DataFormat.NO_DATA;
+        }
+
+        for (DataFormat format : DataFormat.values())
+        {
+            FORMATS[format.ordinal()] = format;
+        }
+
+        for (SensorType sensor : SensorType.values())
+        {
+            SENSORS[sensor.ordinal()] = sensor;
+        }
+    }
+
+    private FrameCodec()
+    {
+    }
+
+    /**
+     * @param code код команды
+     * @return команда или null, если код неизвестен
+     */
+    public static CommandType commandType(byte code)
+    {
+        return COMMANDS[code & 0xff];
+    }
+
+    /**
+     * @param format код формата данных
+     * @return формат данных, для неизвестного кода - NO_DATA
+     */
+    public static DataFormat dataFormat(byte format)
+    {
+        return FORMATS[format & 0xff];
+    }
+
+    /**
+     * @param code код типа датчика
+     * @return тип датчика или null, если код неизвестен
+     */
+    public static SensorType sensorType(int code)
+    {
+        return SENSORS[code & 0xff];
+    }
+
+    /*
+     * Разбор посылки RX2164
+     */
+
+    public static int togl(byte[] frame)
+    {
+        return frame[RX_TOGL] & 63;
+    }
+
+    /**
+     * @return канал устройства, начиная с 1
+     */
+    public static byte channel(byte[] frame)
+    {
+        return (byte) (frame[RX_CHANNEL] + 1);
+    }
+
+    public static CommandType commandType(byte[] frame)
+    {
+        return commandType(frame[RX_COMMAND]);
+    }
+
+    public static DataFormat dataFormat(byte[] frame)
+    {
+        return dataFormat(frame[RX_FORMAT]);
+    }
+
+    /**
+     * Уровень для команды SET_LEVEL
+     */
+    public static int level(byte[] frame)
+    {
+        return frame[RX_DATA];
+    }
+
+    /**
+     * Температура для команды TEMP_HUMI.
+     * Информация о температуре, типе датчика и состоянии батареи размазана по 2 байтам
+     * @return температура в десятых долях градуса Цельсия
+     */
+    public static int temperatureRaw(byte[] frame)
+    {
+        int intTemp = ((frame[RX_DATA + 1] & 0x0f) << 8) + (frame[RX_DATA] & 0xff);
+
+        if (intTemp >= 0x800)
+        {
+            intTemp = intTemp - 0x1000;
+        }
+
+        return intTemp;
+    }
+
+    /**
+     * Влажность для команды TEMP_HUMI, хранится в третьем байте данных
+     */
+    public static int humidity(byte[] frame)
+    {
+        return frame[RX_DATA + 2] & 0xff;
+    }
+
+    /**
+     * Состояние аналогового датчика для команды TEMP_HUMI, хранится в четвертом байте данных
+     */
+    public static int analog(byte[] frame)
+    {
+        return frame[RX_DATA + 3] & 0xff;
+    }
+
+    /**
+     * Состояние батареи для команды TEMP_HUMI
+     */
+    public static BatteryState batteryState(byte[] frame)
+    {
+        return BATTERY[(frame[RX_DATA + 1] >> 7) & 1];
+    }
+
+    /**
+     * Тип датчика для команд TEMP_HUMI и BIND (если датчик передает свой тип)
+     * @return тип датчика или null
+     */
+    public static SensorType sensorType(byte[] frame)
+    {
+        CommandType type = commandType(frame);
+
+        if (type == CommandType.TEMP_HUMI)
+        {
+            return sensorType((frame[RX_DATA + 1] >> 4) & 7);
+        }
+        else if (type == CommandType.BIND && dataFormat(frame) == DataFormat.ONE_BYTE)
+        {
+            return sensorType(frame[RX_DATA]);
+        }
+
+        return null;
+    }
+
+    /*
+     * Кодирование посылок
+     */
+
+    /**
+     * Байт режима посылки PC11xx.
+     * Из количества повторов, битрейта и режима работы адаптера
+     * реально используется только количество повторов
+     * @param sendRepeat количество повторов
+     * @return байт режима
+     */
+    public static byte txMode(byte sendRepeat)
+    {
+        return (byte) (((sendRepeat & 0x3) << 6) + 0x30);
+    }
+
+    /**
+     * @param mode байт режима посылки PC11xx
+     * @return количество повторов, записанное в посылку
+     */
+    public static int txRepeat(byte mode)
+    {
+        return (mode >> 6) & 0x3;
+    }
+
+    /**
+     * Кодирует посылку передатчика PC11xx
+     * @param frame массив из 8 байт, заполняется полностью
+     * @param sendRepeat количество повторов
+     * @param command команда
+     * @param format формат данных
+     * @param channel канал, начиная с 0
+     * @param d0 первый байт данных
+     * @param d1 второй байт данных
+     * @param d2 третий байт данных
+     */
+    public static void encodeTx(byte[] frame, byte sendRepeat, CommandType command, DataFormat format, byte channel, byte d0, byte d1, byte d2)
+    {
+        frame[TX_MODE] = txMode(sendRepeat);
+        frame[TX_COMMAND] = (byte) command.getCode();
+        frame[TX_FORMAT] = (byte) format.ordinal();
+        frame[3] = 0;
+        frame[TX_CHANNEL] = channel;
+        frame[TX_DATA] = d0;
+        frame[TX_DATA + 1] = d1;
+        frame[TX_DATA + 2] = d2;
+    }
+
+    /**
+     * Упаковывает посылку в long, первый байт - старший, как в {@link java.nio.ByteBuffer#putLong(int, long)}
+     * с порядком байт по умолчанию
+     * @param frame массив из 8 байт
+     * @return посылка
+     */
+    public static long pack(byte[] frame)
+    {
+        long bits = 0;
+
+        for (int i = 0; i < FRAME_SIZE; i++)
+        {
+            bits = (bits << 8) | (frame[i] & 0xffL);
+        }
+
+        return bits;
+    }
+
+    /**
+     * Кодирует команду управления приемником RX2164
+     * @param frame массив из 8 байт, заполняется полностью
+     * @param mode команда (RX2164_BIND, RX2164_UNBIND, RX2164_UNBIND_ALL)
+     * @param channel канал приемника
+     */
+    public static void encodeRx2164(byte[] frame, byte mode, byte channel)
+    {
+        frame[0] = mode;
+        frame[1] = channel;
+
+        for (int i = 2; i < FRAME_SIZE; i++)
+        {
+            frame[i] = 0;
+        }
+    }
+
+    /**
+     * Кодирует параметры запроса api.htm Ethernet-шлюза PR1132.
+     * Нулевые параметры не передаются
+     * @param channel канал, начиная с 0
+     * @param command команда
+     * @param br уровень
+     * @param format формат данных или null
+     * @param d0 первый байт данных
+     * @param d1 второй байт данных
+     * @param d2 третий байт данных
+     * @param d3 четвертый байт данных
+     * @return строка параметров запроса
+     */
+    public static String encodeHttpQuery(byte channel, CommandType command, byte br, DataFormat format, byte d0, byte d1, byte d2, byte d3)
+    {
+        StringBuilder query = new StringBuilder(48);
+
+        query.append("ch=").append(channel).append("&cmd=").append(command.getCode());
+
+        if (br != 0)
+            query.append("&br=").append(br & 0xff);
+
+        if (format != null)
+            query.append("&fmt=").append(format.ordinal());
+
+        if (d0 != 0)
+            query.append("&d0=").append(d0 & 0xff);
+
+        if (d1 != 0)
+            query.append("&d1=").append(d1 & 0xff);
+
+        if (d2 != 0)
+            query.append("&d2=").append(d2 & 0xff);
+
+        if (d3 != 0)
+            query.append("&d3=").append(d3 & 0xff);
+
+        return query.toString();
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.gateway;
+
+import ru.iris.noolite4j.async.AsyncRunner;
+import ru.iris.noolite4j.async.CommandResult;
+import ru.iris.noolite4j.sender.GroupCommand;
+import ru.iris.noolite4j.watchers.CommandType;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Асинхронный фасад шлюза PR1132.
+ * Команды отправляются через неблокирующий HTTP-движок шлюза и не занимают поток на время запроса.
+ * Каждая команда возвращает {@link CompletableFuture} с {@link CommandResult},
+ * который никогда не завершается исключением - ошибка передается в результате
+ * @see PR1132#getHttpEngine()
+ */
+public class AsyncPR1132 {
+
+    private final PR1132 gateway;
+    private final Executor executor;
+
+    /**
+     * Использует общий исполнитель по умолчанию
+     * @param gateway устройство
+     */
+    public AsyncPR1132(PR1132 gateway)
+    {
+        this(gateway, AsyncRunner.defaultExecutor());
+    }
+
+    /**
+     * @param gateway устройство
+     * @param executor исполнитель, на котором завершаются результаты команд
+     */
+    public AsyncPR1132(PR1132 gateway, Executor executor)
+    {
+        if (executor == null)
+        {
+            throw new IllegalArgumentException("Не задан исполнитель");
+        }
+
+        this.gateway = gateway;
+        this.executor = executor;
+    }
+
+    public PR1132 getPR1132()
+    {
+        return gateway;
+    }
+
+    /**
+     * Включает силовой блок
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> turnOn(final byte channel)
+    {
+        return apply("turnOn", channel, GroupCommand.turnOn());
+    }
+
+    /**
+     * Медленно включает диммируемую нагрузку
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> slowTurnOn(final byte channel)
+    {
+        return apply("slowTurnOn", channel, GroupCommand.slowTurnOn());
+    }
+
+    /**
+     * Медленно выключает диммируемую нагрузку
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> slowTurnOff(final byte channel)
+    {
+        return apply("slowTurnOff", channel, GroupCommand.slowTurnOff());
+    }
+
+    /**
+     * Переключает нагрузку (вкл/выкл)
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> toggle(final byte channel)
+    {
+        return apply("toggle", channel, GroupCommand.toggle());
+    }
+
+    /**
+     * Запускает плавное изменение яркости в обратном направлении
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> revertSlowTurn(final byte channel)
+    {
+        return apply("revertSlowTurn", channel, GroupCommand.revertSlowTurn());
+    }
+
+    /**
+     * Останавливает регулировку яркости
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> stopDimBright(final byte channel)
+    {
+        return apply("stopDimBright", channel, GroupCommand.stopDimBright());
+    }
+
+    /**
+     * Включает плавный перебор цвета
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> slowRGBChange(final byte channel)
+    {
+        return apply("slowRGBChange", channel, GroupCommand.slowRGBChange());
+    }
+
+    /**
+     * Переключает цвет
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> colorChange(final byte channel)
+    {
+        return apply("colorChange", channel, GroupCommand.colorChange());
+    }
+
+    /**
+     * Переключает режим работы RGB-контроллера
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> switchRGBMode(final byte channel)
+    {
+        return apply("switchRGBMode", channel, GroupCommand.switchRGBMode());
+    }
+
+    /**
+     * Переключает скорость эффекта RGB-контроллера
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> switchSpeedRGBMode(final byte channel)
+    {
+        return apply("switchSpeedRGBMode", channel, GroupCommand.switchSpeedRGBMode());
+    }
+
+    /**
+     * Выключает силовой блок
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> turnOff(final byte channel)
+    {
+        return apply("turnOff", channel, GroupCommand.turnOff());
+    }
+
+    /**
+     * Устанавливает уровень на диммируемом силовом блоке
+     * @param channel канал диммера
+     * @param level выставляемый уровень
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> setLevel(final byte channel, final byte level)
+    {
+        return apply("setLevel", channel, GroupCommand.setLevel(level));
+    }
+
+    /**
+     * Устанавливает яркость для каждого цвета RGB-контроллера
+     * @param channel канал нагрузки
+     * @param R яркость канала 1
+     * @param G яркость канала 2
+     * @param B яркость канала 3
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> setLevelRGB(final byte channel, final byte R, final byte G, final byte B)
+    {
+        return apply("setLevelRGB", channel, GroupCommand.setLevelRGB(R, G, B));
+    }
+
+    /**
+     * Вызывает записанный сценарий
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> callScene()
+    {
+        return send("callScene", CommandType.RUN_SCENE, (byte) 0);
+    }
+
+    /**
+     * Записывает сценарий
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> recordScene()
+    {
+        return send("recordScene", CommandType.RECORD_SCENE, (byte) 0);
+    }
+
+    /**
+     * Привязывает устройство к каналу
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> bindChannel(final byte channel)
+    {
+        return send("bindChannel", CommandType.BIND, channel);
+    }
+
+    /**
+     * Отвязывает устройство от канала
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> unbindChannel(final byte channel)
+    {
+        return send("unbindChannel", CommandType.UNBIND, channel);
+    }
+
+    /**
+     * Запрашивает текущие значения сенсоров
+     * @return список сенсоров
+     */
+    public CompletableFuture<List<Sensor>> getSensors()
+    {
+        return gateway.getSensorsAsync().thenApplyAsync(new Function<List<Sensor>, List<Sensor>>() {
+            @Override
+            public List<Sensor> apply(List<Sensor> sensors) {
+                return sensors;
+            }
+        }, executor);
+    }
+
+    /**
+     * Выполняет команду на одном канале
+     * @param name название команды для результата
+     * @param channel канал, начиная с 1
+     * @param command команда
+     * @return результат
+     */
+    private CompletableFuture<CommandResult> apply(String name, byte channel, GroupCommand command)
+    {
+        long startTime = System.currentTimeMillis();
+        long start = System.nanoTime();
+
+        try
+        {
+            return result(name, gateway.deliverAsync(channel, command), startTime, start);
+        }
+        catch (RuntimeException e)
+        {
+            return CompletableFuture.completedFuture(new CommandResult(name, false, e, 0, startTime, 0));
+        }
+    }
+
+    /**
+     * Отправляет команду без данных
+     * @param name название команды для результата
+     * @param type команда
+     * @param channel канал в том виде, в котором он передается шлюзу
+     * @return результат
+     */
+    private CompletableFuture<CommandResult> send(String name, CommandType type, byte channel)
+    {
+        long startTime = System.currentTimeMillis();
+        long start = System.nanoTime();
+
+        try
+        {
+            return result(name, gateway.deliverAsync(type, channel), startTime, start);
+        }
+        catch (RuntimeException e)
+        {
+            return CompletableFuture.completedFuture(new CommandResult(name, false, e, 0, startTime, 0));
+        }
+    }
+
+    /**
+     * Шлюз не повторяет команды: каждая команда - один HTTP-запрос.
+     * Если запрос не был отправлен из-за неверного канала, попыток не было
+     */
+    private CompletableFuture<CommandResult> result(final String name, CompletableFuture<Void> sent, final long startTime, final long start)
+    {
+        return sent.handleAsync(new BiFunction<Void, Throwable, CommandResult>() {
+            @Override
+            public CommandResult apply(Void done, Throwable e) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                int attempts = cause instanceof IllegalArgumentException ? 0 : 1;
+                return new CommandResult(name, e == null, cause, attempts, startTime, System.nanoTime() - start);
+            }
+        }, executor);
+    }
+}
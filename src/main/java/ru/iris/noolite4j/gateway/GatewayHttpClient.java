@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.iris.noolite4j.gateway;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP-клиент шлюза PR1132 с пулом постоянных (keep-alive) соединений.
+ * Соединение с шлюзом устанавливается один раз и используется повторно,
+ * тело каждого ответа вычитывается до конца, чтобы соединение вернулось в пул
+ */
+public class GatewayHttpClient implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GatewayHttpClient.class.getName());
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 5000;
+
+    /**
+     * Встроенный веб-сервер шлюза плохо переносит параллельные запросы
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 2;
+
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final int maxConnections;
+    private final int maxTotal;
+    private final PoolingHttpClientConnectionManager manager;
+    private final CloseableHttpClient client;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+
+    public GatewayHttpClient()
+    {
+        this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param connectTimeoutMs время ожидания соединения (и свободного соединения в пуле), мс
+     * @param readTimeoutMs время ожидания ответа, мс
+     * @param maxConnections максимальное количество соединений с шлюзом
+     */
+    public GatewayHttpClient(int connectTimeoutMs, int readTimeoutMs, int maxConnections)
+    {
+        this(connectTimeoutMs, readTimeoutMs, maxConnections, maxConnections);
+    }
+
+    /**
+     * Клиент, общий для нескольких шлюзов
+     * @param connectTimeoutMs время ожидания соединения (и свободного соединения в пуле), мс
+     * @param readTimeoutMs время ожидания ответа, мс
+     * @param maxConnections максимальное количество соединений с одним шлюзом
+     * @param maxTotal максимальное количество соединений со всеми шлюзами
+     */
+    public GatewayHttpClient(int connectTimeoutMs, int readTimeoutMs, int maxConnections, int maxTotal)
+    {
+        if (connectTimeoutMs < 0 || readTimeoutMs < 0)
+        {
+            throw new IllegalArgumentException("Время ожидания не может быть отрицательным");
+        }
+
+        if (maxConnections < 1 || maxTotal < maxConnections)
+        {
+            throw new IllegalArgumentException("Нужно хотя бы одно соединение, и общий предел не меньше предела для шлюза");
+        }
+
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.maxConnections = maxConnections;
+        this.maxTotal = maxTotal;
+
+        /**
+         * Считаем открытые соединения, чтобы видеть долю повторного использования
+         */
+        manager = new PoolingHttpClientConnectionManager(new HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection>() {
+            @Override
+            public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+                connections.incrementAndGet();
+                return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+            }
+        });
+        manager.setMaxTotal(maxTotal);
+        manager.setDefaultMaxPerRoute(maxConnections);
+        manager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoTimeout(readTimeoutMs)
+                .setTcpNoDelay(true)
+                .build());
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMs)
+                .setConnectionRequestTimeout(connectTimeoutMs)
+                .setSocketTimeout(readTimeoutMs)
+                .build();
+
+        client = HttpClients.custom()
+                .setConnectionManager(manager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+    }
+
+    /**
+     * Выполняет GET-запрос, ответ вычитывается и отбрасывается
+     * @param uri адрес
+     * @return код ответа
+     * @throws IOException ошибка соединения
+     */
+    int get(String uri) throws IOException
+    {
+        requests.incrementAndGet();
+
+        try (CloseableHttpResponse response = client.execute(new HttpGet(uri)))
+        {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    /**
+     * Выполняет GET-запрос и возвращает тело ответа
+     * @param uri адрес
+     * @return тело ответа
+     * @throws IOException ошибка соединения или код ответа, отличный от 200
+     */
+    byte[] fetch(String uri) throws IOException
+    {
+        requests.incrementAndGet();
+
+        try (CloseableHttpResponse response = client.execute(new HttpGet(uri)))
+        {
+            HttpEntity entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+
+            if (status != HttpStatus.SC_OK)
+            {
+                EntityUtils.consume(entity);
+                throw new IOException("Шлюз вернул код " + status + " на запрос " + uri);
+            }
+
+            return entity == null ? new byte[0] : EntityUtils.toByteArray(entity);
+        }
+    }
+
+    public int getConnectTimeout()
+    {
+        return connectTimeoutMs;
+    }
+
+    public int getReadTimeout()
+    {
+        return readTimeoutMs;
+    }
+
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    public int getMaxTotal()
+    {
+        return maxTotal;
+    }
+
+    /**
+     * @return состояние пула: занятые, свободные и ожидающие соединения
+     */
+    public PoolStats getPoolStats()
+    {
+        return manager.getTotalStats();
+    }
+
+    /**
+     * @return количество выполненных запросов
+     */
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * @return количество открытых за все время соединений
+     */
+    public long getConnectionCount()
+    {
+        return connections.get();
+    }
+
+    /**
+     * @return доля запросов, выполненных на уже открытом соединении, от 0 до 1
+     */
+    public double getReuseRate()
+    {
+        long total = requests.get();
+
+        if (total == 0)
+        {
+            return 0;
+        }
+
+        return Math.max(0, total - connections.get()) / (double) total;
+    }
+
+    /**
+     * Закрывает все соединения пула
+     */
+    @Override
+    public void close()
+    {
+        try
+        {
+            client.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Ошибка при закрытии HTTP-клиента PR1132: " + e.getMessage());
+        }
+
+        manager.shutdown();
+    }
+}
@@ -17,25 +17,20 @@
 package ru.iris.noolite4j.gateway;
 
 import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import ru.iris.noolite4j.codec.FrameCodec;
 import ru.iris.noolite4j.watchers.CommandType;
 import ru.iris.noolite4j.watchers.DataFormat;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.IOException;
-import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -52,39 +47,37 @@ public class HTTPCommand {
     private byte d2;
     private byte d3;
 
+    private final PR1132 gateway;
+
+    /**
+     * Команда шлюзу по умолчанию, адрес которого задан {@link PR1132#setHost(String)}
+     * @deprecated используйте {@link #HTTPCommand(PR1132)}
+     */
+    @Deprecated
+    public HTTPCommand()
+    {
+        this(PR1132.defaultGateway());
+    }
+
+    /**
+     * @param gateway шлюз, через HTTP-клиент которого отправляется команда
+     */
+    public HTTPCommand(PR1132 gateway)
+    {
+        this.gateway = gateway;
+    }
+
     /**
      * Шлет данные на сервер R1132
      * @return успешно или нет
      */
     public boolean send() {
 
-        String buildUrl = "http://" + PR1132.getHost() + "/api.htm?ch=" + channel + "&cmd=" + cmd.ordinal();
-
-        if(br != 0)
-            buildUrl += "&br=" + (br & 0xff);
-
-        if(fmt != null)
-            buildUrl += "&fmt=" + fmt.ordinal();
-
-        if(d0 != 0)
-            buildUrl += "&d0=" + (d0 & 0xff);
-
-        if(d1 != 0)
-            buildUrl += "&d1=" + (d1 & 0xff);
-
-        if(d2 != 0)
-            buildUrl += "&d2=" + (d2 & 0xff);
-
-        if(d3 != 0)
-            buildUrl += "&d3=" + (d3 & 0xff);
+        String buildUrl = "http://" + gateway.getAddress() + "/api.htm?" + FrameCodec.encodeHttpQuery(channel, cmd, br, fmt, d0, d1, d2, d3);
 
         try
         {
-            CloseableHttpClient httpclient = HttpClients.createDefault();
-            HttpGet httpget = new HttpGet(buildUrl);
-            CloseableHttpResponse response = httpclient.execute(httpget);
-
-            return response.getStatusLine().getStatusCode() == HttpStatus.SC_OK;
+            return gateway.getHttpClient().get(buildUrl) == HttpStatus.SC_OK;
 
         } catch (IOException e)
         {
@@ -95,109 +88,119 @@ public class HTTPCommand {
         return false;
     }
 
+    /**
+     * Шлет данные на сервер R1132 через неблокирующий движок шлюза
+     * @return успешно или нет, future не завершается исключением
+     */
+    public CompletableFuture<Boolean> sendAsync()
+    {
+        return deliverAsync().handle(new BiFunction<Void, Throwable, Boolean>() {
+            @Override
+            public Boolean apply(Void done, Throwable e) {
+                if (e != null)
+                {
+                    LOGGER.error("Произошла ошибка при отправке команды PR1132: " + e.getMessage());
+                    return false;
+                }
+
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Шлет данные на сервер R1132 через неблокирующий движок шлюза
+     * @return future завершается исключением при ошибке соединения или если шлюз не вернул код 200
+     */
+    CompletableFuture<Void> deliverAsync()
+    {
+        String path = "/api.htm?" + FrameCodec.encodeHttpQuery(channel, cmd, br, fmt, d0, d1, d2, d3);
+
+        return gateway.getHttpEngine().get(gateway.endpoint(), path).thenAccept(new Consumer<HttpReply>() {
+            @Override
+            public void accept(HttpReply reply) {
+                if (reply.getStatus() != HttpStatus.SC_OK)
+                {
+                    throw new CompletionException(new IOException("Шлюз вернул код " + reply.getStatus() + " на команду " + cmd));
+                }
+            }
+        });
+    }
+
     /**
      * Возвращает текущие значения сенсоров
      * @return список сенсоров
      */
     public List<Sensor> getSensors()
     {
-        List<Sensor> sensors = new ArrayList<>();
+        try
+        {
+            return parseSensors(gateway.getHttpClient().fetch("http://" + gateway.getAddress() + "/sens.xml"));
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("Произошла разборе данных с датчиков на PR1132: " + e.getMessage());
+            e.printStackTrace();
+        }
 
-            try {
+        return new ArrayList<>();
+    }
 
-                DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-                DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-                Document doc = dBuilder.parse("http://" + PR1132.getHost() + "/sens.xml");
+    /**
+     * Запрашивает текущие значения сенсоров через неблокирующий движок шлюза
+     * @return список сенсоров, при ошибке пустой; future не завершается исключением
+     */
+    public CompletableFuture<List<Sensor>> getSensorsAsync()
+    {
+        return fetchSensorsAsync().handle(new BiFunction<List<Sensor>, Throwable, List<Sensor>>() {
+            @Override
+            public List<Sensor> apply(List<Sensor> sensors, Throwable e) {
+                if (e != null)
+                {
+                    LOGGER.error("Произошла ошибка при запросе данных с датчиков PR1132: " + e.getMessage());
+                    return new ArrayList<>();
+                }
 
-                doc.getDocumentElement().normalize();
+                return sensors;
+            }
+        });
+    }
 
-                String text = doc.getDocumentElement().getTextContent();
-                String[] values = text.split("\n");
+    /**
+     * Запрашивает текущие значения сенсоров через неблокирующий движок шлюза
+     * @return список сенсоров; при ошибке соединения или разбора future завершается исключением
+     */
+    CompletableFuture<List<Sensor>> fetchSensorsAsync()
+    {
+        return gateway.getHttpEngine().get(gateway.endpoint(), "/sens.xml").thenApply(new Function<HttpReply, List<Sensor>>() {
+            @Override
+            public List<Sensor> apply(HttpReply reply) {
+                if (reply.getStatus() != HttpStatus.SC_OK)
+                {
+                    throw new CompletionException(new IOException("Шлюз вернул код " + reply.getStatus() + " на запрос sens.xml"));
+                }
 
-                for (int idx = 1; idx <= values.length - 1; idx++)
+                try
                 {
-                    if(values[idx].isEmpty())
-                        continue;
-
-                    double value = 0;
-
-                    if(!values[idx].equals("-")) {
-                        NumberFormat format = NumberFormat.getInstance();
-                        Number number = format.parse(values[idx]);
-                        value = number.doubleValue();
-                    }
-
-                    /**
-                     * Найдем канал и связанный с ним сенсор
-                     */
-
-                    byte channel = 0;
-
-                    if(idx <= 3)
-                        channel = 1;
-                    else if(idx >= 4 && idx <= 6)
-                        channel = 2;
-                    else if(idx >= 7 && idx <= 9)
-                        channel = 3;
-                    else if(idx >= 10 && idx <= 12)
-                        channel = 4;
-
-                    Sensor sensor;
-
-                    if(sensors.size() >= channel) {
-                        sensor = sensors.get(channel-1);
-                    }
-                    else
-                    {
-                        sensor = new Sensor();
-                    }
-
-                    if(sensor == null)
-                        sensor = new Sensor();
-
-                    sensor.setChannel(channel);
-
-                    /**
-                     * Определим тип данных
-                     */
-
-                    if(idx == 1 || idx == 4 || idx == 7 || idx == 10)
-                    {
-                        value /= 10;
-                        sensor.setTemperature(value);
-                    }
-                    else if(idx == 2 || idx == 5 || idx == 8 || idx == 11)
-                    {
-                        sensor.setHumidity((byte)value);
-                    }
-                    else if(idx == 3 || idx == 6 || idx == 9 || idx == 12)
-                    {
-                        sensor.setState(SensorState.values()[(int) value]);
-                    }
-
-                    boolean isNew = true;
-
-                    for(int i = 0; i < sensors.size(); i++)
-                    {
-                        if(sensors.get(i).getChannel() == sensor.getChannel()) {
-                            sensors.remove(i);
-                            sensors.add(i, sensor);
-                            isNew = false;
-                        }
-                    }
-
-                    if(isNew)
-                    {
-                        sensors.add(sensor);
-                    }
+                    return parseSensors(reply.getBody());
+                }
+                catch (Exception e)
+                {
+                    throw new CompletionException(e);
                 }
-            } catch (Exception e) {
-                LOGGER.error("Произошла разборе данных с датчиков на PR1132: " + e.getMessage());
-                e.printStackTrace();
             }
+        });
+    }
 
-        return sensors;
-
+    /**
+     * Разбирает sens.xml
+     * @param xml содержимое sens.xml
+     * @return список сенсоров
+     * @throws IOException некорректное значение
+     */
+    private List<Sensor> parseSensors(byte[] xml) throws IOException
+    {
+        return SensorXmlParser.parse(xml, gateway.getAvailableRXChannels());
     }
 
     public byte getChannel() {
@@ -0,0 +1,969 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.iris.noolite4j.gateway;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.iris.noolite4j.async.AsyncRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Неблокирующий HTTP-движок для шлюзов PR1132.
+ * Запросы ко всем шлюзам обслуживает один поток с селектором, поэтому сотни
+ * одновременных запросов не занимают сотни потоков. Количество одновременных
+ * запросов к одному шлюзу ограничено (встроенный веб-сервер шлюза плохо переносит
+ * параллельную нагрузку), остальные ждут в очереди шлюза.
+ * Соединения с шлюзом переиспользуются (keep-alive)
+ */
+public class NioHttpEngine implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioHttpEngine.class.getName());
+    private static final long TICK_MS = 50L;
+    private static final long IDLE_TIMEOUT_MS = 15000L;
+    private static final int MAX_RESPONSE_SIZE = 1 << 20;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    private static volatile NioHttpEngine shared;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Executor callbackExecutor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Set<Connection> connections = new HashSet<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean running = true;
+    private long lastExpire = 0;
+
+    /**
+     * Future завершаются на общем исполнителе по умолчанию
+     * @see AsyncRunner#defaultExecutor()
+     */
+    public NioHttpEngine()
+    {
+        this(AsyncRunner.defaultExecutor());
+    }
+
+    /**
+     * @param callbackExecutor исполнитель, на котором завершаются future.
+     * Поток селектора не выполняет пользовательский код
+     */
+    public NioHttpEngine(Executor callbackExecutor)
+    {
+        if (callbackExecutor == null)
+        {
+            throw new IllegalArgumentException("Не задан исполнитель");
+        }
+
+        this.callbackExecutor = callbackExecutor;
+
+        try
+        {
+            selector = Selector.open();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Не удалось открыть селектор", e);
+        }
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "PR1132 NIO");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Общий движок для всех шлюзов, создается при первом обращении
+     * @return движок
+     */
+    public static NioHttpEngine shared()
+    {
+        NioHttpEngine engine = shared;
+
+        if (engine == null || !engine.running)
+        {
+            synchronized (NioHttpEngine.class)
+            {
+                engine = shared;
+
+                if (engine == null || !engine.running)
+                {
+                    engine = new NioHttpEngine();
+                    shared = engine;
+                }
+            }
+        }
+
+        return engine;
+    }
+
+    /**
+     * @param host адрес шлюза, host или host:port
+     * @return очередь запросов к шлюзу
+     */
+    Endpoint endpoint(String host)
+    {
+        return endpoints.computeIfAbsent(host, new Function<String, Endpoint>() {
+            @Override
+            public Endpoint apply(String host) {
+                return new Endpoint(host);
+            }
+        });
+    }
+
+    /**
+     * Задает ограничения для шлюза
+     * @param endpoint шлюз
+     * @param maxInFlight максимальное количество одновременных запросов
+     * @param connectTimeoutMs время ожидания соединения, мс, 0 - без ограничения
+     * @param readTimeoutMs время ожидания ответа, мс, 0 - без ограничения
+     */
+    void configure(final Endpoint endpoint, int maxInFlight, int connectTimeoutMs, int readTimeoutMs)
+    {
+        endpoint.maxInFlight = maxInFlight;
+        endpoint.connectTimeoutMs = connectTimeoutMs;
+        endpoint.readTimeoutMs = readTimeoutMs;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                dispatch(endpoint);
+            }
+        });
+    }
+
+    /**
+     * Ставит GET-запрос в очередь шлюза
+     * @param endpoint шлюз
+     * @param path путь с параметрами
+     * @return ответ; при ошибке соединения или истечении времени future завершается исключением
+     */
+    CompletableFuture<HttpReply> get(final Endpoint endpoint, String path)
+    {
+        CompletableFuture<HttpReply> future = new CompletableFuture<>();
+
+        if (!running)
+        {
+            future.completeExceptionally(new IOException("HTTP-движок остановлен"));
+            return future;
+        }
+
+        byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + endpoint.host + "\r\nConnection: keep-alive\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        final Exchange exchange = new Exchange(endpoint, request, future);
+
+        requests.incrementAndGet();
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                endpoint.pending.add(exchange);
+                endpoint.queued = endpoint.pending.size();
+                dispatch(endpoint);
+            }
+        });
+
+        return future;
+    }
+
+    private void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void loop()
+    {
+        while (running)
+        {
+            try
+            {
+                selector.select(TICK_MS);
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+
+                expire(System.currentTimeMillis());
+            }
+            catch (IOException | RuntimeException e)
+            {
+                LOGGER.error("Ошибка в потоке HTTP-движка PR1132: " + e.getMessage());
+            }
+        }
+
+        shutdown();
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.error("Ошибка в потоке HTTP-движка PR1132: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(SelectionKey key)
+    {
+        Connection connection = (Connection) key.attachment();
+
+        if (!key.isValid())
+        {
+            return;
+        }
+
+        try
+        {
+            if (key.isConnectable())
+            {
+                connection.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+                connection.exchange.deadline = deadline(connection.endpoint.readTimeoutMs);
+            }
+
+            if (key.isValid() && key.isWritable())
+            {
+                onWrite(connection);
+            }
+
+            if (key.isValid() && key.isReadable())
+            {
+                onRead(connection);
+            }
+        }
+        catch (IOException e)
+        {
+            onError(connection, e);
+        }
+    }
+
+    /**
+     * Запускает запросы из очереди шлюза, пока не достигнуто ограничение
+     */
+    private void dispatch(Endpoint endpoint)
+    {
+        while (endpoint.inFlight < endpoint.maxInFlight && !endpoint.pending.isEmpty())
+        {
+            Exchange exchange = endpoint.pending.poll();
+            endpoint.queued = endpoint.pending.size();
+            endpoint.inFlight++;
+            start(exchange, false);
+        }
+    }
+
+    /**
+     * Отправляет запрос через свободное или новое соединение
+     * @param fresh не использовать свободные соединения
+     * @return удалось ли начать отправку
+     */
+    private boolean start(Exchange exchange, boolean fresh)
+    {
+        Endpoint endpoint = exchange.endpoint;
+        Connection connection = fresh ? null : endpoint.idle.pollLast();
+
+        try
+        {
+            if (connection == null)
+            {
+                connection = open(endpoint);
+                exchange.deadline = deadline(endpoint.connectTimeoutMs);
+            }
+            else
+            {
+                connection.reused = true;
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+                exchange.deadline = deadline(endpoint.readTimeoutMs);
+            }
+        }
+        catch (IOException e)
+        {
+            endpoint.inFlight--;
+            complete(exchange, null, e);
+            return false;
+        }
+
+        exchange.out = ByteBuffer.wrap(exchange.request);
+        connection.begin(exchange);
+        return true;
+    }
+
+    /**
+     * Открывает соединение со шлюзом.
+     * Имя шлюза разрешается заново для каждого нового соединения, чтобы смена адреса в DNS
+     * учитывалась без перезапуска; повторные запросы к DNS ограничивает кэш адресов JVM,
+     * а соединения переиспользуются, поэтому новые открываются редко
+     */
+    private Connection open(Endpoint endpoint) throws IOException
+    {
+        InetSocketAddress address = new InetSocketAddress(endpoint.name, endpoint.port);
+
+        if (address.isUnresolved())
+        {
+            throw new IOException("Не удалось определить адрес шлюза " + endpoint.host);
+        }
+
+        SocketChannel channel = SocketChannel.open();
+
+        try
+        {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            boolean connected = channel.connect(address);
+            Connection connection = new Connection(endpoint, channel);
+            connection.key = channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, connection);
+
+            connections.add(connection);
+            opened.incrementAndGet();
+            return connection;
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void onWrite(Connection connection) throws IOException
+    {
+        Exchange exchange = connection.exchange;
+        connection.channel.write(exchange.out);
+
+        if (!exchange.out.hasRemaining())
+        {
+            connection.key.interestOps(SelectionKey.OP_READ);
+            exchange.deadline = deadline(connection.endpoint.readTimeoutMs);
+        }
+    }
+
+    private void onRead(Connection connection) throws IOException
+    {
+        if (!connection.in.hasRemaining())
+        {
+            if (connection.in.capacity() >= MAX_RESPONSE_SIZE)
+            {
+                throw new IOException("Слишком большой ответ шлюза " + connection.endpoint.host);
+            }
+
+            ByteBuffer larger = ByteBuffer.allocate(connection.in.capacity() * 2);
+            connection.in.flip();
+            larger.put(connection.in);
+            connection.in = larger;
+        }
+
+        int read = connection.channel.read(connection.in);
+
+        /**
+         * Свободное соединение закрыто шлюзом
+         */
+        if (connection.exchange == null)
+        {
+            connection.endpoint.idle.remove(connection);
+            close(connection);
+            return;
+        }
+
+        if (read < 0)
+        {
+            if (connection.headerEnd > 0 && connection.contentLength < 0 && !connection.chunked)
+            {
+                byte[] body = Arrays.copyOfRange(connection.in.array(), connection.headerEnd, connection.in.position());
+                finish(connection, new HttpReply(connection.status, body), null);
+            }
+            else
+            {
+                onError(connection, new IOException("Шлюз " + connection.endpoint.host + " закрыл соединение"));
+            }
+
+            return;
+        }
+
+        if (read > 0)
+        {
+            connection.exchange.deadline = deadline(connection.endpoint.readTimeoutMs);
+            HttpReply reply = parse(connection);
+
+            if (reply != null)
+            {
+                finish(connection, reply, null);
+            }
+        }
+    }
+
+    /**
+     * Ошибка соединения. Если шлюз закрыл переиспользуемое соединение до ответа,
+     * запрос один раз повторяется на новом соединении
+     */
+    private void onError(Connection connection, IOException error)
+    {
+        Exchange exchange = connection.exchange;
+
+        if (exchange == null)
+        {
+            connection.endpoint.idle.remove(connection);
+            close(connection);
+            return;
+        }
+
+        if (connection.reused && !exchange.retried && connection.in.position() == 0)
+        {
+            LOGGER.debug("Соединение с шлюзом {} закрыто, запрос повторяется", connection.endpoint.host);
+
+            exchange.retried = true;
+            connection.exchange = null;
+            close(connection);
+
+            if (!start(exchange, true))
+            {
+                dispatch(exchange.endpoint);
+            }
+
+            return;
+        }
+
+        finish(connection, null, error);
+    }
+
+    /**
+     * Завершает запрос и запускает следующий из очереди шлюза
+     */
+    private void finish(Connection connection, HttpReply reply, IOException error)
+    {
+        Exchange exchange = connection.exchange;
+        Endpoint endpoint = connection.endpoint;
+        connection.exchange = null;
+
+        if (error == null && connection.keepAlive)
+        {
+            connection.idleSince = System.currentTimeMillis();
+            connection.key.interestOps(SelectionKey.OP_READ);
+            endpoint.idle.add(connection);
+        }
+        else
+        {
+            close(connection);
+        }
+
+        endpoint.inFlight--;
+        complete(exchange, reply, error);
+        dispatch(endpoint);
+    }
+
+    private void complete(final Exchange exchange, final HttpReply reply, final IOException error)
+    {
+        if (error != null)
+        {
+            failures.incrementAndGet();
+        }
+
+        Runnable completion = new Runnable() {
+            @Override
+            public void run() {
+                if (error != null)
+                {
+                    exchange.future.completeExceptionally(error);
+                }
+                else
+                {
+                    exchange.future.complete(reply);
+                }
+            }
+        };
+
+        try
+        {
+            callbackExecutor.execute(completion);
+        }
+        catch (RejectedExecutionException e)
+        {
+            completion.run();
+        }
+    }
+
+    private void expire(long now)
+    {
+        if (now - lastExpire < TICK_MS)
+        {
+            return;
+        }
+
+        lastExpire = now;
+
+        for (Connection connection : new ArrayList<>(connections))
+        {
+            Exchange exchange = connection.exchange;
+
+            if (exchange != null)
+            {
+                if (exchange.deadline > 0 && now > exchange.deadline)
+                {
+                    finish(connection, null, new SocketTimeoutException("Шлюз " + connection.endpoint.host + " не ответил вовремя"));
+                }
+            }
+            else if (now - connection.idleSince > IDLE_TIMEOUT_MS)
+            {
+                connection.endpoint.idle.remove(connection);
+                close(connection);
+            }
+        }
+    }
+
+    private void close(Connection connection)
+    {
+        connections.remove(connection);
+        connection.key.cancel();
+
+        try
+        {
+            connection.channel.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.debug("Ошибка при закрытии соединения с шлюзом {}: {}", connection.endpoint.host, e.getMessage());
+        }
+    }
+
+    private void shutdown()
+    {
+        runTasks();
+
+        IOException stopped = new IOException("HTTP-движок остановлен");
+
+        for (Endpoint endpoint : endpoints.values())
+        {
+            for (Exchange exchange : endpoint.pending)
+            {
+                complete(exchange, null, stopped);
+            }
+
+            endpoint.pending.clear();
+            endpoint.idle.clear();
+            endpoint.queued = 0;
+            endpoint.inFlight = 0;
+        }
+
+        for (Connection connection : new ArrayList<>(connections))
+        {
+            if (connection.exchange != null)
+            {
+                complete(connection.exchange, null, stopped);
+            }
+
+            close(connection);
+        }
+
+        try
+        {
+            selector.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Ошибка при закрытии селектора: " + e.getMessage());
+        }
+    }
+
+    private static long deadline(int timeoutMs)
+    {
+        return timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : 0;
+    }
+
+    /**
+     * Разбирает накопленный ответ
+     * @return ответ или null, если он получен не полностью
+     */
+    private static HttpReply parse(Connection connection) throws IOException
+    {
+        byte[] data = connection.in.array();
+        int length = connection.in.position();
+
+        if (connection.headerEnd < 0)
+        {
+            int end = indexOf(data, 0, length, HEADER_END);
+
+            if (end < 0)
+            {
+                return null;
+            }
+
+            connection.headerEnd = end + HEADER_END.length;
+
+            String[] lines = new String(data, 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] statusLine = lines[0].split(" ");
+
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/"))
+            {
+                throw new IOException("Некорректный ответ шлюза: " + lines[0]);
+            }
+
+            try
+            {
+                connection.status = Integer.parseInt(statusLine[1]);
+
+                connection.keepAlive = statusLine[0].equals("HTTP/1.1");
+
+                for (int i = 1; i < lines.length; i++)
+                {
+                    int colon = lines[i].indexOf(':');
+
+                    if (colon < 0)
+                    {
+                        continue;
+                    }
+
+                    String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                    String value = lines[i].substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+
+                    if (name.equals("content-length"))
+                    {
+                        connection.contentLength = Integer.parseInt(value);
+                    }
+                    else if (name.equals("transfer-encoding") && value.contains("chunked"))
+                    {
+                        connection.chunked = true;
+                    }
+                    else if (name.equals("connection"))
+                    {
+                        connection.keepAlive = value.equals("keep-alive");
+                    }
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException("Некорректный заголовок ответа шлюза: " + e.getMessage());
+            }
+
+            /**
+             * Без длины тело ответа читается до закрытия соединения
+             */
+            if (connection.contentLength < 0 && !connection.chunked)
+            {
+                connection.keepAlive = false;
+            }
+        }
+
+        if (connection.chunked)
+        {
+            byte[] body = decodeChunked(data, connection.headerEnd, length);
+            return body == null ? null : new HttpReply(connection.status, body);
+        }
+
+        if (connection.contentLength >= 0 && length - connection.headerEnd >= connection.contentLength)
+        {
+            byte[] body = Arrays.copyOfRange(data, connection.headerEnd, connection.headerEnd + connection.contentLength);
+            return new HttpReply(connection.status, body);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return тело ответа или null, если оно получено не полностью
+     */
+    private static byte[] decodeChunked(byte[] data, int from, int length) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int pos = from;
+
+        while (true)
+        {
+            int lineEnd = indexOf(data, pos, length, CRLF);
+
+            if (lineEnd < 0)
+            {
+                return null;
+            }
+
+            String line = new String(data, pos, lineEnd - pos, StandardCharsets.ISO_8859_1);
+            int extension = line.indexOf(';');
+            int size;
+
+            try
+            {
+                size = Integer.parseInt((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException("Некорректный размер блока в ответе шлюза: " + line);
+            }
+
+            pos = lineEnd + CRLF.length;
+
+            if (size == 0)
+            {
+                return indexOf(data, pos - CRLF.length, length, HEADER_END) < 0 ? null : body.toByteArray();
+            }
+
+            if (length < pos + size + CRLF.length)
+            {
+                return null;
+            }
+
+            body.write(data, pos, size);
+            pos += size + CRLF.length;
+        }
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern)
+    {
+        for (int i = from; i <= to - pattern.length; i++)
+        {
+            int j = 0;
+
+            while (j < pattern.length && data[i + j] == pattern[j])
+            {
+                j++;
+            }
+
+            if (j == pattern.length)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return количество принятых запросов
+     */
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * @return количество открытых за все время соединений
+     */
+    public long getConnectionCount()
+    {
+        return opened.get();
+    }
+
+    /**
+     * @return количество запросов, завершившихся ошибкой
+     */
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    /**
+     * @return количество выполняющихся запросов ко всем шлюзам
+     */
+    public int getInFlight()
+    {
+        int total = 0;
+
+        for (Endpoint endpoint : endpoints.values())
+        {
+            total += endpoint.inFlight;
+        }
+
+        return total;
+    }
+
+    /**
+     * @return количество запросов, ожидающих в очередях шлюзов
+     */
+    public int getQueued()
+    {
+        int total = 0;
+
+        for (Endpoint endpoint : endpoints.values())
+        {
+            total += endpoint.queued;
+        }
+
+        return total;
+    }
+
+    /**
+     * Останавливает движок, незавершенные запросы завершаются исключением
+     */
+    @Override
+    public void close()
+    {
+        running = false;
+        selector.wakeup();
+
+        if (Thread.currentThread() != thread)
+        {
+            try
+            {
+                thread.join(1000L);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Очередь запросов к одному шлюзу.
+     * Очереди и счетчики меняются только потоком селектора
+     */
+    static final class Endpoint {
+
+        private final String host;
+        private final String name;
+        private final int port;
+        private final ArrayDeque<Exchange> pending = new ArrayDeque<>();
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        private volatile int maxInFlight = 1;
+        private volatile int connectTimeoutMs = GatewayHttpClient.DEFAULT_CONNECT_TIMEOUT_MS;
+        private volatile int readTimeoutMs = GatewayHttpClient.DEFAULT_READ_TIMEOUT_MS;
+        private volatile int inFlight = 0;
+        private volatile int queued = 0;
+
+        private Endpoint(String host)
+        {
+            int colon = host.lastIndexOf(':');
+            int port = 80;
+            String name = host;
+
+            if (colon > 0)
+            {
+                try
+                {
+                    port = Integer.parseInt(host.substring(colon + 1));
+                    name = host.substring(0, colon);
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("Некорректный адрес шлюза: " + host);
+                }
+            }
+
+            this.host = host;
+            this.name = name;
+            this.port = port;
+        }
+
+        int getInFlight()
+        {
+            return inFlight;
+        }
+
+        int getQueued()
+        {
+            return queued;
+        }
+    }
+
+    private static final class Exchange {
+
+        private final Endpoint endpoint;
+        private final byte[] request;
+        private final CompletableFuture<HttpReply> future;
+        private ByteBuffer out;
+        private long deadline;
+        private boolean retried = false;
+
+        private Exchange(Endpoint endpoint, byte[] request, CompletableFuture<HttpReply> future)
+        {
+            this.endpoint = endpoint;
+            this.request = request;
+            this.future = future;
+        }
+    }
+
+    private static final class Connection {
+
+        private final Endpoint endpoint;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private Exchange exchange;
+        private boolean reused = false;
+        private long idleSince;
+        private ByteBuffer in = ByteBuffer.allocate(1024);
+        private int headerEnd;
+        private int status;
+        private int contentLength;
+        private boolean chunked;
+        private boolean keepAlive;
+
+        private Connection(Endpoint endpoint, SocketChannel channel)
+        {
+            this.endpoint = endpoint;
+            this.channel = channel;
+        }
+
+        /**
+         * Начинает новый обмен на соединении
+         */
+        private void begin(Exchange exchange)
+        {
+            this.exchange = exchange;
+            in.clear();
+            headerEnd = -1;
+            status = 0;
+            contentLength = -1;
+            chunked = false;
+            keepAlive = false;
+        }
+    }
+}
@@ -18,10 +18,22 @@ package ru.iris.noolite4j.gateway;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.iris.noolite4j.sender.ChannelSet;
+import ru.iris.noolite4j.sender.CommandListener;
+import ru.iris.noolite4j.sender.GroupCommand;
+import ru.iris.noolite4j.sender.GroupResult;
+import ru.iris.noolite4j.sender.Priority;
 import ru.iris.noolite4j.watchers.CommandType;
 import ru.iris.noolite4j.watchers.DataFormat;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Ethernet-шлюз PR1132
@@ -31,33 +43,600 @@ import java.util.List;
 public class PR1132 {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PR1132.class.getName());
+    private static final byte MAX_RX_CHANNELS = 32;
     private byte availableTXChannels = 32;
-    private byte availableRXChannels = 4;
-    private static String url;
+    private volatile byte availableRXChannels = 4;
+    private volatile String host;
+    private final List<CommandListener> listeners = new CopyOnWriteArrayList<>();
+    private final PriorityGate gate = new PriorityGate();
+    private final AtomicLong expired = new AtomicLong();
+    private final GatewayHttpClient httpClient;
+    private final boolean ownsHttpClient;
+    private volatile NioHttpEngine httpEngine;
+    private volatile int maxInFlight = 1;
+    private NioHttpEngine.Endpoint endpoint;
+    private String endpointHost;
+    private final SensorCache sensorCache = new SensorCache(new Supplier<CompletableFuture<List<Sensor>>>() {
+        @Override
+        public CompletableFuture<List<Sensor>> get() {
+            return new HTTPCommand(PR1132.this).fetchSensorsAsync();
+        }
+    });
 
     /**
-     * Устанавливает адрес PR1132
+     * Шлюз для кода, написанного под общий адрес: его адрес задает устаревший {@link #setHost(String)},
+     * и этот же адрес используют шлюзы, которым свой адрес не задан
+     */
+    private static volatile PR1132 defaultGateway;
+
+    /**
+     * Адрес, для которого загружены данные кэша сенсоров
+     */
+    private String sensorHost;
+
+    /**
+     * Шлюз с собственным пулом соединений и настройками по умолчанию.
+     * Адрес задается через {@link #setAddress(String)}, без него используется адрес, заданный {@link #setHost(String)}
+     */
+    public PR1132()
+    {
+        this.httpClient = new GatewayHttpClient();
+        this.ownsHttpClient = true;
+    }
+
+    /**
+     * Шлюз с собственным пулом соединений и настройками по умолчанию
+     * @param host адрес контроллера, host или host:port
+     */
+    public PR1132(String host)
+    {
+        this();
+        setAddress(host);
+    }
+
+    /**
+     * Шлюз, использующий заданный HTTP-клиент.
+     * Клиент не закрывается вместе со шлюзом
+     * @param httpClient HTTP-клиент с пулом соединений
+     */
+    public PR1132(GatewayHttpClient httpClient)
+    {
+        if (httpClient == null)
+        {
+            throw new IllegalArgumentException("HTTP-клиент не задан");
+        }
+
+        this.httpClient = httpClient;
+        this.ownsHttpClient = false;
+    }
+
+    /**
+     * Шлюз, использующий заданный HTTP-клиент.
+     * Клиент не закрывается вместе со шлюзом
+     * @param host адрес контроллера, host или host:port
+     * @param httpClient HTTP-клиент с пулом соединений
+     */
+    public PR1132(String host, GatewayHttpClient httpClient)
+    {
+        this(httpClient);
+        setAddress(host);
+    }
+
+    /**
+     * Шлюз по умолчанию, создается при первом обращении
+     */
+    static PR1132 defaultGateway()
+    {
+        PR1132 gateway = defaultGateway;
+
+        if (gateway == null)
+        {
+            synchronized (PR1132.class)
+            {
+                gateway = defaultGateway;
+
+                if (gateway == null)
+                {
+                    gateway = new PR1132();
+                    defaultGateway = gateway;
+                }
+            }
+        }
+
+        return gateway;
+    }
+
+    /**
+     * Устанавливает адрес PR1132 для шлюза по умолчанию и всех шлюзов без своего адреса
      * @param url адрес контроллера
+     * @deprecated адрес задается для каждого шлюза: {@link #PR1132(String)} или {@link #setAddress(String)}
+     */
+    @Deprecated
+    public static void setHost(String url)
+    {
+        defaultGateway().setAddress(url);
+    }
+
+    /**
+     * @return адрес, заданный {@link #setHost(String)}, или null
+     * @deprecated адрес задается для каждого шлюза, см. {@link #getAddress()}
      */
-    public static void setHost(String url) {
+    @Deprecated
+    public static String getHost()
+    {
+        PR1132 gateway = defaultGateway;
+        return gateway != null ? gateway.host : null;
+    }
+
+    /**
+     * Устанавливает адрес PR1132
+     * @param url адрес контроллера, host или host:port
+     */
+    public void setAddress(String url) {
+
+        if (url == null || url.isEmpty())
+        {
+            throw new IllegalArgumentException("Не задан адрес шлюза PR1132");
+        }
 
         LOGGER.debug("Устанавливается адрес для устройства PR1132: " + url);
-        PR1132.url = url;
+        this.host = url;
+        sensors();
     }
 
     /**
-     * Возвращает текущие значения сенсоров
+     * Кэш сенсоров текущего адреса. Если адрес сменился (в том числе адрес по умолчанию,
+     * которым пользуется шлюз без своего адреса), данные прежнего шлюза отбрасываются
+     * @return кэш сенсоров
+     */
+    private SensorCache sensors()
+    {
+        String address = getAddress();
+
+        synchronized (sensorCache)
+        {
+            if (address != null && !address.equals(sensorHost))
+            {
+                if (sensorHost != null)
+                {
+                    sensorCache.reset();
+                }
+
+                sensorHost = address;
+            }
+        }
+
+        return sensorCache;
+    }
+
+    /**
+     * Возвращает текущие значения сенсоров.
+     * Данные берутся из кэша, если они не старше заданного времени
      * @return список сенсоров
-     * TODO требует проверки работоспособности
+     * @see #setSensorCacheTtl(long)
      */
     public List<Sensor> getSensors()
     {
-        return new HTTPCommand().getSensors();
+        return new ArrayList<>(sensors().get().getSensors());
     }
 
-    public static String getHost()
+    /**
+     * Запрашивает текущие значения сенсоров, не блокируя поток
+     * @return список сенсоров, при ошибке пустой
+     */
+    public CompletableFuture<List<Sensor>> getSensorsAsync()
+    {
+        return sensors().getAsync().thenApply(new Function<SensorSnapshot, List<Sensor>>() {
+            @Override
+            public List<Sensor> apply(SensorSnapshot snapshot) {
+                return new ArrayList<>(snapshot.getSensors());
+            }
+        });
+    }
+
+    /**
+     * Возвращает значения сенсоров вместе с их возрастом
+     * @return снимок сенсоров
+     */
+    public SensorSnapshot getSensorSnapshot()
+    {
+        return sensors().get();
+    }
+
+    /**
+     * Запрашивает значения сенсоров вместе с их возрастом, не блокируя поток
+     * @return снимок сенсоров
+     */
+    public CompletableFuture<SensorSnapshot> getSensorSnapshotAsync()
+    {
+        return sensors().getAsync();
+    }
+
+    /**
+     * Задает время, в течение которого значения сенсоров берутся из кэша без запроса к шлюзу
+     * (по умолчанию 1000 мс). 0 - каждый вызов запрашивает шлюз, но одновременные
+     * вызовы по-прежнему ждут один общий запрос
+     * @param ttlMs время жизни данных, мс
+     */
+    public void setSensorCacheTtl(long ttlMs)
+    {
+        if (ttlMs < 0)
+        {
+            throw new IllegalArgumentException("Время жизни данных не может быть отрицательным");
+        }
+
+        sensorCache.setTtl(ttlMs);
+    }
+
+    public long getSensorCacheTtl()
+    {
+        return sensorCache.getTtl();
+    }
+
+    /**
+     * Задает, насколько дольше TTL устаревшие значения сенсоров отдаются сразу,
+     * пока в фоне идет обновление (по умолчанию 5000 мс). Более старые данные
+     * ждут ответа шлюза
+     * @param maxStaleMs допустимое устаревание, мс
+     */
+    public void setSensorMaxStale(long maxStaleMs)
+    {
+        if (maxStaleMs < 0)
+        {
+            throw new IllegalArgumentException("Допустимое устаревание не может быть отрицательным");
+        }
+
+        sensorCache.setMaxStale(maxStaleMs);
+    }
+
+    public long getSensorMaxStale()
+    {
+        return sensorCache.getMaxStale();
+    }
+
+    /**
+     * @return доля запросов сенсоров, обслуженных из кэша без ожидания шлюза, от 0 до 1
+     */
+    public double getSensorCacheHitRate()
+    {
+        return sensorCache.getHitRate();
+    }
+
+    /**
+     * @return количество запросов sens.xml к шлюзу
+     */
+    public long getSensorLoadCount()
+    {
+        return sensorCache.getLoads();
+    }
+
+    /**
+     * @return количество неудачных запросов sens.xml
+     */
+    public long getSensorLoadFailures()
+    {
+        return sensorCache.getLoadFailures();
+    }
+
+    /**
+     * @return адрес шлюза; если свой адрес не задан - адрес, заданный {@link #setHost(String)}
+     */
+    public String getAddress()
+    {
+        String host = this.host;
+
+        if (host == null)
+        {
+            PR1132 gateway = defaultGateway;
+            host = gateway != null ? gateway.host : null;
+        }
+
+        return host;
+    }
+
+    /**
+     * @return количество каналов приемника шлюза
+     */
+    public byte getAvailableRXChannels()
+    {
+        return availableRXChannels;
+    }
+
+    /**
+     * Задает количество каналов приемника шлюза (по умолчанию 4).
+     * Загруженные данные сенсоров сбрасываются
+     * @param availableRXChannels количество каналов, от 1 до 32
+     */
+    public void setAvailableRXChannels(byte availableRXChannels)
+    {
+        if (availableRXChannels < 1 || availableRXChannels > MAX_RX_CHANNELS)
+        {
+            throw new IllegalArgumentException("Количество каналов приемника должно быть от 1 до " + MAX_RX_CHANNELS);
+        }
+
+        this.availableRXChannels = availableRXChannels;
+        sensorCache.reset();
+    }
+
+    /**
+     * @return HTTP-клиент шлюза, через него доступна статистика пула соединений
+     */
+    public GatewayHttpClient getHttpClient()
+    {
+        return httpClient;
+    }
+
+    /**
+     * @return неблокирующий HTTP-движок шлюза, по умолчанию общий для всех шлюзов
+     * @see NioHttpEngine#shared()
+     */
+    public NioHttpEngine getHttpEngine()
+    {
+        NioHttpEngine engine = httpEngine;
+
+        if (engine == null)
+        {
+            engine = NioHttpEngine.shared();
+            httpEngine = engine;
+        }
+
+        return engine;
+    }
+
+    /**
+     * Задает неблокирующий HTTP-движок для асинхронных запросов
+     * @param httpEngine движок
+     */
+    public synchronized void setHttpEngine(NioHttpEngine httpEngine)
+    {
+        if (httpEngine == null)
+        {
+            throw new IllegalArgumentException("HTTP-движок не задан");
+        }
+
+        this.httpEngine = httpEngine;
+        this.endpoint = null;
+    }
+
+    /**
+     * Ограничивает количество одновременных асинхронных запросов к шлюзу,
+     * остальные ждут в очереди. По умолчанию запросы выполняются по одному
+     * @param maxInFlight максимальное количество одновременных запросов
+     */
+    public synchronized void setMaxInFlight(int maxInFlight)
+    {
+        if (maxInFlight < 1)
+        {
+            throw new IllegalArgumentException("Нужен хотя бы один одновременный запрос");
+        }
+
+        this.maxInFlight = maxInFlight;
+
+        if (endpoint != null)
+        {
+            configure(endpoint);
+        }
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    /**
+     * @return количество выполняющихся асинхронных запросов к шлюзу
+     */
+    public synchronized int getInFlight()
+    {
+        return endpoint == null ? 0 : endpoint.getInFlight();
+    }
+
+    /**
+     * @return количество асинхронных запросов, ожидающих в очереди шлюза
+     */
+    public synchronized int getQueuedRequests()
+    {
+        return endpoint == null ? 0 : endpoint.getQueued();
+    }
+
+    /**
+     * @return очередь асинхронных запросов к текущему адресу шлюза
+     */
+    synchronized NioHttpEngine.Endpoint endpoint()
+    {
+        String host = getAddress();
+
+        if (host == null)
+        {
+            throw new IllegalStateException("Не задан адрес шлюза PR1132");
+        }
+
+        if (endpoint == null || !host.equals(endpointHost))
+        {
+            endpoint = getHttpEngine().endpoint(host);
+            endpointHost = host;
+            configure(endpoint);
+        }
+
+        return endpoint;
+    }
+
+    private void configure(NioHttpEngine.Endpoint endpoint)
+    {
+        getHttpEngine().configure(endpoint, maxInFlight, httpClient.getConnectTimeout(), httpClient.getReadTimeout());
+    }
+
+    /**
+     * Закрывает соединения с шлюзом, если HTTP-клиент создан самим шлюзом
+     */
+    public void close()
+    {
+        if (ownsHttpClient)
+        {
+            httpClient.close();
+        }
+    }
+
+    /**
+     * Добавляет слушателя отправляемых команд
+     * @param listener слушатель
+     */
+    public void addCommandListener(CommandListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeCommandListener(CommandListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Оповещает слушателей и отправляет команду шлюзу
+     * @param command команда
+     * @return успешно или нет
+     */
+    private boolean send(HTTPCommand command)
+    {
+        notifyListeners(command);
+
+        gate.enterInteractive();
+
+        try
+        {
+            return command.send();
+        }
+        finally
+        {
+            gate.exitInteractive();
+        }
+    }
+
+    /**
+     * Отправляет фоновую команду, уступая интерактивным
+     * @param command команда
+     * @param deadline время, после которого команда отбрасывается, или 0
+     * @return успешно или нет
+     */
+    private boolean sendBackground(HTTPCommand command, long deadline)
+    {
+        notifyListeners(command);
+
+        if (!gate.awaitBackground(deadline))
+        {
+            expired.incrementAndGet();
+            LOGGER.debug("Фоновая команда на канале {} отброшена по сроку", command.getChannel() + 1);
+            return false;
+        }
+
+        return command.send();
+    }
+
+    /**
+     * Оповещает слушателей и ставит команду в очередь неблокирующего движка
+     * @param command команда
+     * @return успешно или нет
+     */
+    CompletableFuture<Boolean> sendAsync(HTTPCommand command)
+    {
+        notifyListeners(command);
+        return command.sendAsync();
+    }
+
+    /**
+     * Отправляет команду без данных, не блокируя поток
+     * @param type команда
+     * @param channel канал в том виде, в котором он передается шлюзу
+     * @return future завершается исключением, если команда не выполнена
+     */
+    CompletableFuture<Void> deliverAsync(CommandType type, byte channel)
+    {
+        HTTPCommand command = new HTTPCommand(this);
+        command.setChannel(channel);
+        command.setCmd(type);
+
+        return deliverAsync(command);
+    }
+
+    /**
+     * Выполняет команду на одном канале, не блокируя поток
+     * @param channel канал, начиная с 1
+     * @param command команда
+     * @return future завершается исключением, если команда не выполнена
+     */
+    CompletableFuture<Void> deliverAsync(byte channel, GroupCommand command)
+    {
+        HTTPCommand request = groupRequest(command);
+
+        /**
+         * Отсчет каналов начинается с 0
+         */
+        request.setChannel((byte) (channel - 1));
+
+        return deliverAsync(request);
+    }
+
+    /**
+     * Оповещает слушателей и ставит команду в очередь неблокирующего движка.
+     * В отличие от {@link #sendAsync(HTTPCommand)} ошибка передается в future
+     * @param command команда
+     * @return future завершается исключением, если команда не выполнена
+     */
+    private CompletableFuture<Void> deliverAsync(HTTPCommand command)
     {
-        return url;
+        if ((command.getChannel() & 0xff) >= availableTXChannels)
+        {
+            LOGGER.error("Максимальное количество каналов: " + availableTXChannels);
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalArgumentException("Максимальное количество каналов: " + availableTXChannels));
+            return failed;
+        }
+
+        notifyListeners(command);
+        return command.deliverAsync();
+    }
+
+    private void notifyListeners(HTTPCommand command)
+    {
+        for (CommandListener listener : listeners)
+        {
+            try
+            {
+                listener.onCommand(command.getCmd(), command.getChannel() + 1);
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.error("Ошибка в слушателе команд PR1132: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Защита фоновых команд от голодания: фоновая команда ждет окончания
+     * интерактивных не дольше заданного времени (по умолчанию 500 мс)
+     * @param maxBackgroundWaitMs время ожидания, мс
+     */
+    public void setMaxBackgroundWait(long maxBackgroundWaitMs)
+    {
+        if (maxBackgroundWaitMs < 0)
+        {
+            throw new IllegalArgumentException("Время ожидания не может быть отрицательным");
+        }
+
+        gate.setMaxBackgroundWait(maxBackgroundWaitMs);
+    }
+
+    public long getMaxBackgroundWait()
+    {
+        return gate.getMaxBackgroundWait();
+    }
+
+    /**
+     * @return количество фоновых команд, отброшенных после истечения срока
+     */
+    public long getExpiredCount()
+    {
+        return expired.get();
     }
 
     /**
@@ -79,11 +658,11 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setCmd(CommandType.TURN_ON);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -105,11 +684,11 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setCmd(CommandType.SLOW_TURN_ON);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -131,11 +710,11 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setCmd(CommandType.SLOW_TURN_OFF);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -157,11 +736,11 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setCmd(CommandType.SWITCH);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -183,11 +762,11 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setCmd(CommandType.REVERT_SLOW_TURN);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -213,7 +792,7 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setFmt(DataFormat.FOUR_BYTE);
         command.setCmd(CommandType.SET_LEVEL);
@@ -221,7 +800,7 @@ public class PR1132 {
         command.setD1(G);
         command.setD2(B);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -232,10 +811,10 @@ public class PR1132 {
     {
         LOGGER.debug("Вызывается записанный сценарий");
 
-        HTTPCommand command = new HTTPCommand();;
+        HTTPCommand command = new HTTPCommand(this);
         command.setCmd(CommandType.RUN_SCENE);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -246,10 +825,10 @@ public class PR1132 {
     {
         LOGGER.debug("Записывается сценарий");
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setCmd(CommandType.RECORD_SCENE);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -271,11 +850,11 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setCmd(CommandType.STOP_DIM_BRIGHT);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -297,12 +876,12 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setFmt(DataFormat.LED);
         command.setCmd(CommandType.SLOW_RGB_CHANGE);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -324,12 +903,12 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setFmt(DataFormat.LED);
         command.setCmd(CommandType.SWITCH_COLOR);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -351,12 +930,12 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setFmt(DataFormat.LED);
         command.setCmd(CommandType.SWITCH_MODE);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -378,12 +957,12 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setFmt(DataFormat.LED);
         command.setCmd(CommandType.SWITCH_SPEED_MODE);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -405,11 +984,11 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setCmd(CommandType.TURN_OFF);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -430,7 +1009,7 @@ public class PR1132 {
          */
         channel -= 1;
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setCmd(CommandType.SET_LEVEL);
 
@@ -451,7 +1030,7 @@ public class PR1132 {
 
         command.setBr(level);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -466,11 +1045,11 @@ public class PR1132 {
             return false;
         }
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setCmd(CommandType.BIND);
 
-        return command.send();
+        return send(command);
     }
 
     /**
@@ -485,10 +1064,133 @@ public class PR1132 {
             return false;
         }
 
-        HTTPCommand command = new HTTPCommand();
+        HTTPCommand command = new HTTPCommand(this);
         command.setChannel(channel);
         command.setCmd(CommandType.UNBIND);
 
-        return command.send();
+        return send(command);
+    }
+
+    /**
+     * Выполняет команду на группе каналов.
+     * Каналы проверяются один раз, запросы к шлюзу отправляются подряд
+     * @param channels каналы
+     * @param command команда
+     * @return исход по каждому каналу и общее время
+     */
+    public GroupResult apply(ChannelSet channels, GroupCommand command)
+    {
+        return apply(channels, command, Priority.INTERACTIVE, 0);
+    }
+
+    /**
+     * Выполняет команду на группе каналов с заданным приоритетом.
+     * Фоновые запросы уступают интерактивным командам этого шлюза
+     * @param channels каналы
+     * @param command команда
+     * @param priority приоритет
+     * @param deadlineMs срок, мс: запрос, не отправленный за это время, отбрасывается; 0 - без срока
+     * @return исход по каждому каналу и общее время
+     */
+    public GroupResult apply(ChannelSet channels, GroupCommand command, Priority priority, long deadlineMs)
+    {
+        long deadline = deadlineMs > 0 ? System.currentTimeMillis() + deadlineMs : 0;
+        long start = System.nanoTime();
+        byte[] list = channels.toArray();
+        boolean[] outcomes = new boolean[list.length];
+
+        if (channels.max() >= availableTXChannels) {
+            LOGGER.error("Максимальное количество каналов: " + availableTXChannels);
+            return new GroupResult(list, outcomes, System.nanoTime() - start);
+        }
+
+        LOGGER.debug("Групповая команда {} на каналах {}", command.getCommand(), channels);
+
+        HTTPCommand request = groupRequest(command);
+
+        for (int i = 0; i < list.length; i++)
+        {
+            /**
+             * Отсчет каналов начинается с 0
+             */
+            request.setChannel((byte) (list[i] - 1));
+            outcomes[i] = priority == Priority.BACKGROUND ? sendBackground(request, deadline) : send(request);
+        }
+
+        return new GroupResult(list, outcomes, System.nanoTime() - start);
+    }
+
+    /**
+     * Выполняет команду на группе каналов, не блокируя поток.
+     * Запросы ставятся в очередь шлюза и выполняются с учетом ограничения одновременных запросов
+     * @param channels каналы
+     * @param command команда
+     * @return исход по каждому каналу и общее время
+     * @see #setMaxInFlight(int)
+     */
+    public CompletableFuture<GroupResult> applyAsync(ChannelSet channels, GroupCommand command)
+    {
+        final long start = System.nanoTime();
+        final byte[] list = channels.toArray();
+        final boolean[] outcomes = new boolean[list.length];
+
+        if (channels.max() >= availableTXChannels) {
+            LOGGER.error("Максимальное количество каналов: " + availableTXChannels);
+            return CompletableFuture.completedFuture(new GroupResult(list, outcomes, System.nanoTime() - start));
+        }
+
+        LOGGER.debug("Групповая команда {} на каналах {}", command.getCommand(), channels);
+
+        HTTPCommand request = groupRequest(command);
+        CompletableFuture<?>[] sent = new CompletableFuture<?>[list.length];
+
+        for (int i = 0; i < list.length; i++)
+        {
+            final int index = i;
+
+            /**
+             * Отсчет каналов начинается с 0
+             */
+            request.setChannel((byte) (list[i] - 1));
+            sent[i] = sendAsync(request).thenAccept(new Consumer<Boolean>() {
+                @Override
+                public void accept(Boolean success) {
+                    outcomes[index] = success;
+                }
+            });
+        }
+
+        return CompletableFuture.allOf(sent).thenApply(new Function<Void, GroupResult>() {
+            @Override
+            public GroupResult apply(Void done) {
+                return new GroupResult(list, outcomes, System.nanoTime() - start);
+            }
+        });
+    }
+
+    /**
+     * Собирает запрос групповой команды, канал задается перед отправкой
+     */
+    private HTTPCommand groupRequest(GroupCommand command)
+    {
+        HTTPCommand request = new HTTPCommand(this);
+        request.setCmd(command.getCommand());
+
+        /**
+         * Уровень диммера шлюз принимает в параметре br, остальные данные - в d0-d2
+         */
+        if (command.getFormat() == DataFormat.ONE_BYTE)
+        {
+            request.setBr(command.getD0());
+        }
+        else if (command.getFormat() != DataFormat.NO_DATA)
+        {
+            request.setFmt(command.getFormat());
+            request.setD0(command.getD0());
+            request.setD1(command.getD1());
+            request.setD2(command.getD2());
+        }
+
+        return request;
     }
 }
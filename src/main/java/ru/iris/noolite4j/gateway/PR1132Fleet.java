@@ -0,0 +1,398 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.iris.noolite4j.gateway;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Набор шлюзов PR1132 в одной JVM.
+ * Все шлюзы используют один пул HTTP-соединений, один неблокирующий HTTP-движок
+ * и один планировщик опроса сенсоров. Опрос каждого шлюза сдвинут на случайную
+ * величину, чтобы запросы ко всем шлюзам не уходили в канал одновременно
+ */
+public class PR1132Fleet implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PR1132Fleet.class.getName());
+
+    /**
+     * Соединений с одним шлюзом и со всеми шлюзами по умолчанию
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 2;
+    public static final int DEFAULT_MAX_TOTAL = 256;
+
+    private final GatewayHttpClient httpClient;
+    private final NioHttpEngine httpEngine;
+    private final boolean ownsTransport;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ConcurrentMap<String, Member> gateways = new ConcurrentHashMap<>();
+    private final List<SensorListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong polls = new AtomicLong();
+    private volatile long pollIntervalMs = 0;
+    private volatile double jitter = 0.2;
+    private volatile boolean closed = false;
+
+    /**
+     * Набор с собственными пулом соединений и HTTP-движком
+     */
+    public PR1132Fleet()
+    {
+        this(new GatewayHttpClient(GatewayHttpClient.DEFAULT_CONNECT_TIMEOUT_MS, GatewayHttpClient.DEFAULT_READ_TIMEOUT_MS,
+                DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_TOTAL), new NioHttpEngine(), true);
+    }
+
+    /**
+     * Набор, использующий заданные пул соединений и HTTP-движок.
+     * Они не закрываются вместе с набором
+     * @param httpClient HTTP-клиент с пулом соединений
+     * @param httpEngine неблокирующий HTTP-движок
+     */
+    public PR1132Fleet(GatewayHttpClient httpClient, NioHttpEngine httpEngine)
+    {
+        this(httpClient, httpEngine, false);
+    }
+
+    private PR1132Fleet(GatewayHttpClient httpClient, NioHttpEngine httpEngine, boolean ownsTransport)
+    {
+        if (httpClient == null || httpEngine == null)
+        {
+            throw new IllegalArgumentException("HTTP-клиент и HTTP-движок должны быть заданы");
+        }
+
+        this.httpClient = httpClient;
+        this.httpEngine = httpEngine;
+        this.ownsTransport = ownsTransport;
+
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PR1132 fleet");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Добавляет шлюз. Если шлюз с таким адресом уже есть, возвращается он
+     * @param host адрес контроллера, host или host:port
+     * @return шлюз
+     */
+    public PR1132 add(String host)
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Набор шлюзов закрыт");
+        }
+
+        Member member = gateways.computeIfAbsent(host, new Function<String, Member>() {
+            @Override
+            public Member apply(String host) {
+                PR1132 gateway = new PR1132(host, httpClient);
+                gateway.setHttpEngine(httpEngine);
+                return new Member(gateway);
+            }
+        });
+
+        schedule(member, true);
+
+        return member.gateway;
+    }
+
+    /**
+     * @param host адрес контроллера
+     * @return шлюз или null
+     */
+    public PR1132 get(String host)
+    {
+        Member member = gateways.get(host);
+        return member == null ? null : member.gateway;
+    }
+
+    /**
+     * Удаляет шлюз и останавливает его опрос
+     * @param host адрес контроллера
+     * @return был ли такой шлюз
+     */
+    public boolean remove(String host)
+    {
+        Member member = gateways.remove(host);
+
+        if (member == null)
+        {
+            return false;
+        }
+
+        member.stop();
+        return true;
+    }
+
+    public Collection<PR1132> getGateways()
+    {
+        List<PR1132> list = new ArrayList<>(gateways.size());
+
+        for (Member member : gateways.values())
+        {
+            list.add(member.gateway);
+        }
+
+        return list;
+    }
+
+    public int size()
+    {
+        return gateways.size();
+    }
+
+    public void addSensorListener(SensorListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeSensorListener(SensorListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Запускает периодический опрос сенсоров всех шлюзов.
+     * Первый опрос каждого шлюза происходит в случайный момент внутри интервала,
+     * каждый следующий - через интервал, измененный на случайную долю
+     * @param intervalMs интервал опроса, мс; 0 - остановить опрос
+     * @see #setJitter(double)
+     */
+    public void setPollInterval(long intervalMs)
+    {
+        if (intervalMs < 0)
+        {
+            throw new IllegalArgumentException("Интервал опроса не может быть отрицательным");
+        }
+
+        pollIntervalMs = intervalMs;
+
+        for (Member member : gateways.values())
+        {
+            member.cancel();
+            schedule(member, true);
+        }
+    }
+
+    public long getPollInterval()
+    {
+        return pollIntervalMs;
+    }
+
+    /**
+     * Задает разброс интервала опроса (по умолчанию 0.2, то есть ±20%)
+     * @param jitter доля интервала, от 0 до 1
+     */
+    public void setJitter(double jitter)
+    {
+        if (jitter < 0 || jitter > 1)
+        {
+            throw new IllegalArgumentException("Разброс должен быть от 0 до 1");
+        }
+
+        this.jitter = jitter;
+    }
+
+    public double getJitter()
+    {
+        return jitter;
+    }
+
+    /**
+     * @return количество выполненных опросов
+     */
+    public long getPollCount()
+    {
+        return polls.get();
+    }
+
+    public GatewayHttpClient getHttpClient()
+    {
+        return httpClient;
+    }
+
+    public NioHttpEngine getHttpEngine()
+    {
+        return httpEngine;
+    }
+
+    /**
+     * Планирует следующий опрос шлюза
+     * @param first первый опрос: сдвиг на случайную долю всего интервала
+     */
+    private void schedule(final Member member, boolean first)
+    {
+        long interval = pollIntervalMs;
+
+        if (interval == 0 || closed)
+        {
+            return;
+        }
+
+        long delay;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        if (first)
+        {
+            delay = (long) (random.nextDouble() * interval);
+        }
+        else
+        {
+            double spread = jitter * interval;
+            delay = Math.max(1, (long) (interval - spread + random.nextDouble() * 2 * spread));
+        }
+
+        synchronized (member)
+        {
+            if (member.cancelled || member.next != null)
+            {
+                return;
+            }
+
+            member.next = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    poll(member);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Опрашивает шлюз, не занимая поток планировщика на время запроса
+     */
+    private void poll(final Member member)
+    {
+        synchronized (member)
+        {
+            member.next = null;
+        }
+
+        polls.incrementAndGet();
+
+        try
+        {
+            member.gateway.getSensorSnapshotAsync().whenComplete(new BiConsumer<SensorSnapshot, Throwable>() {
+                @Override
+                public void accept(SensorSnapshot snapshot, Throwable e) {
+                    if (snapshot != null)
+                    {
+                        notifyListeners(member.gateway, snapshot);
+                    }
+
+                    schedule(member, false);
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.error("Ошибка опроса шлюза PR1132 " + member.gateway.getAddress() + ": " + e.getMessage());
+            schedule(member, false);
+        }
+    }
+
+    private void notifyListeners(PR1132 gateway, SensorSnapshot snapshot)
+    {
+        for (SensorListener listener : listeners)
+        {
+            try
+            {
+                listener.onSensors(gateway, snapshot);
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.error("Ошибка в слушателе сенсоров PR1132: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Останавливает опрос и закрывает собственные пул соединений и HTTP-движок
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+
+        for (Member member : gateways.values())
+        {
+            member.stop();
+        }
+
+        scheduler.shutdownNow();
+
+        if (ownsTransport)
+        {
+            httpEngine.close();
+            httpClient.close();
+        }
+    }
+
+    private static final class Member {
+
+        private final PR1132 gateway;
+        private ScheduledFuture<?> next;
+        private boolean cancelled = false;
+
+        private Member(PR1132 gateway)
+        {
+            this.gateway = gateway;
+        }
+
+        /**
+         * Отменяет запланированный опрос, повторное планирование снова разрешено
+         */
+        private synchronized void cancel()
+        {
+            if (next != null)
+            {
+                next.cancel(false);
+                next = null;
+            }
+        }
+
+        /**
+         * Окончательно останавливает опрос, в том числе после уже идущего запроса
+         */
+        private synchronized void stop()
+        {
+            cancelled = true;
+            cancel();
+        }
+    }
+}
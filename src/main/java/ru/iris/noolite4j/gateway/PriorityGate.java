@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.gateway;
+
+/**
+ * Пропускает фоновые запросы к шлюзу только тогда, когда нет интерактивных.
+ * Фоновый запрос ждет не дольше заданного времени (защита от голодания)
+ * и отбрасывается, если за время ожидания истек его срок
+ */
+class PriorityGate {
+
+    private int interactive = 0;
+    private long maxBackgroundWaitMs = 500L;
+
+    synchronized void enterInteractive()
+    {
+        interactive++;
+    }
+
+    synchronized void exitInteractive()
+    {
+        interactive--;
+
+        if (interactive == 0)
+        {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Ждет очереди фонового запроса
+     * @param deadline время, после которого запрос отбрасывается, или 0
+     * @return можно ли отправлять запрос
+     */
+    synchronized boolean awaitBackground(long deadline)
+    {
+        long start = System.currentTimeMillis();
+        long now = start;
+
+        while (interactive > 0 && now - start < maxBackgroundWaitMs)
+        {
+            if (deadline > 0 && now > deadline)
+            {
+                return false;
+            }
+
+            long wait = maxBackgroundWaitMs - (now - start);
+
+            if (deadline > 0)
+            {
+                wait = Math.min(wait, deadline - now + 1);
+            }
+
+            try {
+                wait(Math.max(1, wait));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            now = System.currentTimeMillis();
+        }
+
+        return deadline == 0 || now <= deadline;
+    }
+
+    synchronized void setMaxBackgroundWait(long maxBackgroundWaitMs)
+    {
+        this.maxBackgroundWaitMs = maxBackgroundWaitMs;
+    }
+
+    synchronized long getMaxBackgroundWait()
+    {
+        return maxBackgroundWaitMs;
+    }
+}
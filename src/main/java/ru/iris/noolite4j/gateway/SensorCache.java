@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.iris.noolite4j.gateway;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Кэш значений сенсоров шлюза.
+ * Свежие данные (не старше TTL) отдаются сразу. Устаревшие, но не старше TTL плюс
+ * допустимого устаревания, тоже отдаются сразу, а в фоне запускается обновление.
+ * Одновременные запросы ждут одну и ту же загрузку, шлюз получает не больше одного запроса за раз
+ */
+class SensorCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SensorCache.class.getName());
+
+    private final Supplier<CompletableFuture<List<Sensor>>> loader;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private volatile long ttlMs = 1000L;
+    private volatile long maxStaleMs = 5000L;
+    private volatile SensorSnapshot current;
+    private CompletableFuture<SensorSnapshot> loading;
+
+    /**
+     * Увеличивается при сбросе, чтобы загрузка, начатая до сброса, не попала в кэш
+     */
+    private long generation = 0;
+
+    /**
+     * @param loader загрузка сенсоров со шлюза, при ошибке future завершается исключением
+     */
+    SensorCache(Supplier<CompletableFuture<List<Sensor>>> loader)
+    {
+        this.loader = loader;
+    }
+
+    /**
+     * @return снимок сенсоров, future не завершается исключением
+     */
+    CompletableFuture<SensorSnapshot> getAsync()
+    {
+        SensorSnapshot snapshot = current;
+
+        if (snapshot != null)
+        {
+            long age = System.currentTimeMillis() - snapshot.getTimestamp();
+
+            if (age <= ttlMs)
+            {
+                hits.incrementAndGet();
+                return CompletableFuture.completedFuture(snapshot);
+            }
+
+            if (age <= ttlMs + maxStaleMs)
+            {
+                staleHits.incrementAndGet();
+                load();
+                return CompletableFuture.completedFuture(snapshot);
+            }
+        }
+
+        misses.incrementAndGet();
+        return load();
+    }
+
+    SensorSnapshot get()
+    {
+        return getAsync().join();
+    }
+
+    /**
+     * Запускает загрузку или возвращает уже идущую
+     */
+    private synchronized CompletableFuture<SensorSnapshot> load()
+    {
+        if (loading != null)
+        {
+            return loading;
+        }
+
+        final CompletableFuture<SensorSnapshot> future = new CompletableFuture<>();
+        final long started = generation;
+        CompletableFuture<List<Sensor>> fetch;
+
+        loading = future;
+        loads.incrementAndGet();
+
+        try
+        {
+            fetch = loader.get();
+        }
+        catch (RuntimeException e)
+        {
+            fetch = new CompletableFuture<>();
+            fetch.completeExceptionally(e);
+        }
+
+        fetch.whenComplete(new BiConsumer<List<Sensor>, Throwable>() {
+            @Override
+            public void accept(List<Sensor> sensors, Throwable e) {
+                complete(future, started, sensors, e);
+            }
+        });
+
+        return future;
+    }
+
+    private void complete(CompletableFuture<SensorSnapshot> future, long started, List<Sensor> sensors, Throwable e)
+    {
+        SensorSnapshot result;
+
+        synchronized (this)
+        {
+            boolean reset = started != generation;
+
+            if (e == null)
+            {
+                result = new SensorSnapshot(sensors, System.currentTimeMillis());
+
+                if (!reset)
+                {
+                    current = result;
+                }
+            }
+            else
+            {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+                loadFailures.incrementAndGet();
+                LOGGER.error("Не удалось получить данные с датчиков PR1132: " + cause.getMessage());
+
+                /**
+                 * При ошибке остаются прежние данные, их возраст виден в снимке
+                 */
+                SensorSnapshot previous = current;
+                result = previous != null ? previous : new SensorSnapshot(Collections.<Sensor>emptyList(), 0);
+            }
+
+            if (!reset)
+            {
+                loading = null;
+            }
+        }
+
+        future.complete(result);
+    }
+
+    /**
+     * Отбрасывает сохраненные данные и идущую загрузку, например после смены адреса шлюза.
+     * Следующий запрос загрузит данные заново, счетчики не сбрасываются
+     */
+    synchronized void reset()
+    {
+        generation++;
+        current = null;
+        loading = null;
+    }
+
+    void setTtl(long ttlMs)
+    {
+        this.ttlMs = ttlMs;
+    }
+
+    long getTtl()
+    {
+        return ttlMs;
+    }
+
+    void setMaxStale(long maxStaleMs)
+    {
+        this.maxStaleMs = maxStaleMs;
+    }
+
+    long getMaxStale()
+    {
+        return maxStaleMs;
+    }
+
+    /**
+     * @return доля запросов, обслуженных из кэша без ожидания шлюза, от 0 до 1
+     */
+    double getHitRate()
+    {
+        long served = hits.get() + staleHits.get();
+        long total = served + misses.get();
+
+        return total == 0 ? 0 : served / (double) total;
+    }
+
+    long getHits()
+    {
+        return hits.get();
+    }
+
+    long getStaleHits()
+    {
+        return staleHits.get();
+    }
+
+    long getMisses()
+    {
+        return misses.get();
+    }
+
+    long getLoads()
+    {
+        return loads.get();
+    }
+
+    long getLoadFailures()
+    {
+        return loadFailures.get();
+    }
+}
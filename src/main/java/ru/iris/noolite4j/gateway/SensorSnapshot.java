@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.iris.noolite4j.gateway;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Значения сенсоров PR1132 на момент запроса к шлюзу.
+ * Снимок разделяется между всеми, кто получил его из кэша, поэтому сенсоры в нем не следует изменять
+ */
+public final class SensorSnapshot {
+
+    private final List<Sensor> sensors;
+    private final long timestamp;
+
+    SensorSnapshot(List<Sensor> sensors, long timestamp)
+    {
+        this.sensors = Collections.unmodifiableList(sensors);
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return список сенсоров, пустой, если данных со шлюза еще нет
+     */
+    public List<Sensor> getSensors()
+    {
+        return sensors;
+    }
+
+    /**
+     * @return время получения данных со шлюза, мс с начала эпохи, или 0, если данных нет
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return возраст данных, мс, или -1, если данных нет
+     */
+    public long getAge()
+    {
+        return timestamp == 0 ? -1 : System.currentTimeMillis() - timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "SensorSnapshot{" +
+                "age=" + getAge() +
+                ", sensors=" + sensors +
+                '}';
+    }
+}
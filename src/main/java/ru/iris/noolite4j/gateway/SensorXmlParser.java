@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.iris.noolite4j.gateway;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Потоковый разбор sens.xml шлюза PR1132.
+ * Значения идут по порядку, по три на канал: температура (в десятых долях градуса),
+ * влажность и состояние датчика; "-" означает отсутствие значения.
+ * Разбор выполняется за один проход по байтам ответа, без DOM и без учета локали:
+ * разделителем дробной части считается и точка, и запятая
+ */
+final class SensorXmlParser {
+
+    private static final int VALUES_PER_CHANNEL = 3;
+    private static final SensorState[] STATES = SensorState.values();
+
+    private SensorXmlParser()
+    {
+    }
+
+    /**
+     * @param xml содержимое sens.xml
+     * @param channels количество каналов приемника, лишние значения игнорируются
+     * @return сенсоры по возрастанию каналов
+     * @throws IOException некорректное значение
+     */
+    static List<Sensor> parse(byte[] xml, int channels) throws IOException
+    {
+        Sensor[] sensors = new Sensor[channels];
+        int limit = channels * VALUES_PER_CHANNEL;
+        int index = 0;
+        int pos = 0;
+
+        while (pos < xml.length && index < limit)
+        {
+            byte b = xml[pos];
+
+            /**
+             * Разметка (теги, объявления, комментарии) пропускается целиком
+             */
+            if (b == '<')
+            {
+                while (pos < xml.length && xml[pos] != '>')
+                {
+                    pos++;
+                }
+
+                pos++;
+                continue;
+            }
+
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n')
+            {
+                pos++;
+                continue;
+            }
+
+            /**
+             * Значение - текст до конца строки или до начала тега
+             */
+            int start = pos;
+
+            while (pos < xml.length && xml[pos] != '<' && xml[pos] != '\r' && xml[pos] != '\n')
+            {
+                pos++;
+            }
+
+            int end = pos;
+
+            while (end > start && (xml[end - 1] == ' ' || xml[end - 1] == '\t'))
+            {
+                end--;
+            }
+
+            int channel = index / VALUES_PER_CHANNEL;
+            Sensor sensor = sensors[channel];
+
+            if (sensor == null)
+            {
+                sensor = new Sensor();
+                sensor.setChannel((byte) (channel + 1));
+                sensors[channel] = sensor;
+            }
+
+            double value = end - start == 1 && xml[start] == '-' ? 0 : parseNumber(xml, start, end);
+
+            switch (index % VALUES_PER_CHANNEL)
+            {
+                case 0:
+                    sensor.setTemperature(value / 10);
+                    break;
+
+                case 1:
+                    sensor.setHumidity((byte) value);
+                    break;
+
+                default:
+                    int state = (int) value;
+
+                    if (state < 0 || state >= STATES.length)
+                    {
+                        throw new IOException("Неизвестное состояние датчика на канале " + (channel + 1) + ": " + state);
+                    }
+
+                    sensor.setState(STATES[state]);
+                    break;
+            }
+
+            index++;
+        }
+
+        List<Sensor> result = new ArrayList<>(channels);
+
+        for (Sensor sensor : sensors)
+        {
+            if (sensor != null)
+            {
+                result.add(sensor);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Разбирает десятичное число без учета локали
+     */
+    private static double parseNumber(byte[] data, int start, int end) throws IOException
+    {
+        int pos = start;
+        boolean negative = false;
+
+        if (pos < end && (data[pos] == '-' || data[pos] == '+'))
+        {
+            negative = data[pos] == '-';
+            pos++;
+        }
+
+        long mantissa = 0;
+        int scale = 0;
+        int digits = 0;
+        boolean fraction = false;
+
+        for (; pos < end; pos++)
+        {
+            byte b = data[pos];
+
+            if (b >= '0' && b <= '9')
+            {
+                if (digits < 18)
+                {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+
+                    if (fraction)
+                    {
+                        scale++;
+                    }
+                }
+                else if (!fraction)
+                {
+                    scale--;
+                }
+            }
+            else if ((b == '.' || b == ',') && !fraction)
+            {
+                fraction = true;
+            }
+            else
+            {
+                throw new IOException("Некорректное значение датчика: " + new String(data, start, end - start, StandardCharsets.US_ASCII));
+            }
+        }
+
+        if (digits == 0)
+        {
+            throw new IOException("Некорректное значение датчика: " + new String(data, start, end - start, StandardCharsets.US_ASCII));
+        }
+
+        double value = scale >= 0 ? mantissa / Math.pow(10, scale) : mantissa * Math.pow(10, -scale);
+
+        return negative ? -value : value;
+    }
+}
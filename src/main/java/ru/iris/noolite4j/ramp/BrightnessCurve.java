@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.ramp;
+
+/**
+ * Кривая яркости: переводит воспринимаемую яркость в уровень диммера и обратно.
+ * Таблицы рассчитываются один раз при создании кривой
+ */
+public final class BrightnessCurve {
+
+    /**
+     * Количество шагов воспринимаемой яркости в таблице
+     */
+    static final int STEPS = 1000;
+
+    public static final BrightnessCurve LINEAR = gamma(1.0);
+    public static final BrightnessCurve PERCEPTUAL = gamma(2.2);
+
+    private final double gamma;
+    private final byte[] levels = new byte[STEPS + 1];
+    private final short[] perceived = new short[101];
+
+    private BrightnessCurve(double gamma)
+    {
+        this.gamma = gamma;
+
+        for (int i = 0; i <= STEPS; i++)
+        {
+            levels[i] = (byte) Math.round(100 * Math.pow((double) i / STEPS, gamma));
+        }
+
+        for (int level = 0; level <= 100; level++)
+        {
+            perceived[level] = (short) Math.round(STEPS * Math.pow(level / 100.0, 1 / gamma));
+        }
+    }
+
+    /**
+     * @param gamma показатель степени кривой, больше 0
+     * @return кривая уровень = яркость ^ gamma
+     */
+    public static BrightnessCurve gamma(double gamma)
+    {
+        if (gamma <= 0)
+        {
+            throw new IllegalArgumentException("Показатель кривой должен быть больше 0");
+        }
+
+        return new BrightnessCurve(gamma);
+    }
+
+    /**
+     * @param step воспринимаемая яркость, от 0 до {@link #STEPS}
+     * @return уровень диммера, от 0 до 100
+     */
+    byte level(int step)
+    {
+        return levels[Math.max(0, Math.min(STEPS, step))];
+    }
+
+    /**
+     * @param level уровень диммера, от 0 до 100
+     * @return воспринимаемая яркость, от 0 до {@link #STEPS}
+     */
+    int perceived(int level)
+    {
+        return perceived[Math.max(0, Math.min(100, level))];
+    }
+
+    public double getGamma()
+    {
+        return gamma;
+    }
+}
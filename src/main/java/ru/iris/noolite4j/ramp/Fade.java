@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.ramp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Плавное изменение уровня диммера, выполняемое {@link RampEngine}.
+ * Текущим считается только уровень, подтвержденный устройством. Неподтвержденный шаг повторяется
+ * следующим шагом, а после нескольких неудач подряд изменение завершается с false
+ */
+public final class Fade implements Delayed {
+
+    /**
+     * Сколько шагов подряд устройство может не подтвердить, прежде чем изменение будет остановлено
+     */
+    static final int MAX_FAILURES = 3;
+
+    private final RampEngine engine;
+    private final Object device;
+    private final LevelTarget target;
+    private final byte channel;
+    private final BrightnessCurve curve;
+    private final int fromStep;
+    private final int toStep;
+    private final byte targetLevel;
+    private final long start;
+    private final long durationMs;
+    private final long minIntervalMs;
+    private final CompletableFuture<Boolean> completion = new CompletableFuture<>();
+
+    private volatile byte currentLevel = -1;
+    private volatile long nextStep;
+
+    /**
+     * Отправлен шаг, на который устройство еще не ответило
+     */
+    private volatile boolean pending = false;
+    private volatile int failures = 0;
+
+    Fade(RampEngine engine, Object device, LevelTarget target, byte channel, byte from, byte to, long durationMs, BrightnessCurve curve)
+    {
+        this.engine = engine;
+        this.device = device;
+        this.target = target;
+        this.channel = channel;
+        this.curve = curve;
+        this.fromStep = curve.perceived(from);
+        this.toStep = curve.perceived(to);
+        this.targetLevel = to;
+        this.durationMs = Math.max(0, durationMs);
+        this.start = System.currentTimeMillis();
+        this.nextStep = start;
+
+        /**
+         * Шаги не чаще, чем меняется уровень диммера
+         */
+        int levels = Math.max(1, Math.abs(to - from));
+        this.minIntervalMs = this.durationMs / levels;
+    }
+
+    /**
+     * Выполняет шаг: выставляет уровень, соответствующий прошедшему времени.
+     * Пока предыдущий шаг не подтвержден, новый не отправляется
+     * @param now текущее время
+     * @return завершено ли изменение: время вышло и устройство подтвердило конечный уровень
+     */
+    boolean step(long now)
+    {
+        double progress = durationMs == 0 ? 1.0 : Math.min(1.0, (double) (now - start) / durationMs);
+
+        if (pending)
+        {
+            return false;
+        }
+
+        byte level = progress >= 1.0 ? targetLevel : curve.level((int) Math.round(fromStep + (toStep - fromStep) * progress));
+
+        if (level != currentLevel)
+        {
+            final byte sent = level;
+
+            pending = true;
+            target.setLevel(channel, level).whenComplete(new BiConsumer<Boolean, Throwable>() {
+                @Override
+                public void accept(Boolean success, Throwable e) {
+                    acknowledge(sent, e == null && success);
+                }
+            });
+        }
+
+        /**
+         * Передатчик без очереди отвечает сразу, иначе завершение проверит следующий шаг
+         */
+        return progress >= 1.0 && !pending && currentLevel == targetLevel;
+    }
+
+    /**
+     * Учитывает ответ устройства на шаг
+     * @param level отправленный уровень
+     * @param success подтвердило ли устройство уровень
+     */
+    private void acknowledge(byte level, boolean success)
+    {
+        if (success)
+        {
+            currentLevel = level;
+            failures = 0;
+        }
+        else if (++failures >= MAX_FAILURES)
+        {
+            engine.fail(this);
+        }
+
+        pending = false;
+    }
+
+    void schedule(long now, long intervalMs)
+    {
+        long end = start + durationMs;
+
+        /**
+         * После окончания времени ждем подтверждения конечного уровня с обычным интервалом
+         */
+        nextStep = now < end ? Math.min(now + Math.max(intervalMs, minIntervalMs), end) : now + intervalMs;
+    }
+
+    void complete(boolean finished)
+    {
+        completion.complete(finished);
+    }
+
+    /**
+     * Останавливает изменение уровня на текущем значении
+     */
+    public void cancel()
+    {
+        engine.cancel(this);
+    }
+
+    public boolean isDone()
+    {
+        return completion.isDone();
+    }
+
+    /**
+     * @return завершается true, если устройство подтвердило конечный уровень, и false, если изменение отменено
+     * или устройство {@value #MAX_FAILURES} раза подряд не подтвердило шаг
+     */
+    public CompletableFuture<Boolean> getCompletion()
+    {
+        return completion;
+    }
+
+    Object getDevice()
+    {
+        return device;
+    }
+
+    public byte getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * @return последний уровень, подтвержденный устройством, или -1, если подтверждений еще не было
+     */
+    public byte getCurrentLevel()
+    {
+        return currentLevel;
+    }
+
+    public byte getTargetLevel()
+    {
+        return targetLevel;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit)
+    {
+        return unit.convert(nextStep - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other)
+    {
+        return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public String toString() {
+        return "Fade{" +
+                "channel=" + channel +
+                ", currentLevel=" + currentLevel +
+                ", targetLevel=" + targetLevel +
+                ", durationMs=" + durationMs +
+                '}';
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.ramp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.iris.noolite4j.gateway.PR1132;
+import ru.iris.noolite4j.sender.AirtimeScheduler;
+import ru.iris.noolite4j.sender.ChannelSet;
+import ru.iris.noolite4j.sender.CommandListener;
+import ru.iris.noolite4j.sender.GroupCommand;
+import ru.iris.noolite4j.sender.GroupResult;
+import ru.iris.noolite4j.sender.PC11xx;
+import ru.iris.noolite4j.sender.Priority;
+import ru.iris.noolite4j.watchers.CommandType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Программное плавное изменение яркости диммеров через setLevel.
+ *
+ * Все изменения выполняет один поток. Шаги не чаще заданного интервала, а для PC11xx
+ * с планировщиком эфира - не чаще, чем позволяет доля эфира на все активные изменения.
+ * Команды шлюзу PR1132 отправляются через неблокирующий HTTP-движок, а передатчику PC11xx - через
+ * его очередь фоновыми посылками без ожидания места, поэтому медленное устройство не задерживает
+ * другие изменения; пока устройство не подтвердило шаг, следующий шаг этого изменения пропускается.
+ * Передатчик без очереди передает шаг сразу в потоке движка.
+ * Уровень меняется равномерно по воспринимаемой яркости согласно {@link BrightnessCurve}.
+ *
+ * Любая команда, отправленная на канал не самим движком, останавливает изменение на этом канале,
+ * сценарий - на всех каналах устройства
+ */
+public class RampEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RampEngine.class.getName());
+    private static final long POLL_TIMEOUT_MS = 100L;
+
+    private static final Function<GroupResult, Boolean> SUCCESS = new Function<GroupResult, Boolean>() {
+        @Override
+        public Boolean apply(GroupResult result) {
+            return result.isSuccess();
+        }
+    };
+
+    private final DelayQueue<Fade> queue = new DelayQueue<>();
+    private final Map<Object, Map<Byte, Fade>> active = new IdentityHashMap<>();
+    private final Map<Object, CommandListener> listeners = new IdentityHashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long stepIntervalMs;
+
+    /**
+     * Шаг не чаще 250 мс
+     */
+    public RampEngine()
+    {
+        this(250L);
+    }
+
+    /**
+     * @param stepIntervalMs минимальный интервал между шагами одного изменения, мс
+     */
+    public RampEngine(long stepIntervalMs)
+    {
+        setStepInterval(stepIntervalMs);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "Ramp engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Запускает изменение уровня с воспринимаемой кривой яркости
+     * @param sender передатчик
+     * @param channel канал диммера
+     * @param from начальный уровень
+     * @param to конечный уровень
+     * @param durationMs длительность, мс
+     * @return изменение уровня
+     */
+    public Fade fade(PC11xx sender, byte channel, byte from, byte to, long durationMs)
+    {
+        return fade(sender, channel, from, to, durationMs, BrightnessCurve.PERCEPTUAL);
+    }
+
+    public Fade fade(final PC11xx sender, byte channel, byte from, byte to, long durationMs, BrightnessCurve curve)
+    {
+        return start(sender, new LevelTarget() {
+            @Override
+            public CompletableFuture<Boolean> setLevel(byte channel, byte level) {
+                return sender.applyAsync(ChannelSet.of(channel), GroupCommand.setLevel(level), Priority.BACKGROUND, 0).thenApply(SUCCESS);
+            }
+        }, channel, from, to, durationMs, curve);
+    }
+
+    /**
+     * Запускает изменение уровня с воспринимаемой кривой яркости
+     * @param gateway шлюз
+     * @param channel канал диммера
+     * @param from начальный уровень
+     * @param to конечный уровень
+     * @param durationMs длительность, мс
+     * @return изменение уровня
+     */
+    public Fade fade(PR1132 gateway, byte channel, byte from, byte to, long durationMs)
+    {
+        return fade(gateway, channel, from, to, durationMs, BrightnessCurve.PERCEPTUAL);
+    }
+
+    public Fade fade(final PR1132 gateway, byte channel, byte from, byte to, long durationMs, BrightnessCurve curve)
+    {
+        return start(gateway, new LevelTarget() {
+            @Override
+            public CompletableFuture<Boolean> setLevel(byte channel, byte level) {
+                return gateway.applyAsync(ChannelSet.of(channel), GroupCommand.setLevel(level)).thenApply(SUCCESS);
+            }
+        }, channel, from, to, durationMs, curve);
+    }
+
+    private Fade start(Object device, LevelTarget target, byte channel, byte from, byte to, long durationMs, BrightnessCurve curve)
+    {
+        if (!running)
+        {
+            throw new IllegalStateException("Движок изменения яркости остановлен");
+        }
+
+        from = (byte) Math.max(0, Math.min(100, from));
+        to = (byte) Math.max(0, Math.min(100, to));
+
+        Fade fade = new Fade(this, device, target, channel, from, to, durationMs, curve);
+        Fade previous;
+
+        synchronized (this)
+        {
+            register(device);
+
+            Map<Byte, Fade> fades = active.get(device);
+
+            if (fades == null)
+            {
+                fades = new HashMap<>();
+                active.put(device, fades);
+            }
+
+            previous = fades.put(channel, fade);
+        }
+
+        if (previous != null)
+        {
+            queue.remove(previous);
+            previous.complete(false);
+        }
+
+        LOGGER.debug("Изменение уровня на канале {}: {} -> {} за {} мс", channel, from, to, durationMs);
+
+        queue.add(fade);
+        return fade;
+    }
+
+    /**
+     * Подписывается на команды устройства, чтобы останавливать изменения при ручном управлении
+     */
+    private void register(final Object device)
+    {
+        if (listeners.containsKey(device))
+        {
+            return;
+        }
+
+        CommandListener listener = new CommandListener() {
+            @Override
+            public void onCommand(CommandType command, int channel) {
+                if (Thread.currentThread() == thread)
+                {
+                    return;
+                }
+
+                if (command == CommandType.RUN_SCENE || command == CommandType.RECORD_SCENE)
+                {
+                    cancelAll(device);
+                }
+                else
+                {
+                    cancel(device, (byte) channel);
+                }
+            }
+        };
+
+        if (device instanceof PC11xx)
+        {
+            ((PC11xx) device).addCommandListener(listener);
+        }
+        else
+        {
+            ((PR1132) device).addCommandListener(listener);
+        }
+
+        listeners.put(device, listener);
+    }
+
+    private void loop()
+    {
+        while (running)
+        {
+            Fade fade;
+
+            try
+            {
+                fade = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                continue;
+            }
+
+            if (fade == null || !isActive(fade))
+            {
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+            boolean done;
+
+            try
+            {
+                done = fade.step(now);
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.error("Ошибка изменения уровня на канале " + fade.getChannel() + ": " + e.getMessage());
+                finish(fade, false);
+                continue;
+            }
+
+            if (done)
+            {
+                finish(fade, true);
+            }
+            else
+            {
+                fade.schedule(now, intervalFor(fade));
+                queue.add(fade);
+            }
+        }
+    }
+
+    /**
+     * Интервал между шагами с учетом доли эфира: все активные изменения
+     * на передатчиках с общим планировщиком делят его эфир поровну
+     */
+    private long intervalFor(Fade fade)
+    {
+        long interval = stepIntervalMs;
+
+        if (!(fade.getDevice() instanceof PC11xx))
+        {
+            return interval;
+        }
+
+        PC11xx sender = (PC11xx) fade.getDevice();
+        AirtimeScheduler scheduler = sender.getAirtimeScheduler();
+
+        if (scheduler == null)
+        {
+            return interval;
+        }
+
+        int sharing = 0;
+
+        synchronized (this)
+        {
+            for (Map.Entry<Object, Map<Byte, Fade>> entry : active.entrySet())
+            {
+                if (entry.getKey() instanceof PC11xx && ((PC11xx) entry.getKey()).getAirtimeScheduler() == scheduler)
+                {
+                    sharing += entry.getValue().size();
+                }
+            }
+        }
+
+        long budget = (long) Math.ceil(scheduler.airtimeOf(sender.getSendRepeat()) / scheduler.getDutyCycle()) * Math.max(1, sharing);
+        return Math.max(interval, budget);
+    }
+
+    private synchronized boolean isActive(Fade fade)
+    {
+        Map<Byte, Fade> fades = active.get(fade.getDevice());
+        return fades != null && fades.get(fade.getChannel()) == fade;
+    }
+
+    private void finish(Fade fade, boolean finished)
+    {
+        synchronized (this)
+        {
+            Map<Byte, Fade> fades = active.get(fade.getDevice());
+
+            if (fades != null && fades.get(fade.getChannel()) == fade)
+            {
+                fades.remove(fade.getChannel());
+            }
+        }
+
+        queue.remove(fade);
+        fade.complete(finished);
+    }
+
+    void cancel(Fade fade)
+    {
+        finish(fade, false);
+    }
+
+    /**
+     * Останавливает изменение, которое устройство несколько раз подряд не подтвердило
+     */
+    void fail(Fade fade)
+    {
+        LOGGER.error("Устройство не подтверждает уровень на канале " + fade.getChannel() + ", изменение остановлено на уровне " + fade.getCurrentLevel());
+        finish(fade, false);
+    }
+
+    /**
+     * Останавливает изменение уровня на канале устройства
+     * @param device PC11xx или PR1132
+     * @param channel канал
+     */
+    public void cancel(Object device, byte channel)
+    {
+        Fade fade;
+
+        synchronized (this)
+        {
+            Map<Byte, Fade> fades = active.get(device);
+            fade = fades != null ? fades.get(channel) : null;
+        }
+
+        if (fade != null)
+        {
+            LOGGER.debug("Остановлено изменение уровня на канале {}", channel);
+            finish(fade, false);
+        }
+    }
+
+    /**
+     * Останавливает все изменения уровня на устройстве
+     * @param device PC11xx или PR1132
+     */
+    public void cancelAll(Object device)
+    {
+        List<Fade> fades;
+
+        synchronized (this)
+        {
+            Map<Byte, Fade> map = active.get(device);
+            fades = map != null ? new ArrayList<>(map.values()) : new ArrayList<Fade>();
+        }
+
+        for (Fade fade : fades)
+        {
+            finish(fade, false);
+        }
+    }
+
+    /**
+     * @return количество выполняющихся изменений уровня
+     */
+    public synchronized int getActiveFades()
+    {
+        int count = 0;
+
+        for (Map<Byte, Fade> fades : active.values())
+        {
+            count += fades.size();
+        }
+
+        return count;
+    }
+
+    public long getStepInterval()
+    {
+        return stepIntervalMs;
+    }
+
+    public void setStepInterval(long stepIntervalMs)
+    {
+        if (stepIntervalMs <= 0)
+        {
+            throw new IllegalArgumentException("Интервал между шагами должен быть больше 0");
+        }
+
+        this.stepIntervalMs = stepIntervalMs;
+    }
+
+    /**
+     * Останавливает все изменения уровня и поток движка
+     */
+    public void close()
+    {
+        running = false;
+
+        List<Object> devices;
+
+        synchronized (this)
+        {
+            devices = new ArrayList<>(active.keySet());
+
+            for (Map.Entry<Object, CommandListener> entry : listeners.entrySet())
+            {
+                if (entry.getKey() instanceof PC11xx)
+                {
+                    ((PC11xx) entry.getKey()).removeCommandListener(entry.getValue());
+                }
+                else
+                {
+                    ((PR1132) entry.getKey()).removeCommandListener(entry.getValue());
+                }
+            }
+
+            listeners.clear();
+        }
+
+        for (Object device : devices)
+        {
+            cancelAll(device);
+        }
+
+        if (Thread.currentThread() != thread)
+        {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
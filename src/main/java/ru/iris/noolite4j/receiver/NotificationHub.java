@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.receiver;
+
+import ru.iris.noolite4j.watchers.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Раздача принятых посылок нескольким подписчикам.
+ * Поток приемника копирует посылки в заранее выделенный кольцевой буфер
+ * без блокировок, каждый подписчик читает буфер в своем потоке со своей скоростью.
+ * Если подписчик отстает больше, чем на размер буфера, старые посылки для него теряются.
+ *
+ * Посылка занимает 8 байт и хранится в ячейке целиком как один long, поэтому запись и чтение
+ * ячейки атомарны. Номер посылки в ячейке пишется и читается до и после нее, все обращения -
+ * volatile, так что читатель не увидит посылку раньше номера и заметит перезапись
+ */
+public class NotificationHub {
+
+    private static final long WRITING = -1L;
+
+    /**
+     * Посылки, упакованные в long
+     * @see NotificationFrame#toLong()
+     */
+    private final AtomicLongArray ring;
+
+    /**
+     * Номер посылки, записанной в ячейку, или WRITING во время записи
+     */
+    private final AtomicLongArray stamps;
+    private final int capacity;
+    private final int mask;
+
+    /**
+     * Номер следующей записываемой ячейки
+     */
+    private final AtomicLong cursor = new AtomicLong(0);
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param capacity размер буфера, округляется вверх до степени двойки
+     */
+    public NotificationHub(int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("Размер буфера должен быть больше 0");
+        }
+
+        int size = 1;
+
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.ring = new AtomicLongArray(size);
+        this.stamps = new AtomicLongArray(size);
+
+        for (int i = 0; i < size; i++)
+        {
+            stamps.set(i, WRITING);
+        }
+    }
+
+    /**
+     * Публикует посылку. Вызывается только из одного потока
+     * @param buf буфер с посылкой, позиция буфера не меняется
+     */
+    public void publish(ByteBuffer buf)
+    {
+        long bits = 0;
+
+        for (int i = 0; i < NotificationFrame.SIZE; i++)
+        {
+            bits |= (buf.get(i) & 0xffL) << (i * 8);
+        }
+
+        publish(bits);
+    }
+
+    /**
+     * Публикует посылку. Вызывается только из одного потока
+     * @param frame посылка
+     */
+    public void publish(NotificationFrame frame)
+    {
+        publish(frame.toLong());
+    }
+
+    private void publish(long bits)
+    {
+        long seq = cursor.get();
+        int slot = (int) (seq & mask);
+
+        stamps.set(slot, WRITING);
+        ring.set(slot, bits);
+        stamps.set(slot, seq);
+        cursor.set(seq + 1);
+
+        for (Subscription subscription : subscriptions)
+        {
+            subscription.wakeUp();
+        }
+    }
+
+    /**
+     * Подписывает обработчик на посылки без создания объектов на каждую посылку.
+     * Обработчик получает только посылки, опубликованные после подписки
+     * @param watcher обработчик
+     * @return подписка
+     */
+    public Subscription subscribeFrames(FrameWatcher watcher)
+    {
+        return register(watcher, watcher);
+    }
+
+    /**
+     * Подписывает обработчик на уведомления.
+     * Обработчик получает только уведомления, опубликованные после подписки
+     * @param watcher обработчик
+     * @return подписка
+     */
+    public Subscription subscribe(final Watcher watcher)
+    {
+        return register(new FrameWatcher() {
+            @Override
+            public void onFrame(NotificationFrame frame) {
+                watcher.onNotification(frame.toNotification());
+            }
+        }, watcher);
+    }
+
+    /**
+     * Подписывает обработчик на типизированные события.
+     * Обработчик получает только события, опубликованные после подписки
+     * @param watcher обработчик
+     * @return подписка
+     */
+    public Subscription subscribeEvents(final EventWatcher watcher)
+    {
+        return register(new FrameWatcher() {
+            @Override
+            public void onFrame(NotificationFrame frame) {
+                NooliteEvent event = NooliteEvent.from(frame);
+
+                if (event != null)
+                {
+                    event.dispatch(watcher);
+                }
+            }
+        }, watcher);
+    }
+
+    private Subscription register(FrameWatcher watcher, Object listener)
+    {
+        Subscription subscription = new Subscription(this, watcher, listener, cursor.get());
+        subscriptions.add(subscription);
+        subscription.start();
+        return subscription;
+    }
+
+    /**
+     * Отменяет подписку
+     * @param subscription подписка
+     */
+    public void unsubscribe(Subscription subscription)
+    {
+        if (subscriptions.remove(subscription))
+        {
+            subscription.stop();
+        }
+    }
+
+    /**
+     * Отменяет подписку для обработчика
+     * @param listener обработчик, переданный в subscribe, subscribeFrames или subscribeEvents
+     */
+    public void unsubscribe(Object listener)
+    {
+        for (Subscription subscription : subscriptions)
+        {
+            if (subscription.getListener() == listener)
+            {
+                unsubscribe(subscription);
+            }
+        }
+    }
+
+    /**
+     * Отменяет все подписки
+     */
+    public void close()
+    {
+        for (Subscription subscription : subscriptions)
+        {
+            unsubscribe(subscription);
+        }
+    }
+
+    /**
+     * @return текущие подписки
+     */
+    public Iterable<Subscription> getSubscriptions()
+    {
+        return subscriptions;
+    }
+
+    /**
+     * @return количество опубликованных посылок
+     */
+    public long getPublished()
+    {
+        return cursor.get();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    long cursor()
+    {
+        return cursor.get();
+    }
+
+    /**
+     * Читает посылку в frame
+     * @param seq номер посылки
+     * @param frame куда читать
+     * @return false, если ячейка уже перезаписана более новой посылкой
+     */
+    boolean read(long seq, NotificationFrame frame)
+    {
+        int slot = (int) (seq & mask);
+
+        if (stamps.get(slot) != seq)
+        {
+            return false;
+        }
+
+        long bits = ring.get(slot);
+
+        if (stamps.get(slot) != seq)
+        {
+            return false;
+        }
+
+        frame.wrap(bits);
+        return true;
+    }
+}
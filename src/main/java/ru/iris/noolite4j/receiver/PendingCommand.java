@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.receiver;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Команда управления RX2164 (привязка, отвязка), ожидающая выполнения в потоке приема.
+ * Результат - true, если команда выполнена (для привязки - если получена посылка BIND),
+ * false, если истекло время ожидания или произошла ошибка
+ */
+class PendingCommand implements Future<Boolean> {
+
+    private final byte mode;
+    private final byte channel;
+    private final long deadline;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean result;
+    private volatile boolean cancelled;
+
+    /**
+     * @param mode команда (FrameCodec.RX2164_BIND и т.д.)
+     * @param channel канал приемника
+     * @param timeoutMs время ожидания выполнения
+     */
+    PendingCommand(byte mode, byte channel, long timeoutMs)
+    {
+        this.mode = mode;
+        this.channel = channel;
+        this.deadline = System.currentTimeMillis() + timeoutMs;
+    }
+
+    byte getMode()
+    {
+        return mode;
+    }
+
+    byte getChannel()
+    {
+        return channel;
+    }
+
+    boolean isExpired(long now)
+    {
+        return now >= deadline;
+    }
+
+    /**
+     * Завершает команду, повторные вызовы игнорируются
+     * @param result результат
+     */
+    synchronized void complete(boolean result)
+    {
+        if (done.getCount() == 0)
+        {
+            return;
+        }
+
+        this.result = result;
+        done.countDown();
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning)
+    {
+        if (done.getCount() == 0)
+        {
+            return false;
+        }
+
+        cancelled = true;
+        complete(false);
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Ждет выполнения команды, но не дольше заданного при создании времени
+     * @throws CancellationException команда отменена
+     */
+    @Override
+    public Boolean get() throws InterruptedException
+    {
+        long left = deadline - System.currentTimeMillis();
+
+        if (left > 0)
+        {
+            done.await(left, TimeUnit.MILLISECONDS);
+        }
+
+        complete(false);
+        return result();
+    }
+
+    @Override
+    public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+    {
+        long left = Math.min(unit.toMillis(timeout), deadline - System.currentTimeMillis());
+
+        if (left > 0)
+        {
+            done.await(left, TimeUnit.MILLISECONDS);
+        }
+
+        if (isExpired(System.currentTimeMillis()))
+        {
+            complete(false);
+        }
+
+        if (!isDone())
+        {
+            throw new TimeoutException();
+        }
+
+        return result();
+    }
+
+    private Boolean result()
+    {
+        if (cancelled)
+        {
+            throw new CancellationException("Команда RX2164 отменена");
+        }
+
+        return result;
+    }
+}
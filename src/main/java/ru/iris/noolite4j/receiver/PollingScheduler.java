@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.receiver;
+
+/**
+ * Планировщик интервала опроса RX2164.
+ * После получения новой команды интервал опроса сокращается до минимального
+ * и держится на нем в течение окна активности, затем экспоненциально
+ * увеличивается до максимального, пока новых команд нет
+ */
+public class PollingScheduler {
+
+    private static final long DEFAULT_MIN_INTERVAL_MS = 20L;
+    private static final long DEFAULT_MAX_INTERVAL_MS = 1000L;
+    private static final long DEFAULT_BURST_WINDOW_MS = 2000L;
+    private static final double DEFAULT_BACKOFF_FACTOR = 1.5;
+
+    /**
+     * Постоянная времени для оценки частоты команд
+     */
+    private static final double RATE_TAU_MS = 10000.0;
+
+    private long minIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+    private long maxIntervalMs = DEFAULT_MAX_INTERVAL_MS;
+    private long burstWindowMs = DEFAULT_BURST_WINDOW_MS;
+    private double backoffFactor = DEFAULT_BACKOFF_FACTOR;
+
+    private long currentIntervalMs = 200L;
+    private long lastFrameTime = Long.MIN_VALUE;
+
+    private double frameRate = 0;
+    private long rateUpdateTime = System.currentTimeMillis();
+
+    /**
+     * Сообщает планировщику о получении новой команды
+     */
+    public synchronized void onFrame()
+    {
+        long now = System.currentTimeMillis();
+
+        decayRate(now);
+        frameRate += 1000.0 / RATE_TAU_MS;
+
+        lastFrameTime = now;
+        currentIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * Сообщает планировщику, что опрос не принес новых данных
+     */
+    public synchronized void onIdle()
+    {
+        long now = System.currentTimeMillis();
+
+        if (lastFrameTime != Long.MIN_VALUE && now - lastFrameTime < burstWindowMs)
+        {
+            currentIntervalMs = minIntervalMs;
+            return;
+        }
+
+        currentIntervalMs = Math.min(maxIntervalMs, Math.max(currentIntervalMs + 1, (long) (currentIntervalMs * backoffFactor)));
+    }
+
+    /**
+     * Возвращает текущий интервал опроса
+     * @return интервал в миллисекундах
+     */
+    public synchronized long getCurrentInterval()
+    {
+        return currentIntervalMs;
+    }
+
+    /**
+     * Возвращает наблюдаемую частоту команд
+     * (экспоненциальное среднее с постоянной времени 10 секунд)
+     * @return команд в секунду
+     */
+    public synchronized double getFrameRate()
+    {
+        decayRate(System.currentTimeMillis());
+        return frameRate;
+    }
+
+    private void decayRate(long now)
+    {
+        long elapsed = now - rateUpdateTime;
+
+        if (elapsed > 0)
+        {
+            frameRate *= Math.exp(-elapsed / RATE_TAU_MS);
+            rateUpdateTime = now;
+        }
+    }
+
+    public synchronized long getMinInterval() {
+        return minIntervalMs;
+    }
+
+    /**
+     * Устанавливает минимальный интервал опроса (режим активности)
+     * @param minIntervalMs интервал в миллисекундах
+     */
+    public synchronized void setMinInterval(long minIntervalMs) {
+
+        if (minIntervalMs <= 0 || minIntervalMs > maxIntervalMs)
+        {
+            throw new IllegalArgumentException("Минимальный интервал должен быть больше 0 и не больше максимального");
+        }
+
+        this.minIntervalMs = minIntervalMs;
+        currentIntervalMs = Math.max(currentIntervalMs, minIntervalMs);
+    }
+
+    public synchronized long getMaxInterval() {
+        return maxIntervalMs;
+    }
+
+    /**
+     * Устанавливает максимальный интервал опроса (режим простоя)
+     * @param maxIntervalMs интервал в миллисекундах
+     */
+    public synchronized void setMaxInterval(long maxIntervalMs) {
+
+        if (maxIntervalMs < minIntervalMs)
+        {
+            throw new IllegalArgumentException("Максимальный интервал не может быть меньше минимального");
+        }
+
+        this.maxIntervalMs = maxIntervalMs;
+        currentIntervalMs = Math.min(currentIntervalMs, maxIntervalMs);
+    }
+
+    public synchronized long getBurstWindow() {
+        return burstWindowMs;
+    }
+
+    /**
+     * Устанавливает время, в течение которого после последней команды
+     * опрос идет с минимальным интервалом
+     * @param burstWindowMs время в миллисекундах
+     */
+    public synchronized void setBurstWindow(long burstWindowMs) {
+        this.burstWindowMs = burstWindowMs;
+    }
+
+    public synchronized double getBackoffFactor() {
+        return backoffFactor;
+    }
+
+    /**
+     * Устанавливает множитель увеличения интервала при отсутствии команд
+     * @param backoffFactor множитель, больше 1
+     */
+    public synchronized void setBackoffFactor(double backoffFactor) {
+
+        if (backoffFactor <= 1)
+        {
+            throw new IllegalArgumentException("Множитель должен быть больше 1");
+        }
+
+        this.backoffFactor = backoffFactor;
+    }
+}
@@ -18,13 +18,21 @@ package ru.iris.noolite4j.receiver;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.usb4java.Context;
-import org.usb4java.DeviceHandle;
-import org.usb4java.LibUsb;
-import org.usb4java.LibUsbException;
+import org.usb4java.*;
+import ru.iris.noolite4j.codec.FrameCodec;
+import ru.iris.noolite4j.transport.Transport;
+import ru.iris.noolite4j.transport.Usb4javaTransport;
 import ru.iris.noolite4j.watchers.*;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Приемник комманд RX2164
@@ -33,24 +41,135 @@ import java.nio.ByteBuffer;
 
 public class RX2164 {
 
-    private static final long READ_UPDATE_DELAY_MS = 200L;
-    private static final short VENDOR_ID = 5824; // 0x16c0;
-    private static final short PRODUCT_ID = 1500; // 0x05dc;
+    private static final long EVENT_TIMEOUT_US = 100000L;
+    private static final int CANCEL_WAIT_ROUNDS = 10;
+    private static final long BIND_TIMEOUT_MS = 30000L;
+    private static final long COMMAND_TIMEOUT_MS = 5000L;
+    static final short VENDOR_ID = 5824; // 0x16c0;
+    static final short PRODUCT_ID = 1500; // 0x05dc;
     private final Logger LOGGER = LoggerFactory.getLogger(RX2164.class.getName());
-    private final Context context = new Context();
-    private Watcher watcher = null;
+    private final Context context;
+
+    /**
+     * Конкретное устройство, если приемником управляет {@link RX2164Manager}
+     */
+    private final Device device;
+
+    /**
+     * События libusb обрабатывает поток менеджера, а не собственный поток
+     */
+    private final boolean managed;
+    private final Transport transport;
+    private static final int HUB_CAPACITY = 256;
     private byte availableChannels = 64;
-    private boolean shutdown = false;
-    private DeviceHandle handle;
-    private boolean pause = false;
+    private volatile boolean shutdown = false;
+    private volatile boolean commandsServiced = false;
+    private FrameWatcher frameListener;
+    private ReceiveMode receiveMode = ReceiveMode.ASYNC;
+    private volatile ReceiveMode activeMode = null;
+    private Thread receiveThread;
+    private Transfer transfer;
+    private volatile boolean transferActive = false;
+    private final PollingScheduler pollingScheduler = new PollingScheduler();
+    private final NotificationHub hub = new NotificationHub(HUB_CAPACITY);
+
+    /**
+     * Разбор посылок в потоке приема
+     */
+    private final NotificationFrame frame = new NotificationFrame();
+
+    /**
+     * Команды привязки и отвязки, выполняемые потоком приема
+     */
+    private final Queue<PendingCommand> commands = new ConcurrentLinkedQueue<>();
+    private final List<PendingCommand> awaitingBind = new ArrayList<>();
+    private final ByteBuffer commandBuf = ByteBuffer.allocateDirect(FrameCodec.FRAME_SIZE);
+    private final byte[] commandFrame = new byte[FrameCodec.FRAME_SIZE];
+
+    // Для старта берем такое число, которое точно не может быть в данный момент в TOGL
+    private int lastTogl = -10000;
+
+    public RX2164()
+    {
+        this.context = new Context();
+        this.device = null;
+        this.managed = false;
+        this.transport = new Usb4javaTransport("RX2164", context, null, VENDOR_ID, PRODUCT_ID, Usb4javaTransport.HID_IN);
+    }
+
+    /**
+     * Приемник поверх заданного транспорта, например {@link ru.iris.noolite4j.transport.LoopbackTransport}.
+     * LibUSB при этом не инициализируется, а данные получаются опросом
+     * @param transport транспорт до устройства
+     */
+    public RX2164(Transport transport)
+    {
+        this.context = null;
+        this.device = null;
+        this.managed = false;
+        this.transport = transport;
+    }
+
+    /**
+     * Приемник, открываемый {@link RX2164Manager} на общем контексте libusb
+     * @param context контекст менеджера
+     * @param device устройство
+     */
+    RX2164(Context context, Device device)
+    {
+        this.context = context;
+        this.device = device;
+        this.managed = true;
+        this.transport = new Usb4javaTransport("RX2164", context, device, VENDOR_ID, PRODUCT_ID, Usb4javaTransport.HID_IN);
+    }
 
     /**
-     * Тут задается класс-callback
+     * Добавляет класс-callback.
+     * Каждый обработчик получает уведомления в своем потоке
      * @param watcher собственно сам класс
+     * @return подписка обработчика
+     */
+    public Subscription addWatcher(Watcher watcher)
+    {
+        return hub.subscribe(watcher);
+    }
+
+    /**
+     * Добавляет обработчик посылок без создания объектов на каждую посылку
+     * @param watcher обработчик
+     * @return подписка обработчика
+     */
+    public Subscription addFrameWatcher(FrameWatcher watcher)
+    {
+        return hub.subscribeFrames(watcher);
+    }
+
+    /**
+     * Добавляет обработчик типизированных событий
+     * @param watcher обработчик
+     * @return подписка обработчика
      */
-    public void addWatcher(Watcher watcher)
+    public Subscription addEventWatcher(EventWatcher watcher)
     {
-        this.watcher = watcher;
+        return hub.subscribeEvents(watcher);
+    }
+
+    /**
+     * Удаляет класс-callback
+     * @param watcher обработчик, добавленный через addWatcher, addFrameWatcher или addEventWatcher
+     */
+    public void removeWatcher(Object watcher)
+    {
+        hub.unsubscribe(watcher);
+    }
+
+    /**
+     * Возвращает очередь раздачи уведомлений подписчикам
+     * @return очередь уведомлений
+     */
+    public NotificationHub getNotificationHub()
+    {
+        return hub;
     }
 
     /**
@@ -61,61 +180,123 @@ public class RX2164 {
 
         LOGGER.debug("Открывается устройство RX2164");
 
-        // Инициализируем контекст
-        int result = LibUsb.init(context);
-        if (result != LibUsb.SUCCESS)
+        if (device == null && context != null)
         {
-            try
+            // Инициализируем контекст
+            int result = LibUsb.init(context);
+            if (result != LibUsb.SUCCESS)
             {
-                throw new LibUsbException("Не удалось инициализировать libusb", result);
-            }
-            catch (LibUsbException e)
-            {
-                LOGGER.error("Не удалось инициализировать libusb: ", result);
-                e.printStackTrace();
+                try
+                {
+                    throw new LibUsbException("Не удалось инициализировать libusb", result);
+                }
+                catch (LibUsbException e)
+                {
+                    LOGGER.error("Не удалось инициализировать libusb: ", result);
+                    e.printStackTrace();
+                }
             }
         }
 
-        handle = LibUsb.openDeviceWithVidPid(context, VENDOR_ID, PRODUCT_ID);
+        transport.openHandle();
+    }
+
+    /**
+     * Завершение работы
+     */
+    public void close() {
+        LOGGER.debug("Закрывается устройство RX2164");
+        shutdown = true;
 
-        if (handle == null)
+        if (transfer != null)
         {
-            LOGGER.error("Устройство RX2164 не найдено!");
-            return;
+            LibUsb.cancelTransfer(transfer);
         }
 
-        if (LibUsb.kernelDriverActive(handle, 0) == 1)
+        boolean receiving = false;
+
+        if (receiveThread != null)
         {
-            LibUsb.detachKernelDriver(handle, 0);
-        }
+            /**
+             * Поток опроса может спать до следующего опроса - будим его
+             */
+            LockSupport.unpark(receiveThread);
+
+            try {
+                receiveThread.join(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
 
-        int ret = LibUsb.setConfiguration(handle, 1);
+            receiving = receiveThread.isAlive();
+        }
 
-        if (ret != LibUsb.SUCCESS)
+        /**
+         * У приемника менеджера нет своего потока событий: отмененная передача
+         * должна завершиться до закрытия устройства
+         */
+        if (managed)
         {
-            LOGGER.error("Ошибка конфигурирования RX2164");
-            LibUsb.close(handle);
-            if (ret == LibUsb.ERROR_BUSY)
+            for (int i = 0; i < CANCEL_WAIT_ROUNDS && transferActive; i++)
             {
-                LOGGER.error("Устройство RX2164 занято");
+                LibUsb.handleEventsTimeout(context, EVENT_TIMEOUT_US);
             }
+        }
+
+        commandsServiced = false;
+        hub.close();
+
+        if (transferActive)
+        {
+            LOGGER.error("Передача RX2164 не завершилась, устройство остается открытым");
             return;
         }
 
-        LibUsb.claimInterface(handle, 0);
+        if (receiving)
+        {
+            LOGGER.error("Поток приема RX2164 не остановился, устройство остается открытым");
+            return;
+        }
+
+        if (transfer != null)
+        {
+            LibUsb.freeTransfer(transfer);
+            transfer = null;
+        }
+
+        transport.close();
+
+        if (!managed && context != null)
+            LibUsb.exit(context);
     }
 
     /**
-     * Завершение работы
+     * Задает предпочитаемый способ получения данных.
+     * Если асинхронный режим недоступен, используется опрос устройства
+     * @param receiveMode способ получения данных
      */
-    public void close() {
-        LOGGER.debug("Закрывается устройство RX2164");
-        shutdown = true;
+    public void setReceiveMode(ReceiveMode receiveMode)
+    {
+        this.receiveMode = receiveMode;
+    }
 
-        if(handle != null)
-            LibUsb.close(handle);
+    /**
+     * Возвращает способ получения данных, используемый в данный момент
+     * @return способ получения данных или null, если прием не запущен
+     */
+    public ReceiveMode getReceiveMode()
+    {
+        return activeMode;
+    }
 
-        LibUsb.exit(context);
+    /**
+     * Возвращает планировщик интервала опроса.
+     * Используется, если прием идет в режиме опроса
+     * @return планировщик опроса
+     */
+    public PollingScheduler getPollingScheduler()
+    {
+        return pollingScheduler;
     }
 
     /**
@@ -125,16 +306,190 @@ public class RX2164 {
     {
         LOGGER.debug("Запускается процесс получения данных на устройстве RX2164");
 
-        new Thread(new Runnable() {
+        if (receiveMode == ReceiveMode.ASYNC && startAsync())
+        {
+            activeMode = ReceiveMode.ASYNC;
+            LOGGER.debug("RX2164 получает данные через асинхронные передачи libusb");
+            return;
+        }
+
+        activeMode = ReceiveMode.POLLING;
+        LOGGER.debug("RX2164 получает данные опросом устройства");
+        startPolling();
+    }
+
+    /**
+     * Запуск приема через interrupt-передачи libusb.
+     * Передача постоянно находится в очереди устройства и завершается,
+     * как только адаптер сообщает новые данные
+     * @return удалось ли запустить асинхронный прием
+     */
+    private boolean startAsync()
+    {
+        if (!(transport instanceof Usb4javaTransport) || !transport.isOpen())
+        {
+            return false;
+        }
+
+        DeviceHandle handle = ((Usb4javaTransport) transport).getHandle();
+
+        byte endpoint = findInterruptEndpoint(handle);
+
+        if (endpoint == 0)
+        {
+            LOGGER.debug("У RX2164 не найдена interrupt-точка, асинхронный прием недоступен");
+            return false;
+        }
+
+        transfer = LibUsb.allocTransfer();
+        LibUsb.fillInterruptTransfer(transfer, handle, endpoint, ByteBuffer.allocateDirect(FrameCodec.FRAME_SIZE), new TransferCallback() {
+            @Override
+            public void processTransfer(Transfer transfer) {
+                onTransferComplete(transfer);
+            }
+        }, null, 0L);
+
+        int result = LibUsb.submitTransfer(transfer);
+
+        if (result != LibUsb.SUCCESS)
+        {
+            LOGGER.debug("Не удалось запустить асинхронный прием RX2164: " + LibUsb.errorName(result));
+            LibUsb.freeTransfer(transfer);
+            transfer = null;
+            return false;
+        }
+
+        transferActive = true;
+
+        /**
+         * События обрабатывает поток менеджера
+         */
+        if (managed)
+        {
+            commandsServiced = true;
+            return true;
+        }
+
+        receiveThread = new Thread(new Runnable() {
             @Override
             public void run() {
 
-                int togl;
+                /**
+                 * Обработка событий libusb, в том числе завершения передач.
+                 * После остановки дожидаемся отмены передачи
+                 */
+                while (!shutdown || transferActive) {
+                    LibUsb.handleEventsTimeout(context, EVENT_TIMEOUT_US);
+                    processCommands();
+                }
+            }
+        }, "RX2164 events");
+
+        commandsServiced = true;
+        receiveThread.start();
+
+        return true;
+    }
+
+    /**
+     * Обработка завершенной interrupt-передачи
+     * @param transfer передача
+     */
+    private void onTransferComplete(Transfer transfer)
+    {
+        int status = transfer.status();
 
-                // Для старта бурем такое число, которе точно не может быть в данный момент в TOGL
-                int tmpTogl = -10000;
+        if (status == LibUsb.TRANSFER_COMPLETED && transfer.actualLength() > 0)
+        {
+            ByteBuffer buf = transfer.buffer();
+            int togl = buf.get(0) & 63;
+
+            if (togl != lastTogl)
+            {
+                processFrame(buf);
+                lastTogl = togl;
+            }
+        }
+        else if (status != LibUsb.TRANSFER_TIMED_OUT)
+        {
+            if (status != LibUsb.TRANSFER_CANCELLED)
+            {
+                LOGGER.error("Асинхронный прием RX2164 прерван, статус передачи: " + status);
+            }
 
-                ByteBuffer buf = ByteBuffer.allocateDirect(8);
+            transferActive = false;
+            return;
+        }
+
+        /**
+         * Передачу освобождает close() после того, как она перестанет быть активной
+         */
+        if (shutdown)
+        {
+            transferActive = false;
+            return;
+        }
+
+        int result = LibUsb.submitTransfer(transfer);
+
+        if (result != LibUsb.SUCCESS)
+        {
+            LOGGER.error("Не удалось повторно запустить передачу RX2164: " + LibUsb.errorName(result));
+            transferActive = false;
+        }
+    }
+
+    /**
+     * Ищет interrupt IN точку HID-интерфейса приемника
+     * @param handle открытое устройство
+     * @return адрес точки или 0, если точка не найдена
+     */
+    private byte findInterruptEndpoint(DeviceHandle handle)
+    {
+        ConfigDescriptor config = new ConfigDescriptor();
+
+        if (LibUsb.getActiveConfigDescriptor(LibUsb.getDevice(handle), config) != LibUsb.SUCCESS)
+        {
+            return 0;
+        }
+
+        try
+        {
+            for (Interface iface : config.iface())
+            {
+                for (InterfaceDescriptor setting : iface.altsetting())
+                {
+                    for (EndpointDescriptor endpoint : setting.endpoint())
+                    {
+                        if ((endpoint.bEndpointAddress() & LibUsb.ENDPOINT_DIR_MASK) == LibUsb.ENDPOINT_IN
+                                && (endpoint.bmAttributes() & LibUsb.TRANSFER_TYPE_MASK) == LibUsb.TRANSFER_TYPE_INTERRUPT)
+                        {
+                            return endpoint.bEndpointAddress();
+                        }
+                    }
+                }
+            }
+        }
+        finally
+        {
+            LibUsb.freeConfigDescriptor(config);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Запуск приема опросом устройства
+     */
+    private void startPolling()
+    {
+        receiveThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                int togl;
+
+                ByteBuffer buf = ByteBuffer.allocateDirect(FrameCodec.FRAME_SIZE);
 
                 /**
                  * Главный цикл получения данных
@@ -142,13 +497,11 @@ public class RX2164 {
                 while (!shutdown) {
 
                     /**
-                     * Пауза нужна для того чтобы иметь возможность записать буффер в устройство
-                     * (привязка, отвязка)
-                     * TODO возможно, есть решение лучше
+                     * Команды привязки и отвязки записываются в устройство между чтениями
                      */
-                    if (!pause) {
-                        LibUsb.controlTransfer(handle, (byte)(LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE | LibUsb.ENDPOINT_IN), (byte)0x9, (short)0x300, (short)0, buf, 100L);
-                    }
+                    processCommands();
+
+                    transport.read(buf, 100L);
 
                     /**
                      * Сравниваем значение TOGL, чтобы понять, что пришла новая команда
@@ -159,291 +512,291 @@ public class RX2164 {
                      * Получена новая команда
                      * TOGL может быть 0
                      */
-                    if (togl != tmpTogl) {
-
-                        Notification notification = new Notification();
+                    if (togl != lastTogl) {
+                        processFrame(buf);
+                        pollingScheduler.onFrame();
+                    }
+                    else
+                    {
+                        pollingScheduler.onIdle();
+                    }
 
-                        notification.setBuffer(buf);
+                    /**
+                     * Спим. Новая команда для приемника прерывает ожидание
+                     */
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(pollingScheduler.getCurrentInterval()));
 
-                        byte channel = (byte) (buf.get(1) + 1);
-                        byte action = buf.get(2);
-                        byte dataFormat = buf.get(3);
+                    lastTogl = togl;
+                    buf.clear();
+                }
+            }
+        }, "RX2164 polling");
 
-                        LOGGER.debug("Получена новая команда для RX2164");
-                        LOGGER.debug("Значение TOGL: " + togl);
-                        LOGGER.debug("Команда: " + CommandType.getValue(action).name());
-                        LOGGER.debug("Канал: " + channel);
+        commandsServiced = true;
+        receiveThread.start();
+    }
 
-                        if (dataFormat == DataFormat.NO_DATA.ordinal()) {
-                            LOGGER.debug("Количество данных к команде: нет");
-                            notification.setDataFormat(DataFormat.NO_DATA);
-                        } else if (dataFormat == DataFormat.ONE_BYTE.ordinal()) {
-                            LOGGER.debug("Количество данных к команде: 1 байт");
-                            notification.setDataFormat(DataFormat.ONE_BYTE);
-                        }
-                        else if (dataFormat == DataFormat.TWO_BYTE.ordinal()) {
-                            LOGGER.debug("Количество данных к команде: 2 байта");
-                            notification.setDataFormat(DataFormat.TWO_BYTE);
-                        }
-                        else if (dataFormat == DataFormat.FOUR_BYTE.ordinal()) {
-                            LOGGER.debug("Количество данных к команде: 4 байта");
-                            notification.setDataFormat(DataFormat.FOUR_BYTE);
-                        }
-                        else if(dataFormat == DataFormat.LED.ordinal()) {
-                            LOGGER.debug("Количество данных к команде: формат LED");
-                            notification.setDataFormat(DataFormat.LED);
-                        }
-                        else
-                        {
-                            LOGGER.debug("Количество данных к команде: неизвестный тип");
-                            notification.setDataFormat(DataFormat.NO_DATA);
-                        }
+    /**
+     * Разбор полученной посылки и передача подписчикам
+     * @param buf буффер с данными от приемника
+     */
+    private void processFrame(ByteBuffer buf)
+    {
+        frame.wrap(buf);
 
-                        notification.setChannel(channel);
+        CommandType type = frame.getType();
 
-                        switch (CommandType.getValue(action))
-                        {
-                            case TURN_ON:
-                                notification.setType(CommandType.TURN_ON);
-                                watcher.onNotification(notification);
-                                break;
-                            case TURN_OFF:
-                                notification.setType(CommandType.TURN_OFF);
-                                watcher.onNotification(notification);
-                                break;
-                            case SET_LEVEL:
-                                notification.setType(CommandType.SET_LEVEL);
-                                notification.addData("level", buf.get(4));
-                                LOGGER.debug("Уровень устройства: " + buf.get(4));
-                                watcher.onNotification(notification);
-                                break;
-                            case SWITCH:
-                                notification.setType(CommandType.SWITCH);
-                                watcher.onNotification(notification);
-                                break;
-                            case SLOW_TURN_ON:
-                                notification.setType(CommandType.SLOW_TURN_ON);
-                                watcher.onNotification(notification);
-                                break;
-                            case SLOW_TURN_OFF:
-                                notification.setType(CommandType.SLOW_TURN_OFF);
-                                watcher.onNotification(notification);
-                                break;
-                            case STOP_DIM_BRIGHT:
-                                notification.setType(CommandType.STOP_DIM_BRIGHT);
-                                watcher.onNotification(notification);
-                                break;
-                            case REVERT_SLOW_TURN:
-                                notification.setType(CommandType.REVERT_SLOW_TURN);
-                                watcher.onNotification(notification);
-                                break;
-                            case RUN_SCENE:
-                                notification.setType(CommandType.RUN_SCENE);
-                                watcher.onNotification(notification);
-                                break;
-                            case RECORD_SCENE:
-                                notification.setType(CommandType.RECORD_SCENE);
-                                watcher.onNotification(notification);
-                                break;
-                            case BIND:
-                                notification.setType(CommandType.BIND);
-
-                                /**
-                                 * Если привязывается датчик, то он передает дополнительно свой тип
-                                 */
-                                if(notification.getDataFormat() == DataFormat.ONE_BYTE)
-                                {
-                                    // Тип сенсора
-                                    notification.addData("sensortype", SensorType.values()[(buf.get(4) & 0xff)]);
-                                }
-
-                                watcher.onNotification(notification);
-                                break;
-                            case UNBIND:
-                                notification.setType(CommandType.UNBIND);
-                                watcher.onNotification(notification);
-                                break;
-                            case SLOW_RGB_CHANGE:
-                                notification.setType(CommandType.SLOW_RGB_CHANGE);
-                                watcher.onNotification(notification);
-                                break;
-                            case SWITCH_COLOR:
-                                notification.setType(CommandType.SWITCH_COLOR);
-                                watcher.onNotification(notification);
-                                break;
-                            case SWITCH_MODE:
-                                notification.setType(CommandType.SWITCH_MODE);
-                                watcher.onNotification(notification);
-                                break;
-                            case SWITCH_SPEED_MODE:
-                                notification.setType(CommandType.SWITCH_SPEED_MODE);
-                                watcher.onNotification(notification);
-                                break;
-                            case BATTERY_LOW:
-                                notification.setType(CommandType.BATTERY_LOW);
-                                watcher.onNotification(notification);
-                                break;
-                            case TEMP_HUMI:
-                                notification.setType(CommandType.TEMP_HUMI);
-
-                                /**
-                                 * Информация о температуре, типе датчика и состоянии батареи
-                                 * размазана по 2 байтам
-                                 */
-
-                                int intTemp = ((buf.get(5) & 0x0f) << 8) + (buf.get(4) & 0xff);
-
-                                if (intTemp >= 0x800)
-                                {
-                                    intTemp = intTemp - 0x1000;
-                                }
-
-                                // Приводим к градусам Цельсия
-                                double temp = (double)intTemp / 10;
-
-                                // Состояни батареи
-                                notification.addData("battery", BatteryState.values()[(buf.get(5) >> 7) & 1]);
-
-                                // Температура
-                                notification.addData("temp", temp);
-
-                                // Тип сенсора
-                                notification.addData("sensortype", SensorType.values()[((buf.get(5) >> 4) & 7)]);
-
-                                /**
-                                 * В третьем байте данных хранится влажность
-                                 */
-                                notification.addData("humi", buf.get(6) & 0xff);
-
-                                /**
-                                 * В четвертом байте данных хранятся данные о состоянии аналогового датчика
-                                 * По умолчанию - unsigned byte (255)
-                                 */
-                                notification.addData("analog", buf.get(7) & 0xff);
-
-                                watcher.onNotification(notification);
-                                break;
-
-                            default:
-                                LOGGER.error("Неизвестная команда: " + action);
-                        }
-                    }
+        if (type == null)
+        {
+            LOGGER.error("Неизвестная команда: " + frame.getCommandCode());
+            return;
+        }
 
-                    /**
-                     * Спим
-                     */
-                    try {
-                        Thread.sleep(READ_UPDATE_DELAY_MS);
-                    } catch (InterruptedException e) {
-                        LOGGER.error("Ошибка: " + e.getMessage());
-                        e.printStackTrace();
-                    }
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Получена новая команда для RX2164");
+            LOGGER.debug("Значение TOGL: " + frame.getTogl());
+            LOGGER.debug("Команда: " + type.name());
+            LOGGER.debug("Канал: " + frame.getChannel());
+            LOGGER.debug("Формат данных к команде: " + frame.getDataFormat().name());
 
-                    tmpTogl = togl;
-                    buf.clear();
-                }
+            if (type == CommandType.SET_LEVEL)
+            {
+                LOGGER.debug("Уровень устройства: " + frame.getLevel());
             }
-        }).start();
+        }
+
+        if (type == CommandType.BIND && !awaitingBind.isEmpty())
+        {
+            confirmBind(frame.getChannel() - 1);
+        }
+
+        hub.publish(buf);
+
+        if (frameListener != null)
+        {
+            frameListener.onFrame(frame);
+        }
+    }
+
+    /**
+     * Обработчик, вызываемый прямо в потоке приема (для {@link RX2164Manager})
+     * @param frameListener обработчик
+     */
+    void setFrameListener(FrameWatcher frameListener)
+    {
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * @return устройство, если приемником управляет {@link RX2164Manager}
+     */
+    Device getDevice()
+    {
+        return device;
+    }
+
+    /**
+     * @return открыто ли устройство
+     */
+    public boolean isOpen()
+    {
+        return transport.isOpen();
     }
 
     /**
      * Функция, используемая для привязки устройства
      * на определенный канал RX2164
      * @param channel канал, на которое будет привязано устройство
+     * @return результат: true, если устройство привязано, false - если истекло время ожидания
      */
-    public void bindChannel(byte channel)
+    public Future<Boolean> bindChannel(byte channel)
+    {
+        return bindChannel(channel, BIND_TIMEOUT_MS);
+    }
+
+    /**
+     * Функция, используемая для привязки устройства
+     * на определенный канал RX2164
+     * @param channel канал, на которое будет привязано устройство
+     * @param timeoutMs время ожидания посылки привязки от устройства
+     * @return результат: true, если устройство привязано, false - если истекло время ожидания
+     */
+    public Future<Boolean> bindChannel(byte channel, long timeoutMs)
     {
         LOGGER.debug("Получена новая команда для RX2164 - запрос привязки на канал " + channel);
 
         if(channel > availableChannels-1)
         {
             LOGGER.error("Заданный канал больше максимального значения!");
-            return;
-        }
-
-        ByteBuffer buf = ByteBuffer.allocateDirect(8);
-        buf.put((byte) 1);
-        buf.put(channel);
-
-        pause = true;
-        try {
-            Thread.sleep(1000L);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        LibUsb.controlTransfer(handle, (byte)(LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE | LibUsb.ENDPOINT_IN), (byte)0x9, (short)0x300, (short)0, buf, 100);
-        try {
-            Thread.sleep(500L);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            return rejected();
         }
-        pause = false;
 
-        LOGGER.debug("Команда выполнена");
+        return submit(new PendingCommand(FrameCodec.RX2164_BIND, channel, timeoutMs));
     }
 
     /**
      * Функция, используемая для отвязки устройства
      * с определенного канала RX2164
      * @param channel канал, с которого будет отвязано устройство
+     * @return результат: true, если команда передана в приемник
      */
-    public void unbindChannel(byte channel)
+    public Future<Boolean> unbindChannel(byte channel)
     {
         LOGGER.debug("Получена новая команда для RX2164 - запрос отвязки с канала " + channel);
 
         if(channel > availableChannels-1)
         {
             LOGGER.error("Заданный канал больше максимального значения!");
-            return;
+            return rejected();
         }
 
-        LOGGER.error("Заданный канал больше максимального значения!");
+        return submit(new PendingCommand(FrameCodec.RX2164_UNBIND, channel, COMMAND_TIMEOUT_MS));
+    }
 
-        ByteBuffer buf = ByteBuffer.allocateDirect(8);
-        buf.put((byte) 3);
-        buf.put(channel);
+    /**
+     * Функция, используемая для отвязки всех устройств RX2164
+     * @return результат: true, если команда передана в приемник
+     */
+    public Future<Boolean> unbindAllChannels()
+    {
+        LOGGER.debug("Получена новая команда для RX2164 - отчистка всех привязок");
+
+        return submit(new PendingCommand(FrameCodec.RX2164_UNBIND_ALL, (byte) 0, COMMAND_TIMEOUT_MS));
+    }
+
+    private Future<Boolean> rejected()
+    {
+        PendingCommand command = new PendingCommand((byte) 0, (byte) 0, 0);
+        command.complete(false);
+        return command;
+    }
 
-        pause = true;
-        try {
-            Thread.sleep(1000L);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * Ставит команду в очередь потока приема.
+     * Если прием не запущен, команда выполняется сразу в вызывающем потоке,
+     * при этом подтверждение привязки получить нельзя и результатом привязки
+     * становится результат записи команды в приемник
+     * @param command команда
+     * @return команда
+     */
+    private Future<Boolean> submit(PendingCommand command)
+    {
+        if (!commandsServiced)
+        {
+            synchronized (commands)
+            {
+                command.complete(execute(command));
+            }
+            return command;
         }
-        LibUsb.controlTransfer(handle, (byte)(LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE | LibUsb.ENDPOINT_IN), (byte)0x9, (short)0x300, (short)0, buf, 100);
-        try {
-            Thread.sleep(500L);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+
+        commands.add(command);
+
+        Thread thread = receiveThread;
+
+        if (thread != null)
+        {
+            LockSupport.unpark(thread);
         }
-        pause = false;
 
-        LOGGER.debug("Команда выполнена");
+        return command;
     }
 
     /**
-     * Функция, используемая для отвязки всех устройств RX2164
+     * Выполнение команд из очереди и проверка времени ожидания привязки.
+     * Вызывается потоком приема между чтениями
      */
-    public void unbindAllChannels()
+    void processCommands()
     {
-        LOGGER.debug("Получена новая команда для RX2164 - отчистка всех привязок");
+        if (shutdown)
+        {
+            return;
+        }
+
+        PendingCommand command;
+
+        while ((command = commands.poll()) != null)
+        {
+            if (execute(command) && command.getMode() == FrameCodec.RX2164_BIND)
+            {
+                awaitingBind.add(command);
+            }
+        }
 
-        ByteBuffer buf = ByteBuffer.allocateDirect(8);
-        buf.put((byte) 4);
+        if (!awaitingBind.isEmpty())
+        {
+            long now = System.currentTimeMillis();
+            Iterator<PendingCommand> it = awaitingBind.iterator();
 
-        pause = true;
-        try {
-            Thread.sleep(1000L);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            while (it.hasNext())
+            {
+                command = it.next();
+
+                if (command.isDone() || command.isExpired(now))
+                {
+                    if (!command.isDone())
+                    {
+                        LOGGER.debug("Истекло время ожидания привязки на канал " + command.getChannel());
+                        command.complete(false);
+                    }
+                    it.remove();
+                }
+            }
         }
-        LibUsb.controlTransfer(handle, (byte)(LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE | LibUsb.ENDPOINT_IN), (byte)0x9, (short)0x300, (short)0, buf, 100);
-        try {
-            Thread.sleep(500L);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    }
+
+    /**
+     * Запись команды в приемник.
+     * Привязка остается незавершенной до получения посылки BIND
+     * @param command команда
+     * @return true, если команда записана
+     */
+    private boolean execute(PendingCommand command)
+    {
+        if (command.isDone())
+        {
+            return false;
+        }
+
+        FrameCodec.encodeRx2164(commandFrame, command.getMode(), command.getChannel());
+
+        commandBuf.clear();
+        commandBuf.put(commandFrame);
+        commandBuf.flip();
+
+        int result = transport.write(commandBuf, 100L);
+
+        if (result < 0)
+        {
+            LOGGER.error("Ошибка передачи команды в RX2164: " + LibUsb.errorName(result));
+            command.complete(false);
+            return false;
         }
-        pause = false;
 
         LOGGER.debug("Команда выполнена");
+
+        if (command.getMode() != FrameCodec.RX2164_BIND)
+        {
+            command.complete(true);
+        }
+
+        return true;
+    }
+
+    /**
+     * Завершает ожидающие привязки на канале
+     * @param channel канал приемника, начиная с 0
+     */
+    private void confirmBind(int channel)
+    {
+        for (PendingCommand command : awaitingBind)
+        {
+            if (command.getChannel() == channel)
+            {
+                LOGGER.debug("Устройство привязано на канал " + channel);
+                command.complete(true);
+            }
+        }
     }
 }
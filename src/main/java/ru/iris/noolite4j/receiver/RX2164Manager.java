@@ -0,0 +1,426 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.receiver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.usb4java.*;
+import ru.iris.noolite4j.watchers.EventWatcher;
+import ru.iris.noolite4j.watchers.FrameWatcher;
+import ru.iris.noolite4j.watchers.NotificationFrame;
+import ru.iris.noolite4j.watchers.Watcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Работа с несколькими приемниками RX2164 на одном компьютере.
+ * Открывает все найденные приемники, подключает и отключает их на лету
+ * (если libusb поддерживает hotplug) и объединяет их посылки в один поток.
+ * Если одну и ту же посылку услышали несколько приемников, она передается подписчикам один раз
+ */
+public class RX2164Manager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RX2164Manager.class.getName());
+    private static final long EVENT_TIMEOUT_US = 100000L;
+    private static final int HUB_CAPACITY = 256;
+    private static final long DEFAULT_DUPLICATE_WINDOW_MS = 500L;
+
+    /**
+     * Сколько последних посылок помнить для отсева дублей
+     */
+    private static final int RECENT_SIZE = 16;
+
+    private final Context context = new Context();
+    private final Map<String, RX2164> adapters = new ConcurrentHashMap<>();
+    private final NotificationHub hub = new NotificationHub(HUB_CAPACITY);
+    private final Queue<Device> arrived = new ConcurrentLinkedQueue<>();
+    private final Queue<Device> left = new ConcurrentLinkedQueue<>();
+    private final HotplugCallbackHandle hotplugHandle = new HotplugCallbackHandle();
+    private boolean hotplug = false;
+    private volatile boolean shutdown = false;
+    private Thread eventThread;
+    private ReceiveMode receiveMode = ReceiveMode.ASYNC;
+    private volatile long duplicateWindowMs = DEFAULT_DUPLICATE_WINDOW_MS;
+
+    /**
+     * Последние переданные посылки: байты 1-7, время и приемник
+     */
+    private final long[] recentKeys = new long[RECENT_SIZE];
+    private final long[] recentTimes = new long[RECENT_SIZE];
+    private final RX2164[] recentAdapters = new RX2164[RECENT_SIZE];
+    private int recentNext = 0;
+    private long duplicates = 0;
+
+    /**
+     * Инициализирует libusb, открывает все найденные приемники и начинает прием
+     * @throws LibUsbException ошибка LibUSB
+     */
+    public void open() throws LibUsbException
+    {
+        LOGGER.debug("Запускается менеджер приемников RX2164");
+
+        int result = LibUsb.init(context);
+
+        if (result != LibUsb.SUCCESS)
+        {
+            throw new LibUsbException("Не удалось инициализировать libusb", result);
+        }
+
+        if (LibUsb.hasCapability(LibUsb.CAP_HAS_HOTPLUG))
+        {
+            result = LibUsb.hotplugRegisterCallback(context,
+                    LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED | LibUsb.HOTPLUG_EVENT_DEVICE_LEFT,
+                    LibUsb.HOTPLUG_ENUMERATE, RX2164.VENDOR_ID, RX2164.PRODUCT_ID, LibUsb.HOTPLUG_MATCH_ANY,
+                    new HotplugCallback() {
+                        @Override
+                        public int processEvent(Context context, Device device, int event, Object userData) {
+
+                            /**
+                             * В обработчике hotplug нельзя вызывать синхронные функции libusb,
+                             * поэтому устройство открывается после выхода из обработки событий
+                             */
+                            if (event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED)
+                            {
+                                arrived.add(LibUsb.refDevice(device));
+                            }
+                            else
+                            {
+                                left.add(LibUsb.refDevice(device));
+                            }
+
+                            return 0;
+                        }
+                    }, null, hotplugHandle);
+
+            hotplug = result == LibUsb.SUCCESS;
+
+            if (!hotplug)
+            {
+                LOGGER.error("Не удалось зарегистрировать hotplug: " + LibUsb.errorName(result));
+            }
+        }
+
+        if (!hotplug)
+        {
+            LOGGER.debug("Hotplug недоступен, приемники ищутся только при запуске");
+            enumerate();
+        }
+
+        eventThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!shutdown) {
+                    LibUsb.handleEventsTimeout(context, EVENT_TIMEOUT_US);
+                    processHotplug();
+
+                    /**
+                     * Команды приемника, работающего опросом, выполняет его собственный поток
+                     */
+                    for (RX2164 adapter : adapters.values())
+                    {
+                        if (adapter.getReceiveMode() == ReceiveMode.ASYNC)
+                        {
+                            adapter.processCommands();
+                        }
+                    }
+                }
+            }
+        }, "RX2164 manager");
+
+        eventThread.start();
+    }
+
+    /**
+     * Останавливает прием и закрывает все приемники
+     */
+    public void close()
+    {
+        LOGGER.debug("Останавливается менеджер приемников RX2164");
+
+        if (hotplug)
+        {
+            LibUsb.hotplugDeregisterCallback(context, hotplugHandle);
+        }
+
+        /**
+         * Приемники закрываются, пока поток событий еще работает:
+         * отмененные передачи должны завершиться до закрытия устройств
+         */
+        for (String key : adapters.keySet())
+        {
+            detach(key);
+        }
+
+        shutdown = true;
+
+        if (eventThread != null)
+        {
+            try {
+                eventThread.join(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Устройства, о которых hotplug сообщил во время остановки, не открываются
+         */
+        Device device;
+
+        while ((device = arrived.poll()) != null)
+        {
+            LibUsb.unrefDevice(device);
+        }
+
+        while ((device = left.poll()) != null)
+        {
+            LibUsb.unrefDevice(device);
+        }
+
+        for (String key : adapters.keySet())
+        {
+            detach(key);
+        }
+
+        hub.close();
+        LibUsb.exit(context);
+    }
+
+    /**
+     * Поиск уже подключенных приемников
+     */
+    private void enumerate()
+    {
+        DeviceList list = new DeviceList();
+        int result = LibUsb.getDeviceList(context, list);
+
+        if (result < 0)
+        {
+            LOGGER.error("Не удалось получить список устройств: " + LibUsb.errorName(result));
+            return;
+        }
+
+        try
+        {
+            for (Device device : list)
+            {
+                DeviceDescriptor descriptor = new DeviceDescriptor();
+
+                if (LibUsb.getDeviceDescriptor(device, descriptor) == LibUsb.SUCCESS
+                        && descriptor.idVendor() == RX2164.VENDOR_ID
+                        && descriptor.idProduct() == RX2164.PRODUCT_ID)
+                {
+                    attach(LibUsb.refDevice(device));
+                }
+            }
+        }
+        finally
+        {
+            LibUsb.freeDeviceList(list, true);
+        }
+    }
+
+    private void processHotplug()
+    {
+        Device device;
+
+        while ((device = arrived.poll()) != null)
+        {
+            attach(device);
+        }
+
+        while ((device = left.poll()) != null)
+        {
+            detach(key(device));
+            LibUsb.unrefDevice(device);
+        }
+    }
+
+    /**
+     * Открывает приемник и подключает его поток посылок
+     * @param device устройство, ссылка на которое переходит приемнику
+     */
+    private void attach(Device device)
+    {
+        String key = key(device);
+
+        if (adapters.containsKey(key))
+        {
+            LibUsb.unrefDevice(device);
+            return;
+        }
+
+        LOGGER.debug("Подключается приемник RX2164 " + key);
+
+        RX2164 adapter = new RX2164(context, device);
+        adapter.setReceiveMode(receiveMode);
+        adapter.open();
+
+        if (!adapter.isOpen())
+        {
+            LibUsb.unrefDevice(device);
+            return;
+        }
+
+        final RX2164 source = adapter;
+
+        adapter.setFrameListener(new FrameWatcher() {
+            @Override
+            public void onFrame(NotificationFrame frame) {
+                merge(source, frame);
+            }
+        });
+
+        adapters.put(key, adapter);
+        adapter.start();
+    }
+
+    /**
+     * Закрывает отключенный приемник
+     * @param key идентификатор приемника
+     */
+    private void detach(String key)
+    {
+        RX2164 adapter = adapters.remove(key);
+
+        if (adapter == null)
+        {
+            return;
+        }
+
+        LOGGER.debug("Отключается приемник RX2164 " + key);
+
+        adapter.close();
+        LibUsb.unrefDevice(adapter.getDevice());
+    }
+
+    /**
+     * Передает посылку подписчикам, если ее еще не передал другой приемник
+     * @param source приемник
+     * @param frame посылка
+     */
+    private synchronized void merge(RX2164 source, NotificationFrame frame)
+    {
+        long now = System.currentTimeMillis();
+        long key = 0;
+
+        for (int i = 1; i < NotificationFrame.SIZE; i++)
+        {
+            key = (key << 8) | (frame.get(i) & 0xff);
+        }
+
+        for (int i = 0; i < RECENT_SIZE; i++)
+        {
+            if (recentAdapters[i] != null && recentKeys[i] == key && now - recentTimes[i] < duplicateWindowMs)
+            {
+                if (recentAdapters[i] != source)
+                {
+                    duplicates++;
+                    return;
+                }
+
+                recentTimes[i] = now;
+                hub.publish(frame);
+                return;
+            }
+        }
+
+        recentKeys[recentNext] = key;
+        recentTimes[recentNext] = now;
+        recentAdapters[recentNext] = source;
+        recentNext = (recentNext + 1) % RECENT_SIZE;
+
+        hub.publish(frame);
+    }
+
+    private static String key(Device device)
+    {
+        return LibUsb.getBusNumber(device) + "-" + LibUsb.getDeviceAddress(device);
+    }
+
+    public Subscription addWatcher(Watcher watcher)
+    {
+        return hub.subscribe(watcher);
+    }
+
+    public Subscription addFrameWatcher(FrameWatcher watcher)
+    {
+        return hub.subscribeFrames(watcher);
+    }
+
+    public Subscription addEventWatcher(EventWatcher watcher)
+    {
+        return hub.subscribeEvents(watcher);
+    }
+
+    public void removeWatcher(Object watcher)
+    {
+        hub.unsubscribe(watcher);
+    }
+
+    /**
+     * @return объединенная очередь посылок всех приемников
+     */
+    public NotificationHub getNotificationHub()
+    {
+        return hub;
+    }
+
+    /**
+     * @return подключенные приемники
+     */
+    public List<RX2164> getAdapters()
+    {
+        return new ArrayList<>(adapters.values());
+    }
+
+    /**
+     * Задает способ получения данных для вновь подключаемых приемников
+     * @param receiveMode способ получения данных
+     */
+    public void setReceiveMode(ReceiveMode receiveMode)
+    {
+        this.receiveMode = receiveMode;
+    }
+
+    public long getDuplicateWindow()
+    {
+        return duplicateWindowMs;
+    }
+
+    /**
+     * Устанавливает окно, в котором одинаковые посылки от разных приемников считаются одной
+     * @param duplicateWindowMs окно в миллисекундах
+     */
+    public void setDuplicateWindow(long duplicateWindowMs)
+    {
+        this.duplicateWindowMs = duplicateWindowMs;
+    }
+
+    /**
+     * @return количество отброшенных повторов
+     */
+    public synchronized long getDuplicates()
+    {
+        return duplicates;
+    }
+}
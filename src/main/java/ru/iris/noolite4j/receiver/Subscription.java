@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.receiver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.iris.noolite4j.watchers.FrameWatcher;
+import ru.iris.noolite4j.watchers.NotificationFrame;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Подписка обработчика на посылки {@link NotificationHub}.
+ * Каждая подписка обслуживается своим потоком
+ */
+public class Subscription {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Subscription.class.getName());
+    private static final long PARK_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final NotificationHub hub;
+    private final FrameWatcher watcher;
+    private final Object listener;
+    private final NotificationFrame frame = new NotificationFrame();
+    private final Thread thread;
+    private volatile boolean active = true;
+
+    /**
+     * Номер следующей читаемой посылки
+     */
+    private volatile long sequence;
+    private volatile long delivered = 0;
+    private volatile long dropped = 0;
+
+    Subscription(NotificationHub hub, FrameWatcher watcher, Object listener, long sequence)
+    {
+        this.hub = hub;
+        this.watcher = watcher;
+        this.listener = listener;
+        this.sequence = sequence;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "RX2164 subscriber");
+        this.thread.setDaemon(true);
+    }
+
+    private void consume()
+    {
+        int capacity = hub.getCapacity();
+        long seq = sequence;
+
+        while (active)
+        {
+            long available = hub.cursor();
+
+            if (seq == available)
+            {
+                LockSupport.parkNanos(this, PARK_TIMEOUT_NS);
+                continue;
+            }
+
+            /**
+             * Подписчик отстал больше, чем на размер буфера: пропускаем потерянное
+             */
+            if (available - seq > capacity)
+            {
+                long skipped = available - capacity - seq;
+                dropped += skipped;
+                seq += skipped;
+            }
+
+            /**
+             * Пока мы читали, ячейка могла быть перезаписана
+             */
+            if (!hub.read(seq, frame))
+            {
+                dropped++;
+                sequence = ++seq;
+                continue;
+            }
+
+            sequence = ++seq;
+
+            try
+            {
+                watcher.onFrame(frame);
+                delivered++;
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.error("Ошибка в обработчике посылок: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void start()
+    {
+        thread.start();
+    }
+
+    void stop()
+    {
+        active = false;
+        LockSupport.unpark(thread);
+    }
+
+    void wakeUp()
+    {
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Отменяет подписку
+     */
+    public void unsubscribe()
+    {
+        hub.unsubscribe(this);
+    }
+
+    /**
+     * @return обработчик, переданный при подписке
+     */
+    public Object getListener()
+    {
+        return listener;
+    }
+
+    public boolean isActive()
+    {
+        return active;
+    }
+
+    /**
+     * Возвращает отставание подписчика
+     * @return количество опубликованных, но еще не обработанных посылок
+     */
+    public long getLag()
+    {
+        return Math.max(0, hub.cursor() - sequence);
+    }
+
+    /**
+     * @return количество обработанных посылок
+     */
+    public long getDelivered()
+    {
+        return delivered;
+    }
+
+    /**
+     * @return количество посылок, потерянных из-за переполнения буфера
+     */
+    public long getDropped()
+    {
+        return dropped;
+    }
+}
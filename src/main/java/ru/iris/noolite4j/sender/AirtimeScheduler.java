@@ -0,0 +1,259 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.sender;
+
+/**
+ * Планировщик эфирного времени передатчиков.
+ *
+ * Канал 433 МГц общий для всех передатчиков дома, а каждая посылка уходит в эфир
+ * несколько раз в зависимости от количества повторов. Планировщик оценивает время
+ * занятия эфира каждой посылкой и раздвигает посылки так, чтобы доля занятого эфира
+ * не превышала заданную. Допускается короткий всплеск в пределах запаса.
+ *
+ * Один планировщик можно подключить к нескольким адаптерам
+ * @see PC11xx#setAirtimeScheduler(AirtimeScheduler)
+ */
+public class AirtimeScheduler {
+
+    /**
+     * Постоянная времени для оценки загрузки эфира
+     */
+    private static final double UTILISATION_TAU_MS = 60000.0;
+
+    private double dutyCycle;
+    private long transmissionMs;
+    private long burstMs;
+
+    /**
+     * Запас эфирного времени, мс. Отрицательный - время уже занято вперед
+     */
+    private double credit;
+    private long creditUpdateTime = System.currentTimeMillis();
+
+    private double decayedAirtime = 0;
+    private long utilisationUpdateTime = System.currentTimeMillis();
+
+    private long frames = 0;
+    private long totalAirtime = 0;
+    private long delayed = 0;
+    private long totalDelay = 0;
+
+    /**
+     * Доля эфира 10%, одна передача посылки 40 мс, запас 1000 мс
+     */
+    public AirtimeScheduler()
+    {
+        this(0.1, 40L, 1000L);
+    }
+
+    /**
+     * @param dutyCycle допустимая доля занятого эфира, от 0 до 1
+     * @param transmissionMs время одной передачи посылки в эфир, мс
+     * @param burstMs запас эфирного времени для всплеска, мс
+     */
+    public AirtimeScheduler(double dutyCycle, long transmissionMs, long burstMs)
+    {
+        setDutyCycle(dutyCycle);
+        setTransmissionTime(transmissionMs);
+        setBurst(burstMs);
+        this.credit = burstMs;
+    }
+
+    /**
+     * Время занятия эфира посылкой: сама передача и ее повторы
+     * @param sendRepeat количество повторов
+     * @return время, мс
+     */
+    public long airtimeOf(int sendRepeat)
+    {
+        return transmissionMs * (sendRepeat + 1);
+    }
+
+    public long airtimeOf(CommandFrame frame)
+    {
+        return airtimeOf(frame.getSendRepeat());
+    }
+
+    /**
+     * Резервирует эфир для посылки и ждет, пока ее можно будет передать
+     * @param frame посылка
+     * @return время ожидания, мс
+     */
+    public long acquire(CommandFrame frame)
+    {
+        return acquire(airtimeOf(frame));
+    }
+
+    /**
+     * Резервирует эфирное время и ждет, пока его можно будет занять.
+     * Резервы выдаются в порядке обращения, поэтому несколько адаптеров
+     * делят эфир по очереди
+     * @param airtimeMs требуемое эфирное время, мс
+     * @return время ожидания, мс
+     */
+    public long acquire(long airtimeMs)
+    {
+        long delay;
+
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            refill(now);
+
+            credit -= airtimeMs;
+            delay = credit < 0 ? (long) Math.ceil(-credit / dutyCycle) : 0;
+
+            decayUtilisation(now);
+            decayedAirtime += airtimeMs;
+            frames++;
+            totalAirtime += airtimeMs;
+
+            if (delay > 0)
+            {
+                delayed++;
+                totalDelay += delay;
+            }
+        }
+
+        if (delay > 0)
+        {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return delay;
+    }
+
+    private void refill(long now)
+    {
+        long elapsed = now - creditUpdateTime;
+
+        if (elapsed > 0)
+        {
+            credit = Math.min(burstMs, credit + elapsed * dutyCycle);
+            creditUpdateTime = now;
+        }
+    }
+
+    private void decayUtilisation(long now)
+    {
+        long elapsed = now - utilisationUpdateTime;
+
+        if (elapsed > 0)
+        {
+            decayedAirtime *= Math.exp(-elapsed / UTILISATION_TAU_MS);
+            utilisationUpdateTime = now;
+        }
+    }
+
+    /**
+     * @return измеренная доля занятого эфира за последнюю минуту (экспоненциальное среднее)
+     */
+    public synchronized double getUtilisation()
+    {
+        decayUtilisation(System.currentTimeMillis());
+        return decayedAirtime / UTILISATION_TAU_MS;
+    }
+
+    /**
+     * @return оставшийся запас эфирного времени, мс
+     */
+    public synchronized long getCredit()
+    {
+        refill(System.currentTimeMillis());
+        return (long) credit;
+    }
+
+    public synchronized long getFrames()
+    {
+        return frames;
+    }
+
+    /**
+     * @return суммарное занятое эфирное время, мс
+     */
+    public synchronized long getTotalAirtime()
+    {
+        return totalAirtime;
+    }
+
+    /**
+     * @return количество посылок, которым пришлось ждать эфира
+     */
+    public synchronized long getDelayed()
+    {
+        return delayed;
+    }
+
+    /**
+     * @return суммарное время ожидания эфира, мс
+     */
+    public synchronized long getTotalDelay()
+    {
+        return totalDelay;
+    }
+
+    public synchronized double getDutyCycle()
+    {
+        return dutyCycle;
+    }
+
+    public synchronized void setDutyCycle(double dutyCycle)
+    {
+        if (dutyCycle <= 0 || dutyCycle > 1)
+        {
+            throw new IllegalArgumentException("Доля эфира должна быть больше 0 и не больше 1");
+        }
+
+        refill(System.currentTimeMillis());
+        this.dutyCycle = dutyCycle;
+    }
+
+    public synchronized long getTransmissionTime()
+    {
+        return transmissionMs;
+    }
+
+    public synchronized void setTransmissionTime(long transmissionMs)
+    {
+        if (transmissionMs <= 0)
+        {
+            throw new IllegalArgumentException("Время передачи должно быть больше 0");
+        }
+
+        this.transmissionMs = transmissionMs;
+    }
+
+    public synchronized long getBurst()
+    {
+        return burstMs;
+    }
+
+    public synchronized void setBurst(long burstMs)
+    {
+        if (burstMs < 0)
+        {
+            throw new IllegalArgumentException("Запас эфирного времени не может быть отрицательным");
+        }
+
+        this.burstMs = burstMs;
+        this.credit = Math.min(credit, burstMs);
+    }
+}
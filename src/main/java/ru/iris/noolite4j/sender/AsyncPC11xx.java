@@ -0,0 +1,312 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.sender;
+
+import ru.iris.noolite4j.async.AsyncRunner;
+import ru.iris.noolite4j.async.CommandCall;
+import ru.iris.noolite4j.async.CommandResult;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Асинхронный фасад передатчика PC11xx.
+ * Каждая команда выполняется на исполнителе и возвращает {@link CompletableFuture} с {@link CommandResult},
+ * который никогда не завершается исключением - ошибка передается в результате
+ */
+public class AsyncPC11xx {
+
+    private final PC11xx sender;
+    private final AsyncRunner runner;
+
+    /**
+     * Использует общий исполнитель по умолчанию
+     * @param sender устройство
+     */
+    public AsyncPC11xx(PC11xx sender)
+    {
+        this(sender, AsyncRunner.defaultExecutor());
+    }
+
+    public AsyncPC11xx(PC11xx sender, Executor executor)
+    {
+        this.sender = sender;
+        this.runner = new AsyncRunner(executor);
+    }
+
+    public PC11xx getPC11xx()
+    {
+        return sender;
+    }
+
+    /**
+     * Включает силовой блок
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> turnOn(final byte channel)
+    {
+        return runner.submit("turnOn", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.turnOn(channel);
+            }
+        });
+    }
+
+    /**
+     * Медленно включает диммируемую нагрузку
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> slowTurnOn(final byte channel)
+    {
+        return runner.submit("slowTurnOn", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.slowTurnOn(channel);
+            }
+        });
+    }
+
+    /**
+     * Медленно выключает диммируемую нагрузку
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> slowTurnOff(final byte channel)
+    {
+        return runner.submit("slowTurnOff", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.slowTurnOff(channel);
+            }
+        });
+    }
+
+    /**
+     * Переключает нагрузку (вкл/выкл)
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> toggle(final byte channel)
+    {
+        return runner.submit("toggle", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.toggle(channel);
+            }
+        });
+    }
+
+    /**
+     * Запускает плавное изменение яркости в обратном направлении
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> revertSlowTurn(final byte channel)
+    {
+        return runner.submit("revertSlowTurn", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.revertSlowTurn(channel);
+            }
+        });
+    }
+
+    /**
+     * Останавливает регулировку яркости
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> stopDimBright(final byte channel)
+    {
+        return runner.submit("stopDimBright", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.stopDimBright(channel);
+            }
+        });
+    }
+
+    /**
+     * Включает плавный перебор цвета
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> slowRGBChange(final byte channel)
+    {
+        return runner.submit("slowRGBChange", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.slowRGBChange(channel);
+            }
+        });
+    }
+
+    /**
+     * Переключает цвет
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> colorChange(final byte channel)
+    {
+        return runner.submit("colorChange", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.colorChange(channel);
+            }
+        });
+    }
+
+    /**
+     * Переключает режим работы RGB-контроллера
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> switchRGBMode(final byte channel)
+    {
+        return runner.submit("switchRGBMode", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.switchRGBMode(channel);
+            }
+        });
+    }
+
+    /**
+     * Переключает скорость эффекта RGB-контроллера
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> switchSpeedRGBMode(final byte channel)
+    {
+        return runner.submit("switchSpeedRGBMode", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.switchSpeedRGBMode(channel);
+            }
+        });
+    }
+
+    /**
+     * Выключает силовой блок
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> turnOff(final byte channel)
+    {
+        return runner.submit("turnOff", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.turnOff(channel);
+            }
+        });
+    }
+
+    /**
+     * Устанавливает уровень на диммируемом силовом блоке
+     * @param channel канал диммера
+     * @param level выставляемый уровень
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> setLevel(final byte channel, final byte level)
+    {
+        return runner.submit("setLevel", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.setLevel(channel, level);
+            }
+        });
+    }
+
+    /**
+     * Устанавливает яркость для каждого цвета RGB-контроллера
+     * @param channel канал нагрузки
+     * @param R яркость канала 1
+     * @param G яркость канала 2
+     * @param B яркость канала 3
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> setLevelRGB(final byte channel, final byte R, final byte G, final byte B)
+    {
+        return runner.submit("setLevelRGB", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.setLevelRGB(channel, R, G, B);
+            }
+        });
+    }
+
+    /**
+     * Вызывает записанный сценарий
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> callScene()
+    {
+        return runner.submit("callScene", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.callScene();
+            }
+        });
+    }
+
+    /**
+     * Записывает сценарий
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> recordScene()
+    {
+        return runner.submit("recordScene", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.recordScene();
+            }
+        });
+    }
+
+    /**
+     * Привязывает устройство к каналу
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> bindChannel(final byte channel)
+    {
+        return runner.submit("bindChannel", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.bindChannel(channel);
+            }
+        });
+    }
+
+    /**
+     * Отвязывает устройство от канала
+     * @param channel канал устройства
+     * @return результат команды
+     */
+    public CompletableFuture<CommandResult> unbindChannel(final byte channel)
+    {
+        return runner.submit("unbindChannel", new CommandCall() {
+            @Override
+            public boolean call() {
+                return sender.unbindChannel(channel);
+            }
+        });
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.sender;
+
+import java.util.Arrays;
+
+/**
+ * Неизменяемый набор каналов для групповых команд.
+ * Каналы нумеруются так же, как в методах PC11xx и PR1132 - с единицы, не больше 64
+ */
+public final class ChannelSet {
+
+    public static final int MAX_CHANNEL = 64;
+
+    private final long mask;
+
+    private ChannelSet(long mask)
+    {
+        this.mask = mask;
+    }
+
+    /**
+     * @param channels каналы
+     * @return набор каналов
+     */
+    public static ChannelSet of(int... channels)
+    {
+        long mask = 0;
+
+        for (int channel : channels)
+        {
+            mask |= bit(channel);
+        }
+
+        return new ChannelSet(mask);
+    }
+
+    /**
+     * @param from первый канал
+     * @param to последний канал, включительно
+     * @return набор каналов
+     */
+    public static ChannelSet range(int from, int to)
+    {
+        long mask = 0;
+
+        for (int channel = from; channel <= to; channel++)
+        {
+            mask |= bit(channel);
+        }
+
+        return new ChannelSet(mask);
+    }
+
+    private static long bit(int channel)
+    {
+        if (channel < 1 || channel > MAX_CHANNEL)
+        {
+            throw new IllegalArgumentException("Номер канала должен быть от 1 до " + MAX_CHANNEL + ": " + channel);
+        }
+
+        return 1L << (channel - 1);
+    }
+
+    public ChannelSet with(int channel)
+    {
+        return new ChannelSet(mask | bit(channel));
+    }
+
+    public ChannelSet without(int channel)
+    {
+        return new ChannelSet(mask & ~bit(channel));
+    }
+
+    public boolean contains(int channel)
+    {
+        return channel >= 1 && channel <= MAX_CHANNEL && (mask & (1L << (channel - 1))) != 0;
+    }
+
+    public int size()
+    {
+        return Long.bitCount(mask);
+    }
+
+    public boolean isEmpty()
+    {
+        return mask == 0;
+    }
+
+    /**
+     * @return наибольший канал набора или 0, если набор пуст
+     */
+    public int max()
+    {
+        return 64 - Long.numberOfLeadingZeros(mask);
+    }
+
+    /**
+     * @return каналы по возрастанию
+     */
+    public byte[] toArray()
+    {
+        byte[] channels = new byte[size()];
+        long rest = mask;
+
+        for (int i = 0; i < channels.length; i++)
+        {
+            channels[i] = (byte) (Long.numberOfTrailingZeros(rest) + 1);
+            rest &= rest - 1;
+        }
+
+        return channels;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof ChannelSet && ((ChannelSet) o).mask == mask);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mask ^ (mask >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelSet" + Arrays.toString(toArray());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.sender;
+
+import ru.iris.noolite4j.codec.FrameCodec;
+import ru.iris.noolite4j.watchers.CommandType;
+import ru.iris.noolite4j.watchers.DataFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Готовая к отправке посылка передатчика PC11xx.
+ * Объект неизменяемый, его можно передавать между потоками
+ */
+public final class CommandFrame {
+
+    private final byte[] data;
+    private final CommandType command;
+    private final byte channel;
+
+    private CommandFrame(byte[] data, CommandType command, byte channel)
+    {
+        this.data = data;
+        this.command = command;
+        this.channel = channel;
+    }
+
+    /**
+     * Кодирует посылку
+     * @param sendRepeat количество повторов
+     * @param command команда
+     * @param format формат данных
+     * @param channel канал, начиная с 0
+     * @param d0 первый байт данных
+     * @param d1 второй байт данных
+     * @param d2 третий байт данных
+     * @return посылка
+     */
+    public static CommandFrame encode(byte sendRepeat, CommandType command, DataFormat format, byte channel, byte d0, byte d1, byte d2)
+    {
+        byte[] data = new byte[FrameCodec.FRAME_SIZE];
+        FrameCodec.encodeTx(data, sendRepeat, command, format, channel, d0, d1, d2);
+        return new CommandFrame(data, command, channel);
+    }
+
+    /**
+     * Копирует посылку в буфер для передачи в устройство
+     * @param buf буфер, очищается перед записью
+     */
+    public void copyTo(ByteBuffer buf)
+    {
+        buf.clear();
+        buf.put(data);
+        buf.flip();
+    }
+
+    /**
+     * Упаковывает посылку в long в порядке байт буфера по умолчанию (старший байт - первый),
+     * чтобы посылку можно было повторно записать в буфер без копии массива
+     * @return посылка
+     * @see ByteBuffer#putLong(int, long)
+     */
+    long toLong()
+    {
+        return FrameCodec.pack(data);
+    }
+
+    /**
+     * @param index номер байта
+     * @return байт посылки
+     */
+    public byte get(int index)
+    {
+        return data[index];
+    }
+
+    /**
+     * @return количество повторов, записанное в посылку
+     */
+    public int getSendRepeat()
+    {
+        return FrameCodec.txRepeat(data[FrameCodec.TX_MODE]);
+    }
+
+    public CommandType getCommand()
+    {
+        return command;
+    }
+
+    /**
+     * @return канал, начиная с 0
+     */
+    public byte getChannel()
+    {
+        return channel;
+    }
+
+    @Override
+    public String toString() {
+        return "CommandFrame{" +
+                "command=" + command +
+                ", channel=" + channel +
+                ", data=" + Arrays.toString(data) +
+                '}';
+    }
+}
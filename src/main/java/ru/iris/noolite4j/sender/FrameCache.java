@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.sender;
+
+import ru.iris.noolite4j.watchers.CommandType;
+import ru.iris.noolite4j.watchers.DataFormat;
+
+/**
+ * Кэш готовых посылок для команд без данных.
+ * Посылка для каждого сочетания команды, формата, канала и количества повторов
+ * кодируется один раз, дальше возвращается тот же неизменяемый объект
+ */
+public final class FrameCache {
+
+    /**
+     * Кэшируются каналы с 0 по 63
+     */
+    public static final int CHANNELS = 64;
+
+    private static final int REPEATS = 4;
+    private static final CommandFrame[] FRAMES = new CommandFrame[CommandType.values().length * 2 * CHANNELS * REPEATS];
+
+    private FrameCache()
+    {
+    }
+
+    /**
+     * Возвращает готовую посылку, если команда не несет данных
+     * @param sendRepeat количество повторов
+     * @param command команда
+     * @param format формат данных
+     * @param channel канал, начиная с 0
+     * @param d0 первый байт данных
+     * @param d1 второй байт данных
+     * @param d2 третий байт данных
+     * @return посылка или null, если посылка не кэшируется
+     */
+    public static CommandFrame get(byte sendRepeat, CommandType command, DataFormat format, byte channel, byte d0, byte d1, byte d2)
+    {
+        if ((format != DataFormat.NO_DATA && format != DataFormat.LED) || d0 != 0 || d1 != 0 || d2 != 0
+                || channel < 0 || channel >= CHANNELS)
+        {
+            return null;
+        }
+
+        int repeat = sendRepeat & (REPEATS - 1);
+        int idx = ((command.ordinal() * 2 + (format == DataFormat.LED ? 1 : 0)) * CHANNELS + channel) * REPEATS + repeat;
+
+        /**
+         * Гонка при заполнении безопасна: посылка неизменяема, в худшем случае она закодируется дважды
+         */
+        CommandFrame frame = FRAMES[idx];
+
+        if (frame == null)
+        {
+            frame = CommandFrame.encode((byte) repeat, command, format, channel, (byte) 0, (byte) 0, (byte) 0);
+            FRAMES[idx] = frame;
+        }
+
+        return frame;
+    }
+}
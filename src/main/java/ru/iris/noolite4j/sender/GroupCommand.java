@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.sender;
+
+import ru.iris.noolite4j.watchers.CommandType;
+import ru.iris.noolite4j.watchers.DataFormat;
+
+/**
+ * Команда для группы каналов. Объект неизменяемый.
+ * Сценарии и привязка к групповым командам не относятся
+ * @see PC11xx#apply(ChannelSet, GroupCommand)
+ */
+public final class GroupCommand {
+
+    private static final byte ZERO = 0;
+
+    private final CommandType command;
+    private final DataFormat format;
+    private final byte d0;
+    private final byte d1;
+    private final byte d2;
+
+    private GroupCommand(CommandType command, DataFormat format, byte d0, byte d1, byte d2)
+    {
+        this.command = command;
+        this.format = format;
+        this.d0 = d0;
+        this.d1 = d1;
+        this.d2 = d2;
+    }
+
+    private static GroupCommand of(CommandType command, DataFormat format)
+    {
+        return new GroupCommand(command, format, ZERO, ZERO, ZERO);
+    }
+
+    public static GroupCommand turnOn()
+    {
+        return of(CommandType.TURN_ON, DataFormat.NO_DATA);
+    }
+
+    public static GroupCommand turnOff()
+    {
+        return of(CommandType.TURN_OFF, DataFormat.NO_DATA);
+    }
+
+    public static GroupCommand slowTurnOn()
+    {
+        return of(CommandType.SLOW_TURN_ON, DataFormat.NO_DATA);
+    }
+
+    public static GroupCommand slowTurnOff()
+    {
+        return of(CommandType.SLOW_TURN_OFF, DataFormat.NO_DATA);
+    }
+
+    public static GroupCommand toggle()
+    {
+        return of(CommandType.SWITCH, DataFormat.NO_DATA);
+    }
+
+    public static GroupCommand revertSlowTurn()
+    {
+        return of(CommandType.REVERT_SLOW_TURN, DataFormat.NO_DATA);
+    }
+
+    public static GroupCommand stopDimBright()
+    {
+        return of(CommandType.STOP_DIM_BRIGHT, DataFormat.NO_DATA);
+    }
+
+    public static GroupCommand slowRGBChange()
+    {
+        return of(CommandType.SLOW_RGB_CHANGE, DataFormat.LED);
+    }
+
+    public static GroupCommand colorChange()
+    {
+        return of(CommandType.SWITCH_COLOR, DataFormat.LED);
+    }
+
+    public static GroupCommand switchRGBMode()
+    {
+        return of(CommandType.SWITCH_MODE, DataFormat.LED);
+    }
+
+    public static GroupCommand switchSpeedRGBMode()
+    {
+        return of(CommandType.SWITCH_SPEED_MODE, DataFormat.LED);
+    }
+
+    /**
+     * @param level уровень, ограничивается диапазоном 0-100
+     * @return команда установки уровня
+     */
+    public static GroupCommand setLevel(byte level)
+    {
+        if (level > 100)
+            level = 100;
+        else if (level < 0)
+            level = 0;
+
+        return new GroupCommand(CommandType.SET_LEVEL, DataFormat.ONE_BYTE, level, ZERO, ZERO);
+    }
+
+    /**
+     * @param R яркость канала 1
+     * @param G яркость канала 2
+     * @param B яркость канала 3
+     * @return команда установки яркости RGB-контроллера
+     */
+    public static GroupCommand setLevelRGB(byte R, byte G, byte B)
+    {
+        return new GroupCommand(CommandType.SET_LEVEL, DataFormat.FOUR_BYTE, R, G, B);
+    }
+
+    /**
+     * Кодирует посылку для канала
+     * @param sendRepeat количество повторов
+     * @param channel канал, начиная с 0
+     * @return посылка
+     */
+    CommandFrame encode(byte sendRepeat, byte channel)
+    {
+        CommandFrame frame = FrameCache.get(sendRepeat, command, format, channel, d0, d1, d2);
+        return frame != null ? frame : CommandFrame.encode(sendRepeat, command, format, channel, d0, d1, d2);
+    }
+
+    public CommandType getCommand()
+    {
+        return command;
+    }
+
+    public DataFormat getFormat()
+    {
+        return format;
+    }
+
+    public byte getD0()
+    {
+        return d0;
+    }
+
+    public byte getD1()
+    {
+        return d1;
+    }
+
+    public byte getD2()
+    {
+        return d2;
+    }
+
+    @Override
+    public String toString() {
+        return "GroupCommand{" +
+                "command=" + command +
+                ", format=" + format +
+                ", d0=" + d0 +
+                ", d1=" + d1 +
+                ", d2=" + d2 +
+                '}';
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.sender;
+
+import java.util.Arrays;
+
+/**
+ * Результат групповой команды: исход по каждому каналу и общее время
+ */
+public final class GroupResult {
+
+    private final byte[] channels;
+    private final boolean[] outcomes;
+    private final long durationNanos;
+
+    /**
+     * @param channels каналы по возрастанию
+     * @param outcomes исход для каждого канала
+     * @param durationNanos общее время выполнения
+     */
+    public GroupResult(byte[] channels, boolean[] outcomes, long durationNanos)
+    {
+        this.channels = channels.clone();
+        this.outcomes = outcomes.clone();
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * @return выполнена ли команда на всех каналах
+     */
+    public boolean isSuccess()
+    {
+        for (boolean outcome : outcomes)
+        {
+            if (!outcome)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param channel канал
+     * @return выполнена ли команда на канале; false, если канала нет в группе
+     */
+    public boolean isSuccess(int channel)
+    {
+        int idx = Arrays.binarySearch(channels, (byte) channel);
+        return idx >= 0 && outcomes[idx];
+    }
+
+    public ChannelSet getSucceeded()
+    {
+        return select(true);
+    }
+
+    public ChannelSet getFailed()
+    {
+        return select(false);
+    }
+
+    private ChannelSet select(boolean outcome)
+    {
+        ChannelSet set = ChannelSet.of();
+
+        for (int i = 0; i < channels.length; i++)
+        {
+            if (outcomes[i] == outcome)
+                set = set.with(channels[i]);
+        }
+
+        return set;
+    }
+
+    public long getDurationNanos()
+    {
+        return durationNanos;
+    }
+
+    public long getDurationMillis()
+    {
+        return durationNanos / 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return "GroupResult{" +
+                "succeeded=" + getSucceeded() +
+                ", failed=" + getFailed() +
+                ", durationMs=" + getDurationMillis() +
+                '}';
+    }
+}
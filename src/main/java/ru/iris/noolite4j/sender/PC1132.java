@@ -16,6 +16,8 @@
 
 package ru.iris.noolite4j.sender;
 
+import ru.iris.noolite4j.transport.Transport;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -32,4 +34,14 @@ public class PC1132 extends PC11xx {
          */
         availableChannels = 32;
     }
+
+    public PC1132(Transport transport) {
+
+        super(transport);
+
+        /**
+         * PC1132
+         */
+        availableChannels = 32;
+    }
 }
@@ -16,10 +16,17 @@
 
 package ru.iris.noolite4j.sender;
 
+import ru.iris.noolite4j.transport.Transport;
+
 public class PC118 extends PC11xx {
 
     public PC118() {
 
         super();
     }
+
+    public PC118(Transport transport) {
+
+        super(transport);
+    }
 }
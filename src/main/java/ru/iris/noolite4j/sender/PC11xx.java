@@ -19,13 +19,24 @@ package ru.iris.noolite4j.sender;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.usb4java.Context;
-import org.usb4java.DeviceHandle;
+import org.usb4java.Device;
 import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
+import ru.iris.noolite4j.async.CallTrace;
+import ru.iris.noolite4j.codec.FrameCodec;
+import ru.iris.noolite4j.transport.Transport;
+import ru.iris.noolite4j.transport.Usb4javaTransport;
 import ru.iris.noolite4j.watchers.CommandType;
 import ru.iris.noolite4j.watchers.DataFormat;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Передатчик комманд PC118 (PC1116, PC1132)
@@ -36,13 +47,77 @@ import java.nio.ByteBuffer;
 
 public class PC11xx {
 
-    private static final short VENDOR_ID = 5824; //0x16c0;
-    private static final short PRODUCT_ID = 1503; //0x05df;
+    static final short VENDOR_ID = 5824; //0x16c0;
+    static final short PRODUCT_ID = 1503; //0x05df;
     private static final Logger LOGGER = LoggerFactory.getLogger(PC11xx.class.getName());
-    private final Context context = new Context();
+
+    /**
+     * Контекст LibUSB, если им управляет сам адаптер
+     */
+    private final Context context;
+
+    /**
+     * Конкретное устройство, если адаптер открыт пулом. Иначе используется первое найденное
+     */
+    private final Device device;
+    private final Transport transport;
     protected byte availableChannels = 8;
-    private byte sendRepeat = 2;
-    private final ByteBuffer buf = ByteBuffer.allocateDirect(8);
+    private volatile byte sendRepeat = 2;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(FrameCodec.FRAME_SIZE);
+    private final byte[] scratch = new byte[FrameCodec.FRAME_SIZE];
+    private volatile TransmitQueue queue;
+    private volatile EnqueueMode enqueueMode = EnqueueMode.BLOCKING;
+    private volatile long enqueueTimeoutMs = 1000L;
+    private volatile boolean coalescing = true;
+
+    /**
+     * Замененные посылки уже остановленных очередей
+     */
+    private volatile long coalescedTotal = 0;
+    private volatile long supersededTotal = 0;
+    private volatile long expiredTotal = 0;
+    private final AtomicLong expiredDirect = new AtomicLong();
+    private volatile int interactiveBurst = 8;
+    private volatile AirtimeScheduler airtimeScheduler;
+    private final List<CommandListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile QueueListener queueListener;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong reopens = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private SessionMode sessionMode = SessionMode.PERSISTENT;
+
+    public PC11xx()
+    {
+        this.context = new Context();
+        this.device = null;
+        this.transport = new Usb4javaTransport("PC11XX", context, null, VENDOR_ID, PRODUCT_ID, Usb4javaTransport.HID_OUT);
+    }
+
+    /**
+     * Адаптер поверх заданного транспорта, например {@link ru.iris.noolite4j.transport.LoopbackTransport}.
+     * LibUSB при этом не инициализируется
+     * @param transport транспорт до устройства
+     */
+    public PC11xx(Transport transport)
+    {
+        this.context = null;
+        this.device = null;
+        this.transport = transport;
+    }
+
+    /**
+     * Адаптер для конкретного устройства в общем контексте LibUSB
+     * @param context контекст, которым управляет пул
+     * @param device устройство
+     */
+    PC11xx(Context context, Device device)
+    {
+        this.context = null;
+        this.device = device;
+        this.transport = new Usb4javaTransport("PC11XX", context, device, VENDOR_ID, PRODUCT_ID, Usb4javaTransport.HID_OUT);
+    }
 
     /**
      * Пытается найти и открыть HID-устройство PC11xx
@@ -52,6 +127,11 @@ public class PC11xx {
 
         LOGGER.debug("Открывается устройство PC11xx");
 
+        if (context == null)
+        {
+            return;
+        }
+
         // Инициализируем контекст libusb
         int result = LibUsb.init(context);
         if (result != LibUsb.SUCCESS)
@@ -73,7 +153,241 @@ public class PC11xx {
      */
     public void close() {
         LOGGER.debug("Закрывается устройство PC11xx");
-        LibUsb.exit(context);
+
+        stopQueue();
+
+        synchronized (this)
+        {
+            closeHandle();
+        }
+
+        if (context != null)
+        {
+            LibUsb.exit(context);
+        }
+    }
+
+    /**
+     * Включает режим очереди: команды ставятся в ограниченную очередь,
+     * которую разбирает один поток записи в устройство
+     * @param capacity размер очереди
+     */
+    public synchronized void startQueue(int capacity)
+    {
+        if (queue != null)
+        {
+            return;
+        }
+
+        LOGGER.debug("Включается очередь PC11xx на " + capacity + " команд");
+        queue = new TransmitQueue(this, capacity);
+        queue.setCoalescing(coalescing);
+        queue.setInteractiveBurst(interactiveBurst);
+    }
+
+    /**
+     * Выключает режим очереди, оставшиеся в очереди команды отправляются
+     */
+    public void stopQueue()
+    {
+        TransmitQueue queue = this.queue;
+
+        if (queue == null)
+        {
+            return;
+        }
+
+        this.queue = null;
+        queue.stop();
+        collectStats(queue);
+    }
+
+    /**
+     * Сохраняет счетчики остановленной очереди
+     */
+    private void collectStats(TransmitQueue queue)
+    {
+        coalescedTotal += queue.getCoalesced();
+        supersededTotal += queue.getSuperseded();
+        expiredTotal += queue.getExpired();
+    }
+
+    /**
+     * @return включен ли режим очереди
+     */
+    public boolean isQueued()
+    {
+        return queue != null;
+    }
+
+    /**
+     * Устанавливает поведение при заполненной очереди
+     * @param enqueueMode режим постановки в очередь
+     * @param timeoutMs время ожидания для режима TIMED
+     */
+    public void setEnqueueMode(EnqueueMode enqueueMode, long timeoutMs)
+    {
+        this.enqueueMode = enqueueMode;
+        this.enqueueTimeoutMs = timeoutMs;
+    }
+
+    public EnqueueMode getEnqueueMode()
+    {
+        return enqueueMode;
+    }
+
+    /**
+     * @return время ожидания места в очереди для режима TIMED, мс
+     */
+    public long getEnqueueTimeout()
+    {
+        return enqueueTimeoutMs;
+    }
+
+    /**
+     * Включает замену неотправленной установки уровня на канале более новой (по умолчанию включено).
+     * Действует только в режиме очереди
+     * @param coalescing включить или нет
+     */
+    public void setCoalescing(boolean coalescing)
+    {
+        this.coalescing = coalescing;
+
+        TransmitQueue queue = this.queue;
+
+        if (queue != null)
+        {
+            queue.setCoalescing(coalescing);
+        }
+    }
+
+    public boolean isCoalescing()
+    {
+        return coalescing;
+    }
+
+    /**
+     * @return количество команд установки уровня, замененных более новыми и поэтому не отправленных
+     */
+    public long getCoalescedCount()
+    {
+        TransmitQueue queue = this.queue;
+        return coalescedTotal + (queue != null ? queue.getCoalesced() : 0);
+    }
+
+    /**
+     * Защита фоновых команд от голодания: после заданного количества интерактивных
+     * посылок подряд отправляется одна фоновая (по умолчанию 8)
+     * @param interactiveBurst количество интерактивных посылок подряд
+     */
+    public void setInteractiveBurst(int interactiveBurst)
+    {
+        if (interactiveBurst < 1)
+        {
+            throw new IllegalArgumentException("Количество интерактивных посылок подряд должно быть не меньше 1");
+        }
+
+        this.interactiveBurst = interactiveBurst;
+
+        TransmitQueue queue = this.queue;
+
+        if (queue != null)
+        {
+            queue.setInteractiveBurst(interactiveBurst);
+        }
+    }
+
+    public int getInteractiveBurst()
+    {
+        return interactiveBurst;
+    }
+
+    /**
+     * @return количество фоновых установок уровня, отмененных интерактивными командами на тех же каналах
+     */
+    public long getSupersededCount()
+    {
+        TransmitQueue queue = this.queue;
+        return supersededTotal + (queue != null ? queue.getSuperseded() : 0);
+    }
+
+    /**
+     * @return количество команд, отброшенных после истечения срока
+     */
+    public long getExpiredCount()
+    {
+        TransmitQueue queue = this.queue;
+        return expiredDirect.get() + expiredTotal + (queue != null ? queue.getExpired() : 0);
+    }
+
+    /**
+     * Подключает планировщик эфирного времени. Один планировщик можно использовать
+     * для нескольких адаптеров
+     * @param airtimeScheduler планировщик или null, чтобы отправлять без ограничений
+     */
+    public void setAirtimeScheduler(AirtimeScheduler airtimeScheduler)
+    {
+        this.airtimeScheduler = airtimeScheduler;
+    }
+
+    public AirtimeScheduler getAirtimeScheduler()
+    {
+        return airtimeScheduler;
+    }
+
+    /**
+     * Добавляет слушателя отправляемых команд
+     * @param listener слушатель
+     */
+    public void addCommandListener(CommandListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeCommandListener(CommandListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return количество команд в очереди
+     */
+    public int getQueueDepth()
+    {
+        TransmitQueue queue = this.queue;
+        return queue != null ? queue.size() : 0;
+    }
+
+    /**
+     * @return скорость отправки команд из очереди (экспоненциальное среднее), команд в секунду
+     */
+    public double getDrainRate()
+    {
+        TransmitQueue queue = this.queue;
+        return queue != null ? queue.getDrainRate() : 0;
+    }
+
+    /**
+     * Возвращает режим работы с устройством
+     * @return режим работы
+     */
+    public SessionMode getSessionMode() {
+        return sessionMode;
+    }
+
+    /**
+     * Устанавливает режим работы с устройством.
+     * По умолчанию устройство остается открытым между командами
+     * @param sessionMode режим работы
+     */
+    public synchronized void setSessionMode(SessionMode sessionMode) {
+
+        this.sessionMode = sessionMode;
+
+        if (sessionMode == SessionMode.PER_COMMAND)
+        {
+            closeHandle();
+        }
     }
 
     /**
@@ -118,14 +432,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.TURN_ON.getCode());
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.TURN_ON, DataFormat.NO_DATA, channel, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -147,14 +454,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.SLOW_TURN_ON.getCode());
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.SLOW_TURN_ON, DataFormat.NO_DATA, channel, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -176,14 +476,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.SLOW_TURN_OFF.getCode());
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.SLOW_TURN_OFF, DataFormat.NO_DATA, channel, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -205,14 +498,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.SWITCH.getCode());
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.SWITCH, DataFormat.NO_DATA, channel, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -234,14 +520,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.REVERT_SLOW_TURN.getCode());
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.REVERT_SLOW_TURN, DataFormat.NO_DATA, channel, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -267,18 +546,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.SET_LEVEL.getCode());
-        buf.put((byte)DataFormat.FOUR_BYTE.ordinal());
-        buf.position(4);
-        buf.put(channel);
-        buf.put(R);
-        buf.put(G);
-        buf.put(B);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.SET_LEVEL, DataFormat.FOUR_BYTE, channel, R, G, B);
     }
 
     /**
@@ -289,12 +557,7 @@ public class PC11xx {
     {
         LOGGER.debug("Вызывается записанный сценарий");
 
-        buf.position(1);
-        buf.put((byte) CommandType.RUN_SCENE.getCode());
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.RUN_SCENE, DataFormat.NO_DATA, (byte) 0, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -305,12 +568,7 @@ public class PC11xx {
     {
         LOGGER.debug("Записывается сценарий");
 
-        buf.position(1);
-        buf.put((byte) CommandType.RECORD_SCENE.getCode());
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.RECORD_SCENE, DataFormat.NO_DATA, (byte) 0, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -332,14 +590,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.STOP_DIM_BRIGHT.getCode());
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.STOP_DIM_BRIGHT, DataFormat.NO_DATA, channel, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -361,15 +612,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.SLOW_RGB_CHANGE.getCode());
-        buf.put((byte)DataFormat.LED.ordinal());
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.SLOW_RGB_CHANGE, DataFormat.LED, channel, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -391,15 +634,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.SWITCH_COLOR.getCode());
-        buf.put((byte)DataFormat.LED.ordinal());
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.SWITCH_COLOR, DataFormat.LED, channel, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -421,15 +656,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.SWITCH_MODE.getCode());
-        buf.put((byte)DataFormat.LED.ordinal());
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.SWITCH_MODE, DataFormat.LED, channel, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -451,15 +678,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.SWITCH_SPEED_MODE.getCode());
-        buf.put((byte)DataFormat.LED.ordinal());
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.SWITCH_SPEED_MODE, DataFormat.LED, channel, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -481,14 +700,7 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.TURN_OFF.getCode());
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.TURN_OFF, DataFormat.NO_DATA, channel, (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -509,10 +721,6 @@ public class PC11xx {
          */
         channel -= 1;
 
-        buf.position(1);
-        buf.put((byte) CommandType.SET_LEVEL.getCode());
-        buf.put((byte) 1);
-
         if (level > 100)
         {
             LOGGER.debug("Включается устройство на канале " + (channel+1));
@@ -528,15 +736,7 @@ public class PC11xx {
             LOGGER.debug("Устанавливается уровень {} на канале {}", level, (channel+1));
         }
 
-        buf.position(5);
-        buf.put(level);
-
-        buf.position(4);
-        buf.put(channel);
-
-        writeToHID(buf);
-
-        return true;
+        return send(CommandType.SET_LEVEL, DataFormat.ONE_BYTE, channel, level, (byte) 0, (byte) 0);
     }
 
     /**
@@ -551,15 +751,9 @@ public class PC11xx {
             return false;
         }
 
-        buf.position(1);
-        buf.put((byte) CommandType.BIND.getCode());
-        buf.position(4);
-        buf.put((byte) (channel-1));
-
         LOGGER.debug("Включен режим привязки для канала " + channel);
 
-        writeToHID(buf);
-        return true;
+        return send(CommandType.BIND, DataFormat.NO_DATA, (byte) (channel-1), (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
@@ -574,69 +768,653 @@ public class PC11xx {
             return false;
         }
 
-        buf.position(1);
-        buf.put((byte) CommandType.UNBIND.getCode());
-        buf.position(4);
-        buf.put((byte) (channel-1));
-
         LOGGER.debug("Включен режим отвязки для канала " + channel);
 
-        writeToHID(buf);
-        return true;
+        return send(CommandType.UNBIND, DataFormat.NO_DATA, (byte) (channel-1), (byte) 0, (byte) 0, (byte) 0);
     }
 
     /**
-     * Непосредственная запись в устройство
-     * @param command буффер посылаемых данных
+     * Выполняет команду на группе каналов.
+     * Каналы проверяются один раз, все посылки кодируются заранее и передаются подряд
+     * через одно открытое устройство. В режиме очереди посылки ставятся в очередь
+     * @param channels каналы
+     * @param command команда
+     * @return исход по каждому каналу и общее время
+     */
+    public GroupResult apply(ChannelSet channels, GroupCommand command)
+    {
+        return apply(channels, command, Priority.INTERACTIVE, 0);
+    }
+
+    /**
+     * Выполняет команду на группе каналов с заданным приоритетом
+     * @param channels каналы
+     * @param command команда
+     * @param priority приоритет
+     * @param deadlineMs срок, мс: посылка, не отправленная за это время, отбрасывается; 0 - без срока
+     * @return исход по каждому каналу и общее время
      */
-    private void writeToHID(ByteBuffer command)
+    public GroupResult apply(ChannelSet channels, GroupCommand command, Priority priority, long deadlineMs)
     {
-        DeviceHandle handle = LibUsb.openDeviceWithVidPid(context, VENDOR_ID, PRODUCT_ID);
+        long start = System.nanoTime();
+        byte[] list = channels.toArray();
+        boolean[] outcomes = new boolean[list.length];
+
+        if (channels.max() >= availableChannels-1) {
+            LOGGER.error("Максимальное количество каналов: " + availableChannels);
+            return new GroupResult(list, outcomes, System.nanoTime() - start);
+        }
 
-        if (handle == null)
+        LOGGER.debug("Групповая команда {} на каналах {}", command.getCommand(), channels);
+
+        byte repeat = sendRepeat;
+        CommandFrame[] frames = new CommandFrame[list.length];
+
+        for (int i = 0; i < list.length; i++)
         {
-            LOGGER.error("Устройство PC11XX не найдено!");
-            return;
+            /**
+             * Отсчет каналов начинается с 0
+             */
+            frames[i] = command.encode(repeat, (byte) (list[i] - 1));
         }
 
-        if (LibUsb.kernelDriverActive(handle, 0) == 1)
+        sendGroup(frames, outcomes, priority, deadline(deadlineMs));
+
+        return new GroupResult(list, outcomes, System.nanoTime() - start);
+    }
+
+    /**
+     * Ставит команду на группе каналов в очередь без ожидания места и не дожидаясь передачи.
+     * Результат завершается, когда все посылки переданы или отброшены: при заполненной очереди,
+     * после истечения срока или после замены более новой командой.
+     * Без очереди посылки передаются сразу в вызывающем потоке
+     * @param channels каналы
+     * @param command команда
+     * @param priority приоритет
+     * @param deadlineMs срок, мс: посылка, не отправленная за это время, отбрасывается; 0 - без срока
+     * @return исход по каждому каналу и общее время
+     */
+    public CompletableFuture<GroupResult> applyAsync(ChannelSet channels, GroupCommand command, Priority priority, long deadlineMs)
+    {
+        final long start = System.nanoTime();
+        final byte[] list = channels.toArray();
+        final boolean[] outcomes = new boolean[list.length];
+
+        if (channels.max() >= availableChannels-1) {
+            LOGGER.error("Максимальное количество каналов: " + availableChannels);
+            return CompletableFuture.completedFuture(new GroupResult(list, outcomes, System.nanoTime() - start));
+        }
+
+        LOGGER.debug("Групповая команда {} на каналах {} без ожидания", command.getCommand(), channels);
+
+        byte repeat = sendRepeat;
+        long deadline = deadline(deadlineMs);
+        CompletableFuture<?>[] results = new CompletableFuture<?>[list.length];
+
+        for (int i = 0; i < list.length; i++)
         {
-            LibUsb.detachKernelDriver(handle, 0);
+            final int index = i;
+
+            /**
+             * Отсчет каналов начинается с 0
+             */
+            results[i] = submit(command.encode(repeat, (byte) (list[i] - 1)), priority, deadline).thenAccept(new Consumer<Boolean>() {
+                @Override
+                public void accept(Boolean written) {
+                    outcomes[index] = written;
+                }
+            });
         }
 
-        int ret = LibUsb.setConfiguration(handle, 1);
+        return CompletableFuture.allOf(results).thenApply(new Function<Void, GroupResult>() {
+            @Override
+            public GroupResult apply(Void ignored) {
+                return new GroupResult(list, outcomes, System.nanoTime() - start);
+            }
+        });
+    }
 
-        if (ret != LibUsb.SUCCESS)
+    /**
+     * Ставит посылку в очередь без ожидания места
+     * @param frame посылка
+     * @param priority приоритет
+     * @param deadline время, после которого посылка отбрасывается, или 0
+     * @return передана ли посылка
+     */
+    CompletableFuture<Boolean> submit(CommandFrame frame, Priority priority, long deadline)
+    {
+        notifyListeners(frame);
+
+        TransmitQueue queue = this.queue;
+
+        if (queue != null)
         {
-            LOGGER.error("Ошибка конфигурирования PC11XX");
-            LibUsb.close(handle);
-            if (ret == LibUsb.ERROR_BUSY)
+            CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+            if (!queue.offer(new QueuedFrame(frame, priority, deadline, result), EnqueueMode.NON_BLOCKING, 0))
             {
-                LOGGER.error("Устройство PC11XX занято");
+                LOGGER.error("Очередь PC11xx заполнена, команда не отправлена");
+                result.complete(false);
+            }
+
+            return result;
+        }
+
+        if (expired(deadline))
+        {
+            expiredDirect.incrementAndGet();
+            return CompletableFuture.completedFuture(false);
+        }
+
+        return CompletableFuture.completedFuture(write(frame));
+    }
+
+    /**
+     * Отправляет заранее закодированные посылки группы или ставит их в очередь
+     * @param frames посылки
+     * @param outcomes исход для каждой посылки
+     * @param priority приоритет
+     * @param deadline время, после которого посылки отбрасываются, или 0
+     */
+    void sendGroup(CommandFrame[] frames, boolean[] outcomes, Priority priority, long deadline)
+    {
+        if (queue != null)
+        {
+            for (int i = 0; i < frames.length; i++)
+            {
+                outcomes[i] = sendBefore(frames[i], priority, deadline);
             }
-            return;
         }
+        else
+        {
+            for (CommandFrame frame : frames)
+            {
+                notifyListeners(frame);
+            }
 
-        LibUsb.claimInterface(handle, 0);
+            writeGroup(frames, outcomes, deadline);
+        }
+    }
+
+    /**
+     * Передает посылки подряд, в режиме PER_COMMAND закрывая устройство только после всей группы.
+     * Ожидание эфира и паузы между повторами - вне монитора адаптера
+     * @param frames посылки
+     * @param outcomes исход для каждой посылки
+     * @param deadline время, после которого посылки отбрасываются, или 0
+     */
+    private void writeGroup(CommandFrame[] frames, boolean[] outcomes, long deadline)
+    {
+        AirtimeScheduler scheduler = airtimeScheduler;
+
+        for (int i = 0; i < frames.length; i++)
+        {
+            if (expired(deadline))
+            {
+                continue;
+            }
+
+            if (scheduler != null)
+            {
+                scheduler.acquire(frames[i]);
+            }
+
+            outcomes[i] = transfer(frames[i].toLong()) >= 0;
+        }
+
+        if (sessionMode == SessionMode.PER_COMMAND)
+        {
+            synchronized (this)
+            {
+                closeHandle();
+            }
+        }
+    }
+
+    /**
+     * Кодирует посылку и отправляет ее в устройство или ставит в очередь
+     * @param command команда
+     * @param format формат данных
+     * @param channel канал, начиная с 0
+     * @param d0 первый байт данных
+     * @param d1 второй байт данных
+     * @param d2 третий байт данных
+     * @return успешно или нет
+     */
+    private boolean send(CommandType command, DataFormat format, byte channel, byte d0, byte d1, byte d2)
+    {
+        byte repeat = sendRepeat;
+        CommandFrame frame = FrameCache.get(repeat, command, format, channel, d0, d1, d2);
+
+        if (frame != null)
+        {
+            return send(frame);
+        }
 
         /**
-         * В первом байте устанавливаем количество повторов посылки,
-         * битрейт и режим работы адаптера.
-         * Из всех этих параметров реально используется только количество повторов
+         * Команды с данными при прямой записи кодируются сразу в буфер, без создания посылки
          */
+        if (isDirect())
+        {
+            return write(repeat, command, format, channel, d0, d1, d2);
+        }
+
+        return send(CommandFrame.encode(repeat, command, format, channel, d0, d1, d2));
+    }
+
+    /**
+     * @return пишутся ли команды сразу в устройство, минуя очередь
+     */
+    boolean isDirect()
+    {
+        return queue == null;
+    }
 
-        buf.position(0);
-        buf.put((byte)(((sendRepeat & 0x3) << 6) + 0x30));
+    /**
+     * Отправляет готовую посылку.
+     * В режиме очереди посылка ставится в очередь и результат означает, что она принята
+     * @param frame посылка
+     * @return успешно или нет
+     */
+    public boolean send(CommandFrame frame)
+    {
+        return sendBefore(frame, Priority.INTERACTIVE, 0);
+    }
+
+    /**
+     * Отправляет готовую посылку с заданным приоритетом.
+     * Приоритет действует в режиме очереди, срок - в любом режиме
+     * @param frame посылка
+     * @param priority приоритет
+     * @param deadlineMs срок, мс: посылка, не отправленная за это время, отбрасывается; 0 - без срока
+     * @return успешно или нет
+     */
+    public boolean send(CommandFrame frame, Priority priority, long deadlineMs)
+    {
+        return sendBefore(frame, priority, deadline(deadlineMs));
+    }
 
-        LOGGER.debug("PC11XX содержимое буффера: " + command.get(0) + " " + command.get(1) + " " + command.get(2) + " " + command.get(3)
-                + " " + command.get(4) + " " + command.get(5) + " " + command.get(6)
-                + " " + command.get(7));
+    /**
+     * @param deadline время, после которого посылка отбрасывается, или 0
+     */
+    boolean sendBefore(CommandFrame frame, Priority priority, long deadline)
+    {
+        notifyListeners(frame);
 
-        LibUsb.controlTransfer(handle, (byte) (LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE), (byte) 0x9, (short) 0x300, (short) 0, command, 100L);
+        TransmitQueue queue = this.queue;
 
-        LibUsb.attachKernelDriver(handle, 0);
-        LibUsb.close(handle);
+        if (queue != null)
+        {
+            boolean queued = queue.offer(frame, priority, deadline, enqueueMode, enqueueTimeoutMs);
+
+            if (!queued)
+            {
+                LOGGER.error("Очередь PC11xx заполнена, команда не отправлена");
+            }
+
+            return queued;
+        }
+
+        if (expired(deadline))
+        {
+            expiredDirect.incrementAndGet();
+            return false;
+        }
+
+        return write(frame);
+    }
+
+    /**
+     * Ставит посылку в очередь без ожидания места и без оповещения слушателей.
+     * Используется пулом для передачи команд пропавшего адаптера, приоритет и срок посылки сохраняются
+     * @param frame посылка
+     * @return принята ли посылка
+     */
+    boolean offerNow(QueuedFrame frame)
+    {
+        TransmitQueue queue = this.queue;
+
+        return queue != null && queue.offer(frame, EnqueueMode.NON_BLOCKING, 0);
+    }
+
+    private static long deadline(long deadlineMs)
+    {
+        return deadlineMs > 0 ? System.currentTimeMillis() + deadlineMs : 0;
+    }
+
+    private static boolean expired(long deadline)
+    {
+        return deadline > 0 && System.currentTimeMillis() > deadline;
+    }
+
+    void notifyListeners(CommandFrame frame)
+    {
+        notifyListeners(frame.getCommand(), frame.getChannel());
+    }
+
+    private void notifyListeners(CommandType command, byte channel)
+    {
+        for (CommandListener listener : listeners)
+        {
+            try
+            {
+                listener.onCommand(command, channel + 1);
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.error("Ошибка в слушателе команд PC11xx: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Вызывается потоком записи очереди, если посылку не удалось передать.
+     * Без слушателя посылка отбрасывается
+     * @param frame посылка
+     */
+    void onWriteFailed(QueuedFrame frame)
+    {
+        QueueListener listener = queueListener;
+
+        if (listener != null)
+        {
+            listener.onWriteFailed(this, frame);
+        }
+        else
+        {
+            frame.complete(false);
+        }
+    }
+
+    /**
+     * Вызывается потоком записи, когда очередь опустела
+     */
+    void onDrained()
+    {
+        QueueListener listener = queueListener;
+
+        if (listener != null)
+        {
+            listener.onDrained(this);
+        }
+    }
+
+    void setQueueListener(QueueListener queueListener)
+    {
+        this.queueListener = queueListener;
+    }
+
+    /**
+     * Выключает очередь, не отправляя оставшиеся в ней посылки
+     * @return неотправленные посылки в порядке очереди
+     */
+    List<QueuedFrame> drainQueue()
+    {
+        TransmitQueue queue = this.queue;
+
+        if (queue == null)
+        {
+            return new ArrayList<>();
+        }
+
+        this.queue = null;
+        List<QueuedFrame> frames = queue.stopAndDrain();
+        collectStats(queue);
+        return frames;
+    }
+
+    /**
+     * @return открыто ли устройство
+     */
+    synchronized boolean hasHandle()
+    {
+        return transport.isOpen();
+    }
+
+    Context getContext()
+    {
+        return context;
+    }
+
+    Device getDevice()
+    {
+        return device;
+    }
+
+    /**
+     * Запись посылки в устройство.
+     * Если задан планировщик эфира, посылка ждет своей очереди в эфире
+     * @param frame посылка
+     * @return успешно или нет
+     */
+    boolean write(CommandFrame frame)
+    {
+        AirtimeScheduler scheduler = airtimeScheduler;
+
+        if (scheduler != null)
+        {
+            scheduler.acquire(frame);
+        }
+
+        return writeToHID(frame.toLong()) >= 0;
+    }
+
+    /**
+     * Кодирует посылку и записывает ее в устройство
+     * @param repeat количество повторов
+     * @param command команда
+     * @param format формат данных
+     * @param channel канал, начиная с 0
+     * @param d0 первый байт данных
+     * @param d1 второй байт данных
+     * @param d2 третий байт данных
+     * @return успешно или нет
+     */
+    private boolean write(byte repeat, CommandType command, DataFormat format, byte channel, byte d0, byte d1, byte d2)
+    {
+        notifyListeners(command, channel);
+
+        AirtimeScheduler scheduler = airtimeScheduler;
+
+        if (scheduler != null)
+        {
+            scheduler.acquire(scheduler.airtimeOf(repeat & 0x3));
+        }
+
+        long frame;
+
+        synchronized (this)
+        {
+            FrameCodec.encodeTx(scratch, repeat, command, format, channel, d0, d1, d2);
+            frame = FrameCodec.pack(scratch);
+        }
+
+        return writeToHID(frame) >= 0;
+    }
+
+    /**
+     * Непосредственная запись в устройство
+     * @param frame посылка, упакованная в long
+     * @return результат передачи LibUSB
+     */
+    private int writeToHID(long frame)
+    {
+        int result = transfer(frame);
+
+        if (sessionMode == SessionMode.PER_COMMAND)
+        {
+            synchronized (this)
+            {
+                closeHandle();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Передача посылки в устройство без закрытия сессии.
+     * Неудачная передача повторяется согласно {@link RetryPolicy}, пропавшее устройство открывается заново.
+     * Каждая попытка выполняется под монитором адаптера, а пауза перед повтором - вне его,
+     * чтобы другие потоки могли тем временем писать в устройство. Поэтому посылка передается
+     * как long и заново записывается в общий буфер на каждой попытке
+     * @param frame посылка, упакованная в long
+     * @return результат передачи LibUSB
+     */
+    private int transfer(long frame)
+    {
+        RetryPolicy policy = retryPolicy;
+
+        LOGGER.debug("PC11XX содержимое буффера: {}", String.format("%016x", frame));
+
+        int result = LibUsb.ERROR_NO_DEVICE;
+
+        for (int attempt = 1; attempt <= policy.getMaxAttempts(); attempt++)
+        {
+            if (attempt > 1)
+            {
+                retries.incrementAndGet();
+
+                long backoff = policy.backoff(attempt - 1);
+
+                LOGGER.debug("Повтор передачи в PC11XX через {} мс, попытка {}", backoff, attempt);
+
+                if (backoff > 0)
+                {
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+
+            result = attempt(frame, policy, attempt);
+
+            if (result >= 0 || !policy.isRetryable(result))
+            {
+                break;
+            }
+        }
+
+        if (result < 0)
+        {
+            failures.incrementAndGet();
+            CallTrace.failed(new LibUsbException("Ошибка передачи команды в PC11XX", result));
+            LOGGER.error("Ошибка передачи команды в PC11XX: " + LibUsb.errorName(result));
+        }
+
+        return result;
+    }
+
+    /**
+     * Одна попытка передачи под монитором адаптера
+     * @param frame посылка, упакованная в long
+     * @param policy политика повторов
+     * @param attempt номер попытки, начиная с 1
+     * @return результат передачи LibUSB
+     */
+    private synchronized int attempt(long frame, RetryPolicy policy, int attempt)
+    {
+        attempts.incrementAndGet();
+        CallTrace.attempt();
+
+        if (!transport.isOpen())
+        {
+            if (attempt > 1)
+            {
+                reopens.incrementAndGet();
+            }
+
+            if (!openHandle())
+            {
+                return LibUsb.ERROR_NO_DEVICE;
+            }
+        }
 
         buf.clear();
+        buf.putLong(0, frame);
+
+        int result = transport.write(buf, policy.getAttemptTimeout());
+
+        /**
+         * Устройство было переподключено: при следующей попытке оно будет найдено и открыто заново
+         */
+        if (result < 0 && policy.isRetryable(result) && policy.isDeviceLost(result))
+        {
+            LOGGER.debug("Потеряна связь с PC11XX, устройство открывается заново");
+            closeHandle();
+        }
+
+        return result;
+    }
+
+    /**
+     * Задает политику повторов передачи
+     * @param retryPolicy политика, {@link RetryPolicy#NONE} - без повторов
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        if (retryPolicy == null)
+        {
+            throw new IllegalArgumentException("Не задана политика повторов");
+        }
+
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    /**
+     * @return общее количество попыток передачи в устройство
+     */
+    public long getAttempts()
+    {
+        return attempts.get();
+    }
+
+    /**
+     * @return количество повторных попыток
+     */
+    public long getRetries()
+    {
+        return retries.get();
+    }
+
+    /**
+     * @return количество повторных открытий пропавшего устройства
+     */
+    public long getReopens()
+    {
+        return reopens.get();
+    }
+
+    /**
+     * @return количество посылок, не переданных после всех попыток
+     */
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+    /**
+     * Находит, настраивает и захватывает устройство
+     * @return успешно или нет
+     */
+    private boolean openHandle()
+    {
+        return transport.openHandle() == LibUsb.SUCCESS;
+    }
+
+    /**
+     * Освобождает устройство и возвращает его драйверу ядра
+     */
+    private void closeHandle()
+    {
+        transport.close();
     }
 }
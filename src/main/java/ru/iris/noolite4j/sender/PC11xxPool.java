@@ -0,0 +1,795 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.sender;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.DeviceList;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Пул из всех подключенных адаптеров PC11xx.
+ *
+ * Каналы можно закрепить за адаптерами, а широковещательные каналы отправляются всеми адаптерами.
+ * Остальные команды уходят в адаптер с самой короткой очередью. Если адаптер пропал,
+ * его неотправленные команды переходят к другим адаптерам с прежними приоритетом и сроком.
+ * Команды, которые некуда поставить, ждут в общей очереди пула и отправляются, когда
+ * очередь одного из адаптеров опустеет или в пуле появится адаптер.
+ * Счетчики убранных из пула адаптеров сохраняются в счетчиках пула.
+ *
+ * Пул сам является PC11xx, поэтому все команды передатчика доступны через него
+ */
+public class PC11xxPool extends PC11xx {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PC11xxPool.class.getName());
+
+    /**
+     * Сколько раз посылка, не переданная адаптером, ставится в очередь повторно
+     */
+    private static final int MAX_REROUTES = 3;
+
+    private final int queueCapacity;
+    private final Map<String, PC11xx> adapters = new ConcurrentHashMap<>();
+    private final Map<Integer, String> assignments = new ConcurrentHashMap<>();
+    private final ArrayDeque<QueuedFrame> backlog = new ArrayDeque<>();
+    private volatile ChannelSet broadcast = ChannelSet.of();
+
+    /**
+     * Счетчики адаптеров, убранных из пула
+     */
+    private final AtomicLong removedAttempts = new AtomicLong();
+    private final AtomicLong removedRetries = new AtomicLong();
+    private final AtomicLong removedReopens = new AtomicLong();
+    private final AtomicLong removedFailures = new AtomicLong();
+    private final AtomicLong removedCoalesced = new AtomicLong();
+    private final AtomicLong removedSuperseded = new AtomicLong();
+    private final AtomicLong removedExpired = new AtomicLong();
+
+    private final QueueListener queueListener = new QueueListener() {
+        @Override
+        public void onWriteFailed(PC11xx sender, QueuedFrame frame) {
+            failed(sender, frame);
+        }
+
+        @Override
+        public void onDrained(PC11xx sender) {
+            flushBacklog();
+        }
+    };
+
+    /**
+     * Пул адаптеров на 8 каналов с очередью на 64 команды у каждого адаптера
+     */
+    public PC11xxPool()
+    {
+        this((byte) 8, 64);
+    }
+
+    /**
+     * @param availableChannels количество каналов адаптеров
+     * @param queueCapacity размер очереди каждого адаптера
+     */
+    public PC11xxPool(byte availableChannels, int queueCapacity)
+    {
+        super();
+        this.availableChannels = availableChannels;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Инициализирует LibUSB и открывает все найденные адаптеры
+     * @throws LibUsbException ошибка LibUSB
+     */
+    @Override
+    public void open() throws LibUsbException
+    {
+        super.open();
+        scan();
+    }
+
+    /**
+     * Ищет новые адаптеры и отправляет накопленные без адаптеров команды
+     * @return количество адаптеров в пуле
+     */
+    public int scan()
+    {
+        DeviceList list = new DeviceList();
+        int result = LibUsb.getDeviceList(getContext(), list);
+
+        if (result < 0)
+        {
+            LOGGER.error("Не удалось получить список устройств: " + LibUsb.errorName(result));
+            return adapters.size();
+        }
+
+        try
+        {
+            for (Device device : list)
+            {
+                DeviceDescriptor descriptor = new DeviceDescriptor();
+
+                if (LibUsb.getDeviceDescriptor(device, descriptor) == LibUsb.SUCCESS
+                        && descriptor.idVendor() == VENDOR_ID
+                        && descriptor.idProduct() == PRODUCT_ID)
+                {
+                    attach(device);
+                }
+            }
+        }
+        finally
+        {
+            LibUsb.freeDeviceList(list, true);
+        }
+
+        flushBacklog();
+
+        return adapters.size();
+    }
+
+    /**
+     * Добавляет адаптер, если его еще нет в пуле.
+     * Сканирование по запросу и после сбоя адаптера может идти одновременно,
+     * поэтому проверка и добавление выполняются под блокировкой
+     * @param device устройство из списка libusb
+     */
+    private void attach(Device device)
+    {
+        String key = key(device);
+
+        synchronized (backlog)
+        {
+            if (adapters.containsKey(key))
+            {
+                return;
+            }
+
+            LOGGER.debug("Добавляется адаптер PC11xx {}", key);
+
+            PC11xx adapter = create(LibUsb.refDevice(device));
+            adapters.put(key, adapter);
+        }
+
+        flushBacklog();
+    }
+
+    private PC11xx create(Device device)
+    {
+        PC11xx adapter = new PC11xx(getContext(), device);
+        adapter.availableChannels = availableChannels;
+        adapter.setAirtimeScheduler(getAirtimeScheduler());
+        adapter.setCoalescing(isCoalescing());
+        adapter.setRetryPolicy(getRetryPolicy());
+        adapter.setInteractiveBurst(getInteractiveBurst());
+        adapter.setEnqueueMode(getEnqueueMode(), getEnqueueTimeout());
+        adapter.setSessionMode(getSessionMode());
+        adapter.setQueueListener(queueListener);
+        adapter.startQueue(queueCapacity);
+
+        return adapter;
+    }
+
+    /**
+     * Убирает адаптер из пула
+     * @return неотправленные команды адаптера
+     */
+    private List<QueuedFrame> detach(PC11xx adapter)
+    {
+        String key = key(adapter.getDevice());
+
+        if (!adapters.remove(key, adapter))
+        {
+            return new ArrayList<>();
+        }
+
+        LOGGER.debug("Адаптер PC11xx {} убран из пула", key);
+
+        List<QueuedFrame> frames = adapter.drainQueue();
+        retire(adapter);
+
+        return frames;
+    }
+
+    /**
+     * Переносит счетчики адаптера в счетчики пула и закрывает адаптер
+     * @param adapter адаптер, уже убранный из пула
+     */
+    private void retire(PC11xx adapter)
+    {
+        adapter.stopQueue();
+
+        removedAttempts.addAndGet(adapter.getAttempts());
+        removedRetries.addAndGet(adapter.getRetries());
+        removedReopens.addAndGet(adapter.getReopens());
+        removedFailures.addAndGet(adapter.getFailures());
+        removedCoalesced.addAndGet(adapter.getCoalescedCount());
+        removedSuperseded.addAndGet(adapter.getSupersededCount());
+        removedExpired.addAndGet(adapter.getExpiredCount());
+
+        adapter.close();
+        LibUsb.unrefDevice(adapter.getDevice());
+    }
+
+    /**
+     * Посылка не передана адаптером. Если устройство пропало, адаптер убирается из пула,
+     * а его команды передаются другим адаптерам.
+     * Вызывается потоком отправки адаптера, поэтому команды ставятся в очереди других адаптеров
+     * без ожидания: если места нет или другого адаптера нет, они ждут в общей очереди пула.
+     * Посылка, не переданная {@value #MAX_REROUTES} раза подряд, отбрасывается.
+     * Команды на широковещательные каналы не передаются повторно - их уже отправляют остальные адаптеры
+     */
+    private void failed(PC11xx adapter, QueuedFrame frame)
+    {
+        List<QueuedFrame> frames = new ArrayList<>();
+
+        if (frame.getReroutes() < MAX_REROUTES)
+        {
+            frames.add(frame.rerouted());
+        }
+        else
+        {
+            LOGGER.error("Команда PC11xx не передана после " + MAX_REROUTES + " повторов через пул и отброшена");
+            frame.complete(false);
+        }
+
+        if (!adapter.hasHandle())
+        {
+            LOGGER.error("Адаптер PC11xx " + key(adapter.getDevice()) + " недоступен, команды передаются другим адаптерам");
+            frames.addAll(detach(adapter));
+
+            if (adapters.isEmpty())
+            {
+                scan();
+            }
+        }
+
+        for (QueuedFrame pending : frames)
+        {
+            if (broadcast.contains(pending.getFrame().getChannel() + 1))
+            {
+                pending.complete(false);
+                continue;
+            }
+
+            if (!reroute(pending, adapter))
+            {
+                synchronized (backlog)
+                {
+                    backlog.add(pending);
+                }
+            }
+        }
+    }
+
+    /**
+     * Отправляет команды, ожидающие в общей очереди пула. Вызывается, когда очередь адаптера
+     * опустела и когда в пуле появился адаптер. Команды с истекшим сроком отбрасываются
+     */
+    private void flushBacklog()
+    {
+        List<QueuedFrame> frames;
+
+        synchronized (backlog)
+        {
+            if (backlog.isEmpty() || adapters.isEmpty())
+            {
+                return;
+            }
+
+            frames = new ArrayList<>(backlog);
+            backlog.clear();
+        }
+
+        for (QueuedFrame frame : frames)
+        {
+            if (frame.isExpired())
+            {
+                removedExpired.incrementAndGet();
+                frame.complete(false);
+                continue;
+            }
+
+            if (!reroute(frame, null))
+            {
+                synchronized (backlog)
+                {
+                    backlog.add(frame);
+                }
+            }
+        }
+    }
+
+    /**
+     * Выбирает адаптер для посылки и ставит ее в его очередь
+     * @param frame посылка
+     * @param priority приоритет
+     * @param deadline время, после которого посылка отбрасывается, или 0
+     * @return принята ли посылка хотя бы одним адаптером
+     */
+    private boolean route(CommandFrame frame, Priority priority, long deadline)
+    {
+        int channel = frame.getChannel() + 1;
+        List<PC11xx> candidates = new ArrayList<>(adapters.values());
+
+        if (broadcast.contains(channel))
+        {
+            boolean accepted = false;
+
+            for (PC11xx adapter : candidates)
+            {
+                accepted |= adapter.sendBefore(frame, priority, deadline);
+            }
+
+            return accepted;
+        }
+
+        String assigned = assignments.get(channel);
+        PC11xx preferred = assigned != null ? adapters.get(assigned) : null;
+
+        if (preferred != null && preferred.sendBefore(frame, priority, deadline))
+        {
+            return true;
+        }
+
+        Collections.sort(candidates, new Comparator<PC11xx>() {
+            @Override
+            public int compare(PC11xx a, PC11xx b) {
+                return Integer.compare(a.getQueueDepth(), b.getQueueDepth());
+            }
+        });
+
+        for (PC11xx adapter : candidates)
+        {
+            if (adapter != preferred && adapter.sendBefore(frame, priority, deadline))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Передает посылку другому адаптеру без ожидания места в очереди,
+     * начиная с адаптера с самой короткой очередью
+     * @param frame посылка с приоритетом и сроком
+     * @param exclude адаптер, который не следует использовать, или null
+     * @return принята ли посылка
+     */
+    private boolean reroute(QueuedFrame frame, PC11xx exclude)
+    {
+        List<PC11xx> candidates = new ArrayList<>(adapters.values());
+        candidates.remove(exclude);
+
+        String assigned = assignments.get(frame.getFrame().getChannel() + 1);
+        PC11xx preferred = assigned != null ? adapters.get(assigned) : null;
+
+        if (preferred != null && preferred != exclude && preferred.offerNow(frame))
+        {
+            return true;
+        }
+
+        Collections.sort(candidates, new Comparator<PC11xx>() {
+            @Override
+            public int compare(PC11xx a, PC11xx b) {
+                return Integer.compare(a.getQueueDepth(), b.getQueueDepth());
+            }
+        });
+
+        for (PC11xx adapter : candidates)
+        {
+            if (adapter != preferred && adapter.offerNow(frame))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Отправляет посылку через адаптеры пула
+     * @param frame посылка
+     * @param priority приоритет
+     * @param deadline время, после которого посылка отбрасывается, или 0
+     * @return принята ли посылка в очередь адаптера
+     */
+    @Override
+    boolean sendBefore(CommandFrame frame, Priority priority, long deadline)
+    {
+        notifyListeners(frame);
+
+        if (route(frame, priority, deadline))
+        {
+            return true;
+        }
+
+        LOGGER.error("Нет доступных адаптеров PC11xx, команда не отправлена");
+        return false;
+    }
+
+    /**
+     * Ставит посылку в очередь адаптера без ожидания места, при отсутствии места - в общую очередь пула.
+     * Команда на широковещательный канал ставится в очереди всех адаптеров и считается переданной,
+     * если ее передал хотя бы один адаптер
+     * @param frame посылка
+     * @param priority приоритет
+     * @param deadline время, после которого посылка отбрасывается, или 0
+     * @return передана ли посылка
+     */
+    @Override
+    CompletableFuture<Boolean> submit(CommandFrame frame, Priority priority, long deadline)
+    {
+        notifyListeners(frame);
+
+        if (broadcast.contains(frame.getChannel() + 1))
+        {
+            List<CompletableFuture<Boolean>> results = new ArrayList<>();
+
+            for (PC11xx adapter : adapters.values())
+            {
+                CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+                if (adapter.offerNow(new QueuedFrame(frame, priority, deadline, result)))
+                {
+                    results.add(result);
+                }
+            }
+
+            return any(results);
+        }
+
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        QueuedFrame queued = new QueuedFrame(frame, priority, deadline, result);
+
+        if (!reroute(queued, null))
+        {
+            synchronized (backlog)
+            {
+                backlog.add(queued);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return результат, равный true, если хотя бы один из результатов true
+     */
+    private static CompletableFuture<Boolean> any(List<CompletableFuture<Boolean>> results)
+    {
+        CompletableFuture<Boolean> any = CompletableFuture.completedFuture(false);
+
+        for (CompletableFuture<Boolean> result : results)
+        {
+            any = any.thenCombine(result, new BiFunction<Boolean, Boolean, Boolean>() {
+                @Override
+                public Boolean apply(Boolean a, Boolean b) {
+                    return a || b;
+                }
+            });
+        }
+
+        return any;
+    }
+
+    @Override
+    boolean isDirect()
+    {
+        return false;
+    }
+
+    @Override
+    void sendGroup(CommandFrame[] frames, boolean[] outcomes, Priority priority, long deadline)
+    {
+        for (int i = 0; i < frames.length; i++)
+        {
+            outcomes[i] = sendBefore(frames[i], priority, deadline);
+        }
+    }
+
+    /**
+     * Закрепляет канал за адаптером. Если адаптер недоступен, используется другой
+     * @param channel канал
+     * @param adapter адаптер из {@link #getAdapters()}
+     */
+    public void assign(byte channel, String adapter)
+    {
+        assignments.put((int) channel, adapter);
+    }
+
+    public void unassign(byte channel)
+    {
+        assignments.remove((int) channel);
+    }
+
+    /**
+     * @param broadcast каналы, команды на которые отправляются всеми адаптерами
+     */
+    public void setBroadcast(ChannelSet broadcast)
+    {
+        this.broadcast = broadcast;
+    }
+
+    public ChannelSet getBroadcast()
+    {
+        return broadcast;
+    }
+
+    /**
+     * @return адаптеры пула в виде "шина-адрес"
+     */
+    public Set<String> getAdapters()
+    {
+        return Collections.unmodifiableSet(adapters.keySet());
+    }
+
+    /**
+     * @return количество команд, ожидающих появления адаптера
+     */
+    public int getBacklog()
+    {
+        synchronized (backlog)
+        {
+            return backlog.size();
+        }
+    }
+
+    @Override
+    public boolean isQueued()
+    {
+        return true;
+    }
+
+    /**
+     * @return суммарное количество команд в очередях адаптеров
+     */
+    @Override
+    public int getQueueDepth()
+    {
+        int depth = 0;
+
+        for (PC11xx adapter : adapters.values())
+        {
+            depth += adapter.getQueueDepth();
+        }
+
+        return depth;
+    }
+
+    @Override
+    public double getDrainRate()
+    {
+        double rate = 0;
+
+        for (PC11xx adapter : adapters.values())
+        {
+            rate += adapter.getDrainRate();
+        }
+
+        return rate;
+    }
+
+    @Override
+    public long getCoalescedCount()
+    {
+        long count = removedCoalesced.get();
+
+        for (PC11xx adapter : adapters.values())
+        {
+            count += adapter.getCoalescedCount();
+        }
+
+        return count;
+    }
+
+    @Override
+    public void setAirtimeScheduler(AirtimeScheduler airtimeScheduler)
+    {
+        super.setAirtimeScheduler(airtimeScheduler);
+
+        for (PC11xx adapter : adapters.values())
+        {
+            adapter.setAirtimeScheduler(airtimeScheduler);
+        }
+    }
+
+    @Override
+    public void setCoalescing(boolean coalescing)
+    {
+        super.setCoalescing(coalescing);
+
+        for (PC11xx adapter : adapters.values())
+        {
+            adapter.setCoalescing(coalescing);
+        }
+    }
+
+    @Override
+    public void setInteractiveBurst(int interactiveBurst)
+    {
+        super.setInteractiveBurst(interactiveBurst);
+
+        for (PC11xx adapter : adapters.values())
+        {
+            adapter.setInteractiveBurst(interactiveBurst);
+        }
+    }
+
+    @Override
+    public long getSupersededCount()
+    {
+        long count = removedSuperseded.get();
+
+        for (PC11xx adapter : adapters.values())
+        {
+            count += adapter.getSupersededCount();
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getExpiredCount()
+    {
+        long count = removedExpired.get();
+
+        for (PC11xx adapter : adapters.values())
+        {
+            count += adapter.getExpiredCount();
+        }
+
+        return count;
+    }
+
+    @Override
+    public void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        super.setRetryPolicy(retryPolicy);
+
+        for (PC11xx adapter : adapters.values())
+        {
+            adapter.setRetryPolicy(retryPolicy);
+        }
+    }
+
+    @Override
+    public long getAttempts()
+    {
+        long count = removedAttempts.get();
+
+        for (PC11xx adapter : adapters.values())
+        {
+            count += adapter.getAttempts();
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getRetries()
+    {
+        long count = removedRetries.get();
+
+        for (PC11xx adapter : adapters.values())
+        {
+            count += adapter.getRetries();
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getReopens()
+    {
+        long count = removedReopens.get();
+
+        for (PC11xx adapter : adapters.values())
+        {
+            count += adapter.getReopens();
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getFailures()
+    {
+        long count = removedFailures.get();
+
+        for (PC11xx adapter : adapters.values())
+        {
+            count += adapter.getFailures();
+        }
+
+        return count;
+    }
+
+    @Override
+    public void setEnqueueMode(EnqueueMode enqueueMode, long timeoutMs)
+    {
+        super.setEnqueueMode(enqueueMode, timeoutMs);
+
+        for (PC11xx adapter : adapters.values())
+        {
+            adapter.setEnqueueMode(enqueueMode, timeoutMs);
+        }
+    }
+
+    @Override
+    public void setSessionMode(SessionMode sessionMode)
+    {
+        super.setSessionMode(sessionMode);
+
+        for (PC11xx adapter : adapters.values())
+        {
+            adapter.setSessionMode(sessionMode);
+        }
+    }
+
+    /**
+     * Отправляет оставшиеся команды, закрывает все адаптеры и LibUSB
+     */
+    @Override
+    public void close()
+    {
+        for (PC11xx adapter : new ArrayList<>(adapters.values()))
+        {
+            adapters.remove(key(adapter.getDevice()));
+            retire(adapter);
+        }
+
+        List<QueuedFrame> lost;
+
+        synchronized (backlog)
+        {
+            lost = new ArrayList<>(backlog);
+            backlog.clear();
+        }
+
+        if (!lost.isEmpty())
+        {
+            LOGGER.error("Пул PC11xx закрыт, не отправлено команд: " + lost.size());
+        }
+
+        for (QueuedFrame frame : lost)
+        {
+            frame.complete(false);
+        }
+
+        super.close();
+    }
+
+    private static String key(Device device)
+    {
+        return LibUsb.getBusNumber(device) + "-" + LibUsb.getDeviceAddress(device);
+    }
+}
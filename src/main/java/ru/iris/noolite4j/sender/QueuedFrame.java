@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.sender;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Посылка в очереди адаптера вместе с приоритетом и сроком отправки.
+ * Посылку, ожидающую в очереди, можно заменить более новой до отправки.
+ * Если задан результат, он завершается после передачи посылки (true) или
+ * когда посылка отброшена (false)
+ */
+class QueuedFrame {
+
+    private CommandFrame frame;
+    private long deadline;
+    private CompletableFuture<Boolean> result;
+    private final Priority priority;
+    private final int reroutes;
+
+    QueuedFrame(CommandFrame frame, Priority priority, long deadline)
+    {
+        this(frame, priority, deadline, null, 0);
+    }
+
+    QueuedFrame(CommandFrame frame, Priority priority, long deadline, CompletableFuture<Boolean> result)
+    {
+        this(frame, priority, deadline, result, 0);
+    }
+
+    private QueuedFrame(CommandFrame frame, Priority priority, long deadline, CompletableFuture<Boolean> result, int reroutes)
+    {
+        this.frame = frame;
+        this.priority = priority;
+        this.deadline = deadline;
+        this.result = result;
+        this.reroutes = reroutes;
+    }
+
+    /**
+     * Заменяет посылку более новой, вызывается под блокировкой очереди
+     * @param newer новая посылка
+     * @return результат замененной посылки или null; его следует завершить вне блокировки
+     */
+    CompletableFuture<Boolean> replace(QueuedFrame newer)
+    {
+        CompletableFuture<Boolean> replaced = result;
+
+        this.frame = newer.frame;
+        this.deadline = newer.deadline;
+        this.result = newer.result;
+
+        return replaced;
+    }
+
+    /**
+     * @return та же посылка для повторной постановки в очередь после неудачной передачи
+     */
+    QueuedFrame rerouted()
+    {
+        return new QueuedFrame(frame, priority, deadline, result, reroutes + 1);
+    }
+
+    /**
+     * Завершает результат посылки, если он задан
+     * @param written передана ли посылка
+     */
+    void complete(boolean written)
+    {
+        CompletableFuture<Boolean> result = this.result;
+
+        if (result != null)
+        {
+            result.complete(written);
+        }
+    }
+
+    /**
+     * @return результат посылки или null
+     */
+    CompletableFuture<Boolean> getResult()
+    {
+        return result;
+    }
+
+    /**
+     * @return истек ли срок отправки
+     */
+    boolean isExpired()
+    {
+        return deadline > 0 && System.currentTimeMillis() > deadline;
+    }
+
+    CommandFrame getFrame()
+    {
+        return frame;
+    }
+
+    Priority getPriority()
+    {
+        return priority;
+    }
+
+    long getDeadline()
+    {
+        return deadline;
+    }
+
+    /**
+     * @return сколько раз посылка уже передавалась повторно
+     */
+    int getReroutes()
+    {
+        return reroutes;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.sender;
+
+import org.usb4java.LibUsb;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Политика повторов передачи в адаптер.
+ * Объект неизменяемый, изменяющие методы возвращают новую политику
+ */
+public final class RetryPolicy {
+
+    /**
+     * Одна попытка без повторов
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0L, 0L, 1.0, 0.0, 100L);
+
+    /**
+     * Три попытки, пауза 50 мс с удвоением до 1 с и разбросом 20%, 100 мс на попытку
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 50L, 1000L, 2.0, 0.2, 100L);
+
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final double multiplier;
+    private final double jitter;
+    private final long attemptTimeoutMs;
+
+    /**
+     * @param maxAttempts количество попыток, не меньше 1
+     * @param initialBackoffMs пауза перед первым повтором, мс
+     * @param maxBackoffMs наибольшая пауза, мс
+     * @param multiplier множитель паузы для каждого следующего повтора, не меньше 1
+     * @param jitter случайный разброс паузы, доля от 0 до 1
+     * @param attemptTimeoutMs предельное время одной попытки, мс
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoffMs, long maxBackoffMs, double multiplier, double jitter, long attemptTimeoutMs)
+    {
+        if (maxAttempts < 1)
+        {
+            throw new IllegalArgumentException("Количество попыток должно быть не меньше 1");
+        }
+
+        if (initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs)
+        {
+            throw new IllegalArgumentException("Неверные паузы между попытками");
+        }
+
+        if (multiplier < 1)
+        {
+            throw new IllegalArgumentException("Множитель паузы должен быть не меньше 1");
+        }
+
+        if (jitter < 0 || jitter > 1)
+        {
+            throw new IllegalArgumentException("Разброс паузы должен быть от 0 до 1");
+        }
+
+        if (attemptTimeoutMs <= 0)
+        {
+            throw new IllegalArgumentException("Время попытки должно быть больше 0");
+        }
+
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.attemptTimeoutMs = attemptTimeoutMs;
+    }
+
+    public RetryPolicy withMaxAttempts(int maxAttempts)
+    {
+        return new RetryPolicy(maxAttempts, initialBackoffMs, maxBackoffMs, multiplier, jitter, attemptTimeoutMs);
+    }
+
+    public RetryPolicy withBackoff(long initialBackoffMs, long maxBackoffMs, double multiplier)
+    {
+        return new RetryPolicy(maxAttempts, initialBackoffMs, maxBackoffMs, multiplier, jitter, attemptTimeoutMs);
+    }
+
+    public RetryPolicy withJitter(double jitter)
+    {
+        return new RetryPolicy(maxAttempts, initialBackoffMs, maxBackoffMs, multiplier, jitter, attemptTimeoutMs);
+    }
+
+    public RetryPolicy withAttemptTimeout(long attemptTimeoutMs)
+    {
+        return new RetryPolicy(maxAttempts, initialBackoffMs, maxBackoffMs, multiplier, jitter, attemptTimeoutMs);
+    }
+
+    /**
+     * Пауза перед повтором
+     * @param retry номер повтора, начиная с 1
+     * @return пауза, мс
+     */
+    public long backoff(int retry)
+    {
+        double delay = Math.min(maxBackoffMs, initialBackoffMs * Math.pow(multiplier, retry - 1));
+
+        if (jitter > 0)
+        {
+            delay *= 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        }
+
+        return Math.max(0, Math.round(delay));
+    }
+
+    /**
+     * @param result код ошибки LibUSB
+     * @return имеет ли смысл повторять передачу
+     */
+    public boolean isRetryable(int result)
+    {
+        switch (result)
+        {
+            case LibUsb.ERROR_INVALID_PARAM:
+            case LibUsb.ERROR_ACCESS:
+            case LibUsb.ERROR_NOT_SUPPORTED:
+                return false;
+            default:
+                return result < 0;
+        }
+    }
+
+    /**
+     * @param result код ошибки LibUSB
+     * @return означает ли ошибка, что устройство пропало и его нужно открыть заново
+     */
+    public boolean isDeviceLost(int result)
+    {
+        return result == LibUsb.ERROR_NO_DEVICE || result == LibUsb.ERROR_IO || result == LibUsb.ERROR_NOT_FOUND;
+    }
+
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    public long getInitialBackoff()
+    {
+        return initialBackoffMs;
+    }
+
+    public long getMaxBackoff()
+    {
+        return maxBackoffMs;
+    }
+
+    public double getMultiplier()
+    {
+        return multiplier;
+    }
+
+    public double getJitter()
+    {
+        return jitter;
+    }
+
+    public long getAttemptTimeout()
+    {
+        return attemptTimeoutMs;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" +
+                "maxAttempts=" + maxAttempts +
+                ", initialBackoffMs=" + initialBackoffMs +
+                ", maxBackoffMs=" + maxBackoffMs +
+                ", multiplier=" + multiplier +
+                ", jitter=" + jitter +
+                ", attemptTimeoutMs=" + attemptTimeoutMs +
+                '}';
+    }
+}
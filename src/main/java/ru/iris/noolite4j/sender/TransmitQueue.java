@@ -0,0 +1,556 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.sender;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.iris.noolite4j.watchers.CommandType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограниченная очередь посылок передатчика.
+ * Очередь разбирает единственный поток, который и пишет в устройство.
+ *
+ * Установка уровня (SET_LEVEL) на канале, еще не отправленная из очереди, заменяется
+ * более новой - значение имеет только последний уровень. Любая другая команда на этом канале
+ * (а сценарии - на всех каналах) закрывает замену, чтобы не нарушить порядок команд.
+ *
+ * Посылки разделены на интерактивные и фоновые. Интерактивные отправляются первыми,
+ * но после нескольких подряд при ожидающих фоновых отправляется одна фоновая.
+ * Интерактивная команда на канале (сценарий - на всех каналах) отменяет ожидающие фоновые
+ * установки уровня этого канала, чтобы устаревший шаг расписания или анимации не перебил
+ * команду пользователя; их количество возвращает getSuperseded(). Остальные фоновые посылки
+ * (привязка, отвязка, сценарии) не отменяются и отбрасываются только после истечения срока,
+ * количество таких возвращает getExpired().
+ *
+ * Результаты отброшенных или замененных посылок завершаются значением false после снятия блокировки,
+ * чтобы их обработчики могли снова обращаться к очереди
+ */
+class TransmitQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransmitQueue.class.getName());
+    private static final long POLL_TIMEOUT_MS = 100L;
+
+    /**
+     * Постоянная времени для оценки скорости отправки
+     */
+    private static final double RATE_TAU_MS = 10000.0;
+
+    private final PC11xx sender;
+    private final int capacity;
+    private final ArrayDeque<QueuedFrame> interactive;
+    private final ArrayDeque<QueuedFrame> background;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * Ячейки очереди с установкой уровня, которые еще можно заменить, по каналам
+     */
+    private final QueuedFrame[][] pending = new QueuedFrame[2][256];
+    private volatile boolean coalescing = true;
+    private volatile long coalesced = 0;
+
+    /**
+     * Сколько интерактивных посылок подряд можно отправить, пока ждут фоновые
+     */
+    private volatile int interactiveBurst = 8;
+    private int burst = 0;
+    private volatile long superseded = 0;
+    private volatile long expired = 0;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * Результаты посылок, отброшенных потоком записи после истечения срока
+     */
+    private final List<CompletableFuture<Boolean>> expiredResults = new ArrayList<>();
+
+    private long sent = 0;
+    private double drainRate = 0;
+    private long rateUpdateTime = System.currentTimeMillis();
+
+    TransmitQueue(PC11xx sender, int capacity)
+    {
+        this.sender = sender;
+        this.capacity = capacity;
+        this.interactive = new ArrayDeque<>(capacity);
+        this.background = new ArrayDeque<>(capacity);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "PC11xx writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Ставит интерактивную посылку в очередь
+     * @param frame посылка
+     * @param mode поведение при заполненной очереди
+     * @param timeoutMs время ожидания для режима TIMED
+     * @return поставлена ли посылка в очередь
+     */
+    boolean offer(CommandFrame frame, EnqueueMode mode, long timeoutMs)
+    {
+        return offer(frame, Priority.INTERACTIVE, 0, mode, timeoutMs);
+    }
+
+    /**
+     * Ставит посылку в очередь
+     * @param frame посылка
+     * @param priority приоритет
+     * @param deadline время, после которого посылка отбрасывается, или 0
+     * @param mode поведение при заполненной очереди
+     * @param timeoutMs время ожидания для режима TIMED
+     * @return поставлена ли посылка в очередь
+     */
+    boolean offer(CommandFrame frame, Priority priority, long deadline, EnqueueMode mode, long timeoutMs)
+    {
+        return offer(new QueuedFrame(frame, priority, deadline), mode, timeoutMs);
+    }
+
+    /**
+     * Ставит посылку в очередь с ее приоритетом и сроком
+     * @param queued посылка
+     * @param mode поведение при заполненной очереди
+     * @param timeoutMs время ожидания для режима TIMED
+     * @return поставлена ли посылка в очередь
+     */
+    boolean offer(QueuedFrame queued, EnqueueMode mode, long timeoutMs)
+    {
+        if (!running)
+        {
+            return false;
+        }
+
+        CommandFrame frame = queued.getFrame();
+        Priority priority = queued.getPriority();
+        List<CompletableFuture<Boolean>> dropped = new ArrayList<>(0);
+        int channel = frame.getChannel() & 0xff;
+        int lane = priority.ordinal();
+        boolean coalescable = coalescing && frame.getCommand() == CommandType.SET_LEVEL;
+        boolean scene = frame.getCommand() == CommandType.RUN_SCENE || frame.getCommand() == CommandType.RECORD_SCENE;
+
+        try
+        {
+            lock.lockInterruptibly();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        try
+        {
+            if (priority == Priority.INTERACTIVE)
+            {
+                supersede(channel, scene, dropped);
+            }
+
+            QueuedFrame waiting = pending[lane][channel];
+
+            if (coalescable && waiting != null)
+            {
+                drop(dropped, waiting.replace(queued));
+                coalesced++;
+                return true;
+            }
+
+            if (scene)
+            {
+                Arrays.fill(pending[0], null);
+                Arrays.fill(pending[1], null);
+            }
+            else
+            {
+                pending[0][channel] = null;
+                pending[1][channel] = null;
+            }
+
+            ArrayDeque<QueuedFrame> queue = priority == Priority.INTERACTIVE ? interactive : background;
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+            while (queue.size() >= capacity && running)
+            {
+                switch (mode)
+                {
+                    case BLOCKING:
+                        notFull.await();
+                        break;
+                    case TIMED:
+                        if (nanos <= 0)
+                        {
+                            return false;
+                        }
+                        nanos = notFull.awaitNanos(nanos);
+                        break;
+                    default:
+                        return false;
+                }
+            }
+
+            if (!running)
+            {
+                return false;
+            }
+
+            queue.add(queued);
+
+            if (coalescable)
+            {
+                pending[lane][channel] = queued;
+            }
+
+            notEmpty.signal();
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+            fail(dropped);
+        }
+    }
+
+    /**
+     * Отменяет ожидающие фоновые установки уровня канала: команда пользователя важнее.
+     * Привязка, отвязка и сценарии остаются в очереди. Вызывается под блокировкой очереди
+     * @param channel канал, начиная с 0
+     * @param all отменить установки уровня на всех каналах
+     * @param dropped результаты отмененных посылок
+     */
+    private void supersede(int channel, boolean all, List<CompletableFuture<Boolean>> dropped)
+    {
+        Iterator<QueuedFrame> it = background.iterator();
+        boolean removed = false;
+
+        while (it.hasNext())
+        {
+            QueuedFrame slot = it.next();
+            int slotChannel = slot.getFrame().getChannel() & 0xff;
+
+            if (slot.getFrame().getCommand() == CommandType.SET_LEVEL && (all || slotChannel == channel))
+            {
+                it.remove();
+
+                if (pending[Priority.BACKGROUND.ordinal()][slotChannel] == slot)
+                {
+                    pending[Priority.BACKGROUND.ordinal()][slotChannel] = null;
+                }
+
+                drop(dropped, slot.getResult());
+                superseded++;
+                removed = true;
+            }
+        }
+
+        if (removed)
+        {
+            notFull.signalAll();
+        }
+    }
+
+    /**
+     * Забирает посылку из очереди
+     * @return посылка или null, если очередь пуста
+     */
+    private QueuedFrame poll() throws InterruptedException
+    {
+        lock.lock();
+
+        try
+        {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(POLL_TIMEOUT_MS);
+
+            while (true)
+            {
+                while (interactive.isEmpty() && background.isEmpty())
+                {
+                    if (nanos <= 0)
+                    {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+
+                QueuedFrame slot;
+                int lane;
+
+                if (!interactive.isEmpty() && (background.isEmpty() || burst < interactiveBurst))
+                {
+                    slot = interactive.poll();
+                    lane = Priority.INTERACTIVE.ordinal();
+                    burst = background.isEmpty() ? 0 : burst + 1;
+                }
+                else
+                {
+                    slot = background.poll();
+                    lane = Priority.BACKGROUND.ordinal();
+                    burst = 0;
+                }
+
+                int channel = slot.getFrame().getChannel() & 0xff;
+
+                if (pending[lane][channel] == slot)
+                {
+                    pending[lane][channel] = null;
+                }
+
+                notFull.signalAll();
+
+                if (slot.isExpired())
+                {
+                    drop(expiredResults, slot.getResult());
+                    expired++;
+                    continue;
+                }
+
+                return slot;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void drain()
+    {
+        while (running || size() > 0)
+        {
+            QueuedFrame queued;
+
+            try
+            {
+                queued = poll();
+            }
+            catch (InterruptedException e)
+            {
+                continue;
+            }
+            finally
+            {
+                fail(expiredResults);
+            }
+
+            if (queued == null)
+            {
+                continue;
+            }
+
+            boolean written = false;
+
+            try
+            {
+                written = sender.write(queued.getFrame());
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.error("Ошибка отправки посылки PC11xx: " + e.getMessage());
+                e.printStackTrace();
+            }
+
+            if (written)
+            {
+                queued.complete(true);
+            }
+            else
+            {
+                sender.onWriteFailed(queued);
+            }
+
+            synchronized (this)
+            {
+                long now = System.currentTimeMillis();
+                decayRate(now);
+                drainRate += 1000.0 / RATE_TAU_MS;
+                sent++;
+            }
+
+            if (running && size() == 0)
+            {
+                sender.onDrained();
+            }
+        }
+    }
+
+    /**
+     * Останавливает поток записи, оставшиеся в очереди посылки отправляются
+     */
+    void stop()
+    {
+        running = false;
+
+        if (Thread.currentThread() != writer)
+        {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Останавливает поток записи, не отправляя оставшиеся посылки
+     * @return неотправленные посылки в порядке очереди
+     */
+    List<QueuedFrame> stopAndDrain()
+    {
+        List<QueuedFrame> frames = new ArrayList<>();
+
+        lock.lock();
+
+        try
+        {
+            running = false;
+            frames.addAll(interactive);
+            frames.addAll(background);
+
+            interactive.clear();
+            background.clear();
+            Arrays.fill(pending[0], null);
+            Arrays.fill(pending[1], null);
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (Thread.currentThread() != writer)
+        {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return frames;
+    }
+
+    private static void drop(List<CompletableFuture<Boolean>> dropped, CompletableFuture<Boolean> result)
+    {
+        if (result != null)
+        {
+            dropped.add(result);
+        }
+    }
+
+    /**
+     * Завершает результаты отброшенных посылок, вызывается вне блокировки
+     */
+    private static void fail(List<CompletableFuture<Boolean>> dropped)
+    {
+        for (CompletableFuture<Boolean> result : dropped)
+        {
+            result.complete(false);
+        }
+
+        dropped.clear();
+    }
+
+    private void decayRate(long now)
+    {
+        long elapsed = now - rateUpdateTime;
+
+        if (elapsed > 0)
+        {
+            drainRate *= Math.exp(-elapsed / RATE_TAU_MS);
+            rateUpdateTime = now;
+        }
+    }
+
+    int size()
+    {
+        lock.lock();
+
+        try
+        {
+            return interactive.size() + background.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void setCoalescing(boolean coalescing)
+    {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * @return количество посылок, замененных более новыми и поэтому не отправленных
+     */
+    long getCoalesced()
+    {
+        return coalesced;
+    }
+
+    void setInteractiveBurst(int interactiveBurst)
+    {
+        this.interactiveBurst = interactiveBurst;
+    }
+
+    /**
+     * @return количество фоновых установок уровня, отмененных интерактивными командами
+     */
+    long getSuperseded()
+    {
+        return superseded;
+    }
+
+    /**
+     * @return количество посылок, отброшенных после истечения срока
+     */
+    long getExpired()
+    {
+        return expired;
+    }
+
+    synchronized long getSent()
+    {
+        return sent;
+    }
+
+    synchronized double getDrainRate()
+    {
+        decayRate(System.currentTimeMillis());
+        return drainRate;
+    }
+}
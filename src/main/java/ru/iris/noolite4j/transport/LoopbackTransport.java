@@ -0,0 +1,290 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.transport;
+
+import org.usb4java.LibUsb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Транспорт в памяти для нагрузочных проверок без адаптеров.
+ *
+ * Переданные посылки складываются в очередь, откуда их можно забрать.
+ * Чтение возвращает текущий отчет устройства: последнюю внесенную через {@link #inject(byte[])} посылку,
+ * как это делает HID-отчет RX2164. Можно задать задержку операций, долю ошибок
+ * и отключение устройства
+ */
+public class LoopbackTransport implements Transport {
+
+    private static final int FRAME_SIZE = 8;
+
+    private final LinkedBlockingQueue<byte[]> written = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<byte[]> inbound = new ConcurrentLinkedQueue<>();
+    private final byte[] report = new byte[FRAME_SIZE];
+
+    private volatile boolean open = false;
+    private volatile boolean connected = true;
+    private volatile long latencyNanos = 0;
+    private volatile double errorRate = 0;
+    private volatile int errorCode = LibUsb.ERROR_IO;
+    private final AtomicInteger failNext = new AtomicInteger();
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    @Override
+    public int openHandle()
+    {
+        delay(0);
+
+        if (!connected)
+        {
+            return LibUsb.ERROR_NO_DEVICE;
+        }
+
+        open = true;
+        return LibUsb.SUCCESS;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public int write(ByteBuffer frame, long timeoutMs)
+    {
+        if (!delay(timeoutMs))
+        {
+            return LibUsb.ERROR_TIMEOUT;
+        }
+
+        int error = error();
+
+        if (error < 0)
+        {
+            return error;
+        }
+
+        byte[] data = new byte[frame.remaining()];
+        frame.duplicate().get(data);
+        written.add(data);
+        writes.incrementAndGet();
+
+        return data.length;
+    }
+
+    @Override
+    public int read(ByteBuffer frame, long timeoutMs)
+    {
+        if (!delay(timeoutMs))
+        {
+            return LibUsb.ERROR_TIMEOUT;
+        }
+
+        int error = error();
+
+        if (error < 0)
+        {
+            return error;
+        }
+
+        synchronized (report)
+        {
+            byte[] next = inbound.poll();
+
+            if (next != null)
+            {
+                System.arraycopy(next, 0, report, 0, Math.min(FRAME_SIZE, next.length));
+            }
+
+            frame.clear();
+            frame.put(report, 0, Math.min(FRAME_SIZE, frame.remaining()));
+        }
+
+        reads.incrementAndGet();
+
+        return FRAME_SIZE;
+    }
+
+    @Override
+    public void close()
+    {
+        open = false;
+    }
+
+    /**
+     * Имитирует задержку операции
+     * @param timeoutMs предельное время операции, 0 - без ограничения
+     * @return уложилась ли операция в предельное время
+     */
+    private boolean delay(long timeoutMs)
+    {
+        long nanos = latencyNanos;
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        if (timeoutMs > 0 && nanos > timeoutNanos)
+        {
+            LockSupport.parkNanos(timeoutNanos);
+            errors.incrementAndGet();
+            return false;
+        }
+
+        if (nanos > 0)
+        {
+            LockSupport.parkNanos(nanos);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return код ошибки для текущей операции или 0
+     */
+    private int error()
+    {
+        if (!connected || !open)
+        {
+            errors.incrementAndGet();
+            return LibUsb.ERROR_NO_DEVICE;
+        }
+
+        int pending = failNext.get();
+
+        while (pending > 0)
+        {
+            if (failNext.compareAndSet(pending, pending - 1))
+            {
+                errors.incrementAndGet();
+                return errorCode;
+            }
+
+            pending = failNext.get();
+        }
+
+        double rate = errorRate;
+
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate)
+        {
+            errors.incrementAndGet();
+            return errorCode;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Вносит посылку, которую устройство отдаст при следующем чтении
+     * @param frame посылка приемника
+     */
+    public void inject(byte[] frame)
+    {
+        inbound.add(frame.clone());
+    }
+
+    /**
+     * Забирает переданную в устройство посылку
+     * @param timeout время ожидания
+     * @param unit единица времени
+     * @return посылка или null, если посылок не было
+     * @throws InterruptedException ожидание прервано
+     */
+    public byte[] takeWritten(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return written.poll(timeout, unit);
+    }
+
+    /**
+     * @return количество переданных и еще не забранных посылок
+     */
+    public int getWrittenCount()
+    {
+        return written.size();
+    }
+
+    /**
+     * @param latency задержка каждой операции
+     * @param unit единица времени
+     */
+    public void setLatency(long latency, TimeUnit unit)
+    {
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * @param errorRate доля операций, завершающихся ошибкой, от 0 до 1
+     * @param errorCode код ошибки LibUSB
+     */
+    public void setErrorRate(double errorRate, int errorCode)
+    {
+        if (errorRate < 0 || errorRate > 1)
+        {
+            throw new IllegalArgumentException("Доля ошибок должна быть от 0 до 1");
+        }
+
+        this.errorRate = errorRate;
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * @param count количество следующих операций, завершающихся ошибкой
+     * @param errorCode код ошибки LibUSB
+     */
+    public void failNext(int count, int errorCode)
+    {
+        this.errorCode = errorCode;
+        failNext.set(count);
+    }
+
+    /**
+     * Отключает устройство: операции завершаются ERROR_NO_DEVICE, пока не будет {@link #reconnect()}
+     */
+    public void disconnect()
+    {
+        connected = false;
+        open = false;
+    }
+
+    public void reconnect()
+    {
+        connected = true;
+    }
+
+    public long getWrites()
+    {
+        return writes.get();
+    }
+
+    public long getReads()
+    {
+        return reads.get();
+    }
+
+    public long getErrors()
+    {
+        return errors.get();
+    }
+}
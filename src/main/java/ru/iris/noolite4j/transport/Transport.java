@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Транспорт до HID-устройства Noolite.
+ * Результаты операций - коды LibUSB: неотрицательное значение при успехе, отрицательный код ошибки иначе.
+ * Вызовы одного транспорта выполняются под монитором устройства или в одном потоке
+ */
+public interface Transport {
+
+    /**
+     * Находит, настраивает и захватывает устройство
+     * @return LibUsb.SUCCESS или код ошибки
+     */
+    int openHandle();
+
+    /**
+     * @return открыто ли устройство
+     */
+    boolean isOpen();
+
+    /**
+     * Передает посылку в устройство
+     * @param frame посылка, от position до limit
+     * @param timeoutMs предельное время передачи, мс
+     * @return количество переданных байт или код ошибки
+     */
+    int write(ByteBuffer frame, long timeoutMs);
+
+    /**
+     * Читает посылку из устройства
+     * @param frame буфер для посылки
+     * @param timeoutMs предельное время чтения, мс
+     * @return количество прочитанных байт или код ошибки
+     */
+    int read(ByteBuffer frame, long timeoutMs);
+
+    /**
+     * Освобождает устройство. Транспорт можно открыть снова
+     */
+    void close();
+}
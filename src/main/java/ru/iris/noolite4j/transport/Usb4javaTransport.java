@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Транспорт через usb4java: HID-отчеты передаются управляющими передачами.
+ * Инициализацией и завершением контекста LibUSB управляет владелец транспорта
+ */
+public class Usb4javaTransport implements Transport {
+
+    /**
+     * Тип запроса для передачи отчета в устройство
+     */
+    public static final byte HID_OUT = (byte) (LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE);
+
+    /**
+     * Тип запроса для чтения отчета из устройства
+     */
+    public static final byte HID_IN = (byte) (LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE | LibUsb.ENDPOINT_IN);
+
+    private final Logger LOGGER = LoggerFactory.getLogger(Usb4javaTransport.class.getName());
+    private final String name;
+    private final Context context;
+    private final Device device;
+    private final short vendorId;
+    private final short productId;
+    private final byte writeRequestType;
+    private volatile DeviceHandle handle;
+
+    /**
+     * @param name название устройства для сообщений
+     * @param context контекст LibUSB
+     * @param device конкретное устройство или null, чтобы открыть первое найденное по VID/PID
+     * @param vendorId VID устройства
+     * @param productId PID устройства
+     * @param writeRequestType тип запроса для передачи в устройство, {@link #HID_OUT} или {@link #HID_IN}
+     */
+    public Usb4javaTransport(String name, Context context, Device device, short vendorId, short productId, byte writeRequestType)
+    {
+        this.name = name;
+        this.context = context;
+        this.device = device;
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.writeRequestType = writeRequestType;
+    }
+
+    @Override
+    public int openHandle()
+    {
+        DeviceHandle handle;
+
+        if (device != null)
+        {
+            handle = new DeviceHandle();
+            int result = LibUsb.open(device, handle);
+
+            if (result != LibUsb.SUCCESS)
+            {
+                LOGGER.error("Не удалось открыть устройство " + name + ": " + LibUsb.errorName(result));
+                return result;
+            }
+        }
+        else
+        {
+            handle = LibUsb.openDeviceWithVidPid(context, vendorId, productId);
+        }
+
+        if (handle == null)
+        {
+            LOGGER.error("Устройство " + name + " не найдено!");
+            return LibUsb.ERROR_NO_DEVICE;
+        }
+
+        if (LibUsb.kernelDriverActive(handle, 0) == 1)
+        {
+            LibUsb.detachKernelDriver(handle, 0);
+        }
+
+        int ret = LibUsb.setConfiguration(handle, 1);
+
+        if (ret != LibUsb.SUCCESS)
+        {
+            LOGGER.error("Ошибка конфигурирования " + name);
+            LibUsb.close(handle);
+            if (ret == LibUsb.ERROR_BUSY)
+            {
+                LOGGER.error("Устройство " + name + " занято");
+            }
+            return ret;
+        }
+
+        LibUsb.claimInterface(handle, 0);
+
+        this.handle = handle;
+
+        return LibUsb.SUCCESS;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return handle != null;
+    }
+
+    @Override
+    public int write(ByteBuffer frame, long timeoutMs)
+    {
+        if (handle == null)
+        {
+            return LibUsb.ERROR_NO_DEVICE;
+        }
+
+        return LibUsb.controlTransfer(handle, writeRequestType, (byte) 0x9, (short) 0x300, (short) 0, frame, timeoutMs);
+    }
+
+    @Override
+    public int read(ByteBuffer frame, long timeoutMs)
+    {
+        if (handle == null)
+        {
+            return LibUsb.ERROR_NO_DEVICE;
+        }
+
+        return LibUsb.controlTransfer(handle, HID_IN, (byte) 0x9, (short) 0x300, (short) 0, frame, timeoutMs);
+    }
+
+    @Override
+    public void close()
+    {
+        if (handle == null)
+        {
+            return;
+        }
+
+        LibUsb.releaseInterface(handle, 0);
+        LibUsb.attachKernelDriver(handle, 0);
+        LibUsb.close(handle);
+
+        handle = null;
+    }
+
+    /**
+     * Открытое устройство для асинхронных передач libusb
+     * @return дескриптор устройства или null
+     */
+    public DeviceHandle getHandle()
+    {
+        return handle;
+    }
+
+    public Context getContext()
+    {
+        return context;
+    }
+}
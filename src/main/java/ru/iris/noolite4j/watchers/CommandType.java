@@ -16,6 +16,8 @@
 
 package ru.iris.noolite4j.watchers;
 
+import ru.iris.noolite4j.codec.FrameCodec;
+
 public enum CommandType {
     TURN_OFF(0),
     SLOW_TURN_OFF(1),
@@ -48,11 +50,6 @@ public enum CommandType {
     }
 
     public static CommandType getValue(byte value) {
-        for(CommandType e: CommandType.values()) {
-            if(e.getCode() == value) {
-                return e;
-            }
-        }
-        return null;
+        return FrameCodec.commandType(value);
     }
 }
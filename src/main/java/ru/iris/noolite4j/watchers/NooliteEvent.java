@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.watchers;
+
+/**
+ * Команда, принятая RX2164, с разобранными данными.
+ * Базовый класс типизированных событий
+ */
+public abstract class NooliteEvent {
+
+    private final byte channel;
+    private final CommandType type;
+    private final DataFormat dataFormat;
+
+    protected NooliteEvent(NotificationFrame frame)
+    {
+        this.channel = frame.getChannel();
+        this.type = frame.getType();
+        this.dataFormat = frame.getDataFormat();
+    }
+
+    /**
+     * Создает событие нужного типа для посылки
+     * @param frame посылка
+     * @return событие или null, если команда неизвестна
+     */
+    public static NooliteEvent from(NotificationFrame frame)
+    {
+        CommandType type = frame.getType();
+
+        if (type == null)
+        {
+            return null;
+        }
+
+        switch (type)
+        {
+            case SET_LEVEL:
+                return new LevelEvent(frame);
+            case BIND:
+                return new BindEvent(frame);
+            case TEMP_HUMI:
+                return new TempHumiEvent(frame);
+            case BATTERY_LOW:
+                return new BatteryLowEvent(frame);
+            default:
+                return new CommandEvent(frame);
+        }
+    }
+
+    /**
+     * Передает событие в соответствующий метод обработчика
+     * @param watcher обработчик
+     */
+    public abstract void dispatch(EventWatcher watcher);
+
+    /**
+     * @return канал устройства, начиная с 1
+     */
+    public byte getChannel() {
+        return channel;
+    }
+
+    public CommandType getType() {
+        return type;
+    }
+
+    public DataFormat getDataFormat() {
+        return dataFormat;
+    }
+}
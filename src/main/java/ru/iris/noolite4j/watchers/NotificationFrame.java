@@ -0,0 +1,285 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.watchers;
+
+import ru.iris.noolite4j.codec.FrameCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Посылка, принятая RX2164.
+ * Хранит копию 8 байт посылки и разбирает поля только при обращении к ним,
+ * поэтому один объект можно переиспользовать для всех посылок
+ */
+public final class NotificationFrame {
+
+    /**
+     * Размер посылки в байтах
+     */
+    public static final int SIZE = FrameCodec.FRAME_SIZE;
+
+    private final byte[] frame = new byte[SIZE];
+
+    /**
+     * Копирует посылку из буфера, позиция буфера не меняется
+     * @param buf буфер с посылкой
+     * @return этот же объект
+     */
+    public NotificationFrame wrap(ByteBuffer buf)
+    {
+        for (int i = 0; i < SIZE; i++)
+        {
+            frame[i] = buf.get(i);
+        }
+
+        return this;
+    }
+
+    /**
+     * Копирует посылку из массива
+     * @param src массив
+     * @param offset смещение посылки в массиве
+     * @return этот же объект
+     */
+    public NotificationFrame wrap(byte[] src, int offset)
+    {
+        System.arraycopy(src, offset, frame, 0, SIZE);
+        return this;
+    }
+
+    /**
+     * Распаковывает посылку из 8 байт, упакованных в long
+     * @param bits посылка, байт 0 - в младших разрядах
+     * @return этот же объект
+     * @see #toLong()
+     */
+    public NotificationFrame wrap(long bits)
+    {
+        for (int i = 0; i < SIZE; i++)
+        {
+            frame[i] = (byte) (bits >>> (i * 8));
+        }
+
+        return this;
+    }
+
+    /**
+     * Упаковывает посылку в long, чтобы ее можно было передать между потоками одной атомарной записью
+     * @return посылка, байт 0 - в младших разрядах
+     */
+    public long toLong()
+    {
+        long bits = 0;
+
+        for (int i = 0; i < SIZE; i++)
+        {
+            bits |= (frame[i] & 0xffL) << (i * 8);
+        }
+
+        return bits;
+    }
+
+    /**
+     * Копирует посылку в массив
+     * @param dst массив
+     * @param offset смещение в массиве
+     */
+    public void copyTo(byte[] dst, int offset)
+    {
+        System.arraycopy(frame, 0, dst, offset, SIZE);
+    }
+
+    /**
+     * Создает независимую копию для хранения после обработки
+     * @return копия посылки
+     */
+    public NotificationFrame copy()
+    {
+        return new NotificationFrame().wrap(frame, 0);
+    }
+
+    /**
+     * @param index номер байта
+     * @return байт посылки
+     */
+    public byte get(int index)
+    {
+        return frame[index];
+    }
+
+    /**
+     * @return значение TOGL
+     */
+    public int getTogl()
+    {
+        return FrameCodec.togl(frame);
+    }
+
+    /**
+     * @return канал устройства, начиная с 1
+     */
+    public byte getChannel()
+    {
+        return FrameCodec.channel(frame);
+    }
+
+    /**
+     * @return код команды
+     */
+    public byte getCommandCode()
+    {
+        return frame[FrameCodec.RX_COMMAND];
+    }
+
+    /**
+     * @return команда или null, если код неизвестен
+     */
+    public CommandType getType()
+    {
+        return FrameCodec.commandType(frame);
+    }
+
+    /**
+     * @return формат данных, для неизвестного формата - NO_DATA
+     */
+    public DataFormat getDataFormat()
+    {
+        return FrameCodec.dataFormat(frame);
+    }
+
+    /**
+     * @param index номер байта данных, от 0 до 3
+     * @return байт данных
+     */
+    public byte getData(int index)
+    {
+        return frame[FrameCodec.RX_DATA + index];
+    }
+
+    /**
+     * Уровень для команды SET_LEVEL
+     * @return уровень
+     */
+    public int getLevel()
+    {
+        return FrameCodec.level(frame);
+    }
+
+    /**
+     * Температура для команды TEMP_HUMI.
+     * Информация о температуре, типе датчика и состоянии батареи размазана по 2 байтам
+     * @return температура в десятых долях градуса Цельсия
+     */
+    public int getTemperatureRaw()
+    {
+        return FrameCodec.temperatureRaw(frame);
+    }
+
+    /**
+     * Температура для команды TEMP_HUMI
+     * @return температура в градусах Цельсия
+     */
+    public double getTemperature()
+    {
+        return (double) getTemperatureRaw() / 10;
+    }
+
+    /**
+     * Влажность для команды TEMP_HUMI, хранится в третьем байте данных
+     * @return влажность
+     */
+    public int getHumidity()
+    {
+        return FrameCodec.humidity(frame);
+    }
+
+    /**
+     * Состояние аналогового датчика для команды TEMP_HUMI, хранится в четвертом байте данных.
+     * По умолчанию - unsigned byte (255)
+     * @return значение аналогового датчика
+     */
+    public int getAnalog()
+    {
+        return FrameCodec.analog(frame);
+    }
+
+    /**
+     * Состояние батареи для команды TEMP_HUMI
+     * @return состояние батареи
+     */
+    public BatteryState getBatteryState()
+    {
+        return FrameCodec.batteryState(frame);
+    }
+
+    /**
+     * Тип датчика для команд TEMP_HUMI и BIND (если датчик передает свой тип)
+     * @return тип датчика или null
+     */
+    public SensorType getSensorType()
+    {
+        return FrameCodec.sensorType(frame);
+    }
+
+    /**
+     * Создает уведомление в старом формате с данными в словаре
+     * @return уведомление
+     */
+    public Notification toNotification()
+    {
+        Notification notification = new Notification();
+
+        notification.setBuffer(ByteBuffer.wrap(Arrays.copyOf(frame, SIZE)));
+        notification.setChannel(getChannel());
+        notification.setType(getType());
+        notification.setDataFormat(getDataFormat());
+
+        if (getType() == CommandType.SET_LEVEL)
+        {
+            notification.addData("level", frame[FrameCodec.RX_DATA]);
+        }
+        else if (getType() == CommandType.BIND)
+        {
+            if (getDataFormat() == DataFormat.ONE_BYTE)
+            {
+                notification.addData("sensortype", getSensorType());
+            }
+        }
+        else if (getType() == CommandType.TEMP_HUMI)
+        {
+            notification.addData("battery", getBatteryState());
+            notification.addData("temp", getTemperature());
+            notification.addData("sensortype", getSensorType());
+            notification.addData("humi", getHumidity());
+            notification.addData("analog", getAnalog());
+        }
+
+        return notification;
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationFrame{" +
+                "togl=" + getTogl() +
+                ", channel=" + getChannel() +
+                ", type=" + getType() +
+                ", dataFormat=" + getDataFormat() +
+                ", data=" + Arrays.toString(Arrays.copyOfRange(frame, FrameCodec.RX_DATA, SIZE)) +
+                '}';
+    }
+}
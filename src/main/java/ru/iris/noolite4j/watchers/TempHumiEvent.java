@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Nikolay A. Viguro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.iris.noolite4j.watchers;
+
+/**
+ * Данные с датчика температуры и влажности (TEMP_HUMI)
+ */
+public class TempHumiEvent extends NooliteEvent {
+
+    private final double temperature;
+    private final int humidity;
+    private final int analog;
+    private final BatteryState batteryState;
+    private final SensorType sensorType;
+
+    public TempHumiEvent(NotificationFrame frame)
+    {
+        super(frame);
+        this.temperature = frame.getTemperature();
+        this.humidity = frame.getHumidity();
+        this.analog = frame.getAnalog();
+        this.batteryState = frame.getBatteryState();
+        this.sensorType = frame.getSensorType();
+    }
+
+    @Override
+    public void dispatch(EventWatcher watcher)
+    {
+        watcher.onTempHumi(this);
+    }
+
+    /**
+     * @return температура в градусах Цельсия
+     */
+    public double getTemperature() {
+        return temperature;
+    }
+
+    public int getHumidity() {
+        return humidity;
+    }
+
+    /**
+     * @return значение аналогового датчика, по умолчанию 255
+     */
+    public int getAnalog() {
+        return analog;
+    }
+
+    public BatteryState getBatteryState() {
+        return batteryState;
+    }
+
+    public SensorType getSensorType() {
+        return sensorType;
+    }
+
+    @Override
+    public String toString() {
+        return "TempHumiEvent{" +
+                "channel=" + getChannel() +
+                ", temperature=" + temperature +
+                ", humidity=" + humidity +
+                ", analog=" + analog +
+                ", batteryState=" + batteryState +
+                ", sensorType=" + sensorType +
+                '}';
+    }
+}